@@ -0,0 +1,49 @@
+#!/bin/bash
+# Measures Redis CPU time per acquire of try_acquire_capacity.lua at 10, 100 and 1000 tiers.
+#
+# The worst case is measured: every tier except the lowest priority one is exhausted,
+# so each tier 1 request has to borrow from the last tier.
+# Redis CPU time per call is taken from the EVALSHA usec_per_call of INFO commandstats.
+#
+# Requires redis-cli and redis-benchmark and a running Redis, e.g. started with start-infra-only-dev.sh
+set -euo pipefail
+
+REDIS_HOST=${REDIS_HOST:-localhost}
+REDIS_PORT=${REDIS_PORT:-6379}
+REQUESTS=${REQUESTS:-100000}
+CLIENTS=${CLIENTS:-50}
+SCRIPTS_DIR="$(dirname "$0")/../../spring-cloud-gateway/src/main/resources/lua_scripts"
+
+CAPACITY_KEY="spring_cloud_gateway_benchmark:capacity_map"
+DEFAULT_CAPACITY_KEY="spring_cloud_gateway_benchmark:default_capacities"
+FREE_TIERS_KEY="spring_cloud_gateway_benchmark:free_tiers"
+
+cli() {
+  redis-cli -h "$REDIS_HOST" -p "$REDIS_PORT" "$@"
+}
+
+INITIALIZE_SHA=$(cli SCRIPT LOAD "$(cat "$SCRIPTS_DIR/initialize_capacity.lua")")
+ACQUIRE_SHA=$(cli SCRIPT LOAD "$(cat "$SCRIPTS_DIR/try_acquire_capacity.lua")")
+
+for TIERS in 10 100 1000; do
+  ARGS=()
+  for ((tier = 1; tier <= TIERS; tier++)); do
+    if [ "$tier" -eq "$TIERS" ]; then
+      ARGS+=("$tier" "$((REQUESTS * 2))")
+    else
+      ARGS+=("$tier" 0)
+    fi
+  done
+
+  cli DEL "$CAPACITY_KEY" "$DEFAULT_CAPACITY_KEY" "$FREE_TIERS_KEY" > /dev/null
+  cli EVALSHA "$INITIALIZE_SHA" 3 "$CAPACITY_KEY" "$DEFAULT_CAPACITY_KEY" "$FREE_TIERS_KEY" "${ARGS[@]}" > /dev/null
+  cli CONFIG RESETSTAT > /dev/null
+
+  redis-benchmark -h "$REDIS_HOST" -p "$REDIS_PORT" -n "$REQUESTS" -c "$CLIENTS" -q \
+    EVALSHA "$ACQUIRE_SHA" 2 "$CAPACITY_KEY" "$FREE_TIERS_KEY" 1 > /dev/null
+
+  USEC_PER_CALL=$(cli INFO commandstats | grep '^cmdstat_evalsha:' | sed -E 's/.*usec_per_call=([0-9.]+).*/\1/')
+  echo "tiers=$TIERS usec_per_acquire=$USEC_PER_CALL"
+done
+
+cli DEL "$CAPACITY_KEY" "$DEFAULT_CAPACITY_KEY" "$FREE_TIERS_KEY" > /dev/null
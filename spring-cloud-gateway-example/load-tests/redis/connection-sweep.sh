@@ -0,0 +1,66 @@
+#!/bin/bash
+# Sweeps the Redis connection settings of the gateway and reports the throughput against the p99 response time.
+#
+# For every combination of command pool size, transport, TCP_NODELAY and acquire batching, the gateway jar is started
+# with the settings, RedisThroughputSimulation is run against it once it reports ready, and the request rate,
+# the p99 response time and the failed requests are taken from the stats.json of the Gatling report.
+#
+# Requires a built gateway jar, jq, a running Redis, e.g. started with start-infra-only-dev.sh,
+# and Spring Example API listening on port 8091. Run from the repository root.
+set -euo pipefail
+
+GATEWAY_JAR=${GATEWAY_JAR:-spring-cloud-gateway/target/spring-cloud-gateway-1.0.0.jar}
+POOL_SIZES=${POOL_SIZES:-"16 32 64 128"}
+TRANSPORTS=${TRANSPORTS:-"NIO EPOLL"}
+TCP_NO_DELAY=${TCP_NO_DELAY:-"true false"}
+ACQUIRE_BATCH=${ACQUIRE_BATCH:-"false true"}
+RATE=${RATE:-500}
+DURATION=${DURATION:-30}
+GATEWAY_PORT=8090
+GATEWAY_LOG=${GATEWAY_LOG:-load-tests/target/connection-sweep-gateway.log}
+
+mkdir -p "$(dirname "$GATEWAY_LOG")"
+
+wait_until_ready() {
+  for _ in $(seq 1 120); do
+    if curl -sf "http://localhost:$GATEWAY_PORT/actuator/health/readiness" > /dev/null; then
+      return 0
+    fi
+    sleep 1
+  done
+  echo "Gateway did not become ready, see $GATEWAY_LOG" >&2
+  return 1
+}
+
+printf "%-6s %-9s %-13s %-14s %10s %9s %8s\n" pool transport tcp_no_delay acquire_batch req_per_sec p99_ms failed
+
+for POOL in $POOL_SIZES; do
+  for TRANSPORT in $TRANSPORTS; do
+    for NO_DELAY in $TCP_NO_DELAY; do
+      for BATCH in $ACQUIRE_BATCH; do
+        java -jar "$GATEWAY_JAR" \
+          --server.port=$GATEWAY_PORT \
+          --management.server.port=$GATEWAY_PORT \
+          --redis.transportMode="$TRANSPORT" \
+          --redis.commands.connection-pool-size="$POOL" \
+          --redis.commands.connection-minimum-idle-size="$POOL" \
+          --redis.commands.tcp-no-delay="$NO_DELAY" \
+          --capacity.acquire-batch.enabled="$BATCH" > "$GATEWAY_LOG" 2>&1 &
+        GATEWAY_PID=$!
+        trap 'kill $GATEWAY_PID 2> /dev/null || true' EXIT
+
+        wait_until_ready
+        mvn -q -pl load-tests gatling:test -Predis-throughput -Drate="$RATE" -Dduration="$DURATION" > /dev/null || true
+
+        kill "$GATEWAY_PID"
+        wait "$GATEWAY_PID" 2> /dev/null || true
+
+        STATS="$(ls -td load-tests/target/gatling/*/ | head -1)js/stats.json"
+        jq -r --arg pool "$POOL" --arg transport "$TRANSPORT" --arg no_delay "$NO_DELAY" --arg batch "$BATCH" \
+          '.stats | [$pool, $transport, $no_delay, $batch,
+                     .meanNumberOfRequestsPerSecond.total, .percentiles4.total, .numberOfRequests.ko] | @tsv' \
+          "$STATS" | xargs printf "%-6s %-9s %-13s %-14s %10s %9s %8s\n"
+      done
+    done
+  done
+done
@@ -0,0 +1,54 @@
+package com.example;
+
+import io.gatling.javaapi.core.*;
+import io.gatling.javaapi.http.*;
+
+import java.time.Duration;
+import java.util.Base64;
+
+import static io.gatling.javaapi.core.CoreDsl.*;
+import static io.gatling.javaapi.http.HttpDsl.*;
+
+/**
+ * Mixed load for comparing the capacity scheduling policies.
+ * <p>
+ * Tier 3 sends steady traffic for the whole run while tier 1 bursts far above its capacity in the middle of it.
+ * Run it once with capacity.scheduling.policy PRIORITY and once with WEIGHTED_FAIR and compare the report:
+ * the OK count of all requests shows the utilisation, and the share of rejected (KO) requests of each tier
+ * shows the fairness.
+ */
+public class MixedTierFairnessSimulation extends Simulation {
+
+    private final String BASE_URL = "http://localhost:8090/api/1.0";
+
+    private HttpProtocolBuilder httpProtocol = http
+            .baseUrl(BASE_URL);
+
+    private String basicAuthHeader(String username, String password) {
+        String auth = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
+    }
+
+    private ScenarioBuilder tierScenario(String name, String client) {
+        return scenario(name)
+                .exec(http(name + " Request")
+                        .get("/example")
+                        .header("Authorization", basicAuthHeader(client, "testpassword"))
+                );
+    }
+
+    {
+        setUp(
+                tierScenario("Client Tier 3 Steady", "test_client_tier_3").injectClosed(
+                        constantConcurrentUsers(25).during(Duration.ofSeconds(60))
+                ).protocols(httpProtocol),
+                tierScenario("Client Tier 1 Burst", "test_client_tier_1").injectOpen(
+                        nothingFor(Duration.ofSeconds(20)),
+                        constantUsersPerSec(300).during(Duration.ofSeconds(20))
+                ).protocols(httpProtocol),
+                tierScenario("Client Tier 2 Steady", "test_client_tier_2").injectClosed(
+                        constantConcurrentUsers(5).during(Duration.ofSeconds(60))
+                ).protocols(httpProtocol)
+        );
+    }
+}
@@ -0,0 +1,56 @@
+package com.example;
+
+import io.gatling.javaapi.core.*;
+import io.gatling.javaapi.http.*;
+
+import java.time.Duration;
+import java.util.Base64;
+
+import static io.gatling.javaapi.core.CoreDsl.*;
+import static io.gatling.javaapi.http.HttpDsl.*;
+
+/**
+ * Constant open load of all tiers, for comparing the Redis connection settings of the gateway.
+ * <p>
+ * Every request acquires and releases a permit in Redis, admitted or rejected, so both 200 and 429 responses
+ * count as successful. The rate per tier and the duration are set with -Drate and -Dduration (seconds).
+ * load-tests/redis/connection-sweep.sh runs it once per combination of settings and reports the throughput
+ * against the p99 response time.
+ */
+public class RedisThroughputSimulation extends Simulation {
+
+    private final String BASE_URL = "http://localhost:8090/api/1.0";
+    private final int RATE = Integer.getInteger("rate", 500);
+    private final Duration DURATION = Duration.ofSeconds(Integer.getInteger("duration", 30));
+
+    private HttpProtocolBuilder httpProtocol = http
+            .baseUrl(BASE_URL);
+
+    private String basicAuthHeader(String username, String password) {
+        String auth = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
+    }
+
+    private ScenarioBuilder tierScenario(String name, String client) {
+        return scenario(name)
+                .exec(http(name + " Request")
+                        .get("/example")
+                        .header("Authorization", basicAuthHeader(client, "testpassword"))
+                        .check(status().in(200, 429))
+                );
+    }
+
+    {
+        setUp(
+                tierScenario("Client Tier 1", "test_client_tier_1").injectOpen(
+                        constantUsersPerSec(RATE).during(DURATION)
+                ).protocols(httpProtocol),
+                tierScenario("Client Tier 2", "test_client_tier_2").injectOpen(
+                        constantUsersPerSec(RATE).during(DURATION)
+                ).protocols(httpProtocol),
+                tierScenario("Client Tier 3", "test_client_tier_3").injectOpen(
+                        constantUsersPerSec(RATE).during(DURATION)
+                ).protocols(httpProtocol)
+        );
+    }
+}
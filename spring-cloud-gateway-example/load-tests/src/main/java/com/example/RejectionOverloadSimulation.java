@@ -0,0 +1,46 @@
+package com.example;
+
+import io.gatling.javaapi.core.*;
+import io.gatling.javaapi.http.*;
+
+import java.time.Duration;
+import java.util.Base64;
+
+import static io.gatling.javaapi.core.CoreDsl.*;
+import static io.gatling.javaapi.http.HttpDsl.*;
+
+/**
+ * Overload where almost every request is rejected, for measuring the cost of a rejection.
+ * <p>
+ * A single tier 2 client sends far more requests than the capacity of all tiers, so the gateway spends its time
+ * rendering 429 responses. Compare the response times of the run and the process.cpu.usage metric of the gateway
+ * between builds to see how much a rejection costs compared with an admitted request.
+ */
+public class RejectionOverloadSimulation extends Simulation {
+
+    private final String BASE_URL = "http://localhost:8090/api/1.0";
+
+    private HttpProtocolBuilder httpProtocol = http
+            .baseUrl(BASE_URL);
+
+    private String basicAuthHeader(String username, String password) {
+        String auth = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
+    }
+
+    private ScenarioBuilder overloadScenario = scenario("Client Tier 2 Overload")
+            .exec(http("Client Tier 2 Request")
+                    .get("/example")
+                    .header("Authorization", basicAuthHeader("test_client_tier_2", "testpassword"))
+                    .check(status().in(200, 429))
+            );
+
+    {
+        setUp(
+                overloadScenario.injectOpen(
+                        rampUsersPerSec(100).to(2000).during(Duration.ofSeconds(10)),
+                        constantUsersPerSec(2000).during(Duration.ofSeconds(50))
+                ).protocols(httpProtocol)
+        );
+    }
+}
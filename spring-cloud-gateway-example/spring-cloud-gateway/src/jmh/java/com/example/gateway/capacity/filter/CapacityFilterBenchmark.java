@@ -0,0 +1,202 @@
+package com.example.gateway.capacity.filter;
+
+import com.example.gateway.capacity.adaptive.AdaptiveCapacityController;
+import com.example.gateway.capacity.manager.CapacityAcquireBatcher;
+import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.capacity.manager.CapacityPools;
+import com.example.gateway.capacity.manager.CapacityWaitQueue;
+import com.example.gateway.capacity.manager.InMemoryCapacityManager;
+import com.example.gateway.capacity.metrics.CapacityMetrics;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientTierDto;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.resolver.BasicAuthClientNameExtractor;
+import com.example.gateway.resolver.ClientNameKeyResolver;
+import com.example.gateway.utils.RequestUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.server.RequestPath;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocation of an admitted request through CapacityFilter, with the in-memory engine so the numbers
+ * are those of the filter itself. Run with -prof gc for the allocation per request.
+ * <p>
+ * usingWhen is the filter as it was before it was made non-blocking: the client is resolved with block()
+ * and the permit is released by the three cleanup callbacks of Mono.usingWhen. downstreamTimeout is the safety
+ * timeout of the downstream call alone, which both filters schedule for every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CapacityFilterBenchmark {
+    private static final String CLIENT = "benchmark_client";
+    private static final GatewayFilterChain CHAIN = exchange -> Mono.empty();
+
+    private SpringCloudGatewayProperties limitProperties;
+    private CapacityManager capacityManager;
+    private ClientNameKeyResolver clientNameKeyResolver;
+    private GatewayFilter filter;
+    private ServerWebExchange exchange;
+
+    @Setup
+    public void setUp() {
+        limitProperties = new SpringCloudGatewayProperties();
+        limitProperties.setTiersCapacity(Map.of(1, 1_000, 2, 1_000));
+        limitProperties.setClients(List.of(ClientTierDto.builder().id(CLIENT).tier(1).build()));
+        limitProperties.init();
+        CapacityProperties capacityProperties = new CapacityProperties();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        capacityManager = new InMemoryCapacityManager(limitProperties, capacityProperties);
+        clientNameKeyResolver = new ClientNameKeyResolver(
+                List.of(new BasicAuthClientNameExtractor()), limitProperties, meterRegistry);
+        CapacityPools capacityPools = new CapacityPools(
+                capacityManager,
+                new CapacityAcquireBatcher(capacityManager, capacityProperties, meterRegistry),
+                new CapacityWaitQueue(capacityManager, capacityProperties, meterRegistry),
+                limitProperties,
+                capacityProperties,
+                meterRegistry
+        );
+        CapacityFilter capacityFilter = new CapacityFilter(
+                capacityPools,
+                clientNameKeyResolver,
+                new RejectionResponses(new ObjectMapper(), capacityProperties, meterRegistry),
+                new CapacityTimeouts(capacityProperties),
+                new CapacityMetrics(meterRegistry, capacityManager, limitProperties, capacityProperties),
+                new AdaptiveCapacityController(capacityManager, limitProperties, capacityProperties, meterRegistry),
+                limitProperties
+        );
+        filter = capacityFilter.apply(new CapacityFilter.Config());
+
+        String credentials = Base64.getEncoder().encodeToString((CLIENT + ":secret").getBytes(StandardCharsets.UTF_8));
+        MockServerWebExchange mockExchange = MockServerWebExchange.from(MockServerHttpRequest.get("/")
+                .header(HttpHeaders.AUTHORIZATION, "Basic " + credentials));
+        exchange = mockExchange.mutate().request(new ServedRequest(mockExchange.getRequest())).build();
+    }
+
+    @Benchmark
+    public Void admitted() {
+        return filter.filter(nextRequest(), CHAIN).block();
+    }
+
+    @Benchmark
+    public Void usingWhen() {
+        ServerWebExchange exchange = nextRequest();
+        String clientId = clientNameKeyResolver.resolve(exchange).block();
+        int requestedTier = limitProperties.getTierForClient(clientId);
+
+        return Mono.usingWhen(
+                capacityManager.tryAcquireCapacity(requestedTier, clientId),
+                acquireResult -> acquireResult.acquired()
+                        ? CHAIN.filter(exchange).timeout(Duration.ofSeconds(30)).onErrorResume(e -> Mono.empty())
+                        : Mono.empty(),
+                acquireResult -> release(acquireResult, clientId),
+                (acquireResult, e) -> release(acquireResult, clientId),
+                acquireResult -> release(acquireResult, clientId)
+        ).block();
+    }
+
+    @Benchmark
+    public Void downstreamTimeout() {
+        return CHAIN.filter(nextRequest()).timeout(Duration.ofSeconds(30)).block();
+    }
+
+    /**
+     * Returns the exchange as a new request of the client, the client is resolved again from its header
+     */
+    private ServerWebExchange nextRequest() {
+        exchange.getAttributes().remove(RequestUtils.CLIENT_NAME_ATTR);
+        exchange.getAttributes().remove(RequestUtils.RESOLVED_CLIENT_ATTR);
+        return exchange;
+    }
+
+    private Mono<Object> release(AcquireCapacityResult acquireResult, String clientId) {
+        if (acquireResult.acquired()) {
+            capacityManager.handleReleaseCapacity(acquireResult.sourceTier(), clientId);
+        }
+        return Mono.empty();
+    }
+
+    /**
+     * Request as seen by the filter without a server, the mock request throws when asked for its native request
+     * and the exception would be counted as the cost of the filter
+     */
+    private record ServedRequest(ServerHttpRequest request) implements ServerHttpRequest {
+        @Override
+        public String getId() {
+            return request.getId();
+        }
+
+        @Override
+        public RequestPath getPath() {
+            return request.getPath();
+        }
+
+        @Override
+        public MultiValueMap<String, String> getQueryParams() {
+            return request.getQueryParams();
+        }
+
+        @Override
+        public MultiValueMap<String, HttpCookie> getCookies() {
+            return request.getCookies();
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public URI getURI() {
+            return request.getURI();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return request.getHeaders();
+        }
+
+        @Override
+        public Flux<DataBuffer> getBody() {
+            return request.getBody();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.gateway.capacity.filter;
+
+import com.example.gateway.capacity.filter.RejectionResponses.RenderedRejection;
+import com.example.gateway.dto.RejectedLimit;
+import com.example.gateway.dto.RejectedResponseDto;
+import com.example.gateway.properties.CapacityProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single rejection response: the body and headers of a 429, rendered once by RejectionResponses
+ * or serialized for every rejection as CapacityFilter did before, and the lookup of the rendered response alone.
+ * Run with -prof gc for the allocation per rejection, the Gatling RejectionOverloadSimulation measures the same
+ * under load.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RejectionResponsesBenchmark {
+    private static final String CLIENT = "benchmark_client";
+    private static final int TIER = 2;
+
+    private final DefaultDataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final HttpHeaders headers = new HttpHeaders();
+    private ObjectMapper objectMapper;
+    private RejectionResponses rejectionResponses;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new ObjectMapper();
+        rejectionResponses = new RejectionResponses(objectMapper, new CapacityProperties(), new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public RenderedRejection lookup() {
+        return rejectionResponses.get(CLIENT, TIER, RejectedLimit.CONCURRENCY);
+    }
+
+    @Benchmark
+    public DataBuffer rendered() {
+        RenderedRejection rejection = rejectionResponses.get(CLIENT, TIER, RejectedLimit.CONCURRENCY);
+
+        headers.clear();
+        headers.set("X-Rejected-Tier", rejection.tier());
+        headers.set("X-Rejected-Client", CLIENT);
+        headers.set("X-Rejected-Limit", rejection.limit());
+        headers.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        headers.set(HttpHeaders.CONTENT_LENGTH, rejection.contentLength());
+        return bufferFactory.wrap(rejection.body());
+    }
+
+    @Benchmark
+    public DataBuffer serialized() throws JsonProcessingException {
+        headers.clear();
+        headers.add("X-Rejected-Tier", String.valueOf(TIER));
+        headers.add("X-Rejected-Client", CLIENT);
+        headers.add("X-Rejected-Limit", RejectedLimit.CONCURRENCY.tag());
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        byte[] bytes = objectMapper.writeValueAsBytes(new RejectedResponseDto(CLIENT, TIER, RejectedLimit.CONCURRENCY));
+        return bufferFactory.wrap(bytes);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.utils.CapacityResults;
+import com.example.gateway.utils.RedisUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of an acquire script reply as the script returns it now, integers decoded by position with ScriptResults,
+ * and as it returned it before, a key/value list of strings mapped with RedisUtils.toMap and parsed.
+ * Run with -prof gc for the allocation per reply, the time of Redis and of the codec reading the reply is not included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptResultsBenchmark {
+    private final List<Object> acquiredReply = List.of(1L, 1L);
+    private final List<Object> rejectedReply = List.of(0L, 1L);
+    private final List<Object> acquiredKeyValueReply = List.of(
+            "acquired", "true", "source_tier", "1", "requested_tier", "1");
+    private final List<Object> rejectedKeyValueReply = List.of(
+            "acquired", "false", "error", "No capacity available", "requested_tier", "1");
+
+    @Benchmark
+    public AcquireCapacityResult acquired() {
+        return decode(acquiredReply);
+    }
+
+    @Benchmark
+    public AcquireCapacityResult acquiredKeyValue() {
+        return decodeKeyValue(acquiredKeyValueReply);
+    }
+
+    @Benchmark
+    public AcquireCapacityResult rejected() {
+        return decode(rejectedReply);
+    }
+
+    @Benchmark
+    public AcquireCapacityResult rejectedKeyValue() {
+        return decodeKeyValue(rejectedKeyValueReply);
+    }
+
+    /**
+     * Decodes the reply as TryAcquireCapacityScript does
+     */
+    private static AcquireCapacityResult decode(List<Object> result) {
+        int requestedTier = ScriptResults.intAt(result, 1);
+        return ScriptResults.acquireResult(ScriptResults.intAt(result, 0), requestedTier > 0 ? requestedTier : null);
+    }
+
+    /**
+     * Decodes the reply as TryAcquireCapacityScript did before the integer result protocol
+     */
+    private static AcquireCapacityResult decodeKeyValue(List<Object> result) {
+        Map<String, Object> resultMap = RedisUtils.toMap(result);
+
+        boolean acquired = Boolean.TRUE.equals(resultMap.get("acquired"));
+        Integer requestedTier = resultMap.get("requested_tier") == null ? null
+                : Integer.valueOf((String) resultMap.get("requested_tier"));
+
+        if (!acquired) {
+            return CapacityResults.failedAcquire((String) resultMap.get("error"), requestedTier);
+        }
+        return CapacityResults.successfulAcquire(Integer.parseInt((String) resultMap.get("source_tier")), requestedTier);
+    }
+}
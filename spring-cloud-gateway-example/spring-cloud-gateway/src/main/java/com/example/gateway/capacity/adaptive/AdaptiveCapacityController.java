@@ -0,0 +1,278 @@
+package com.example.gateway.capacity.adaptive;
+
+import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.dto.DynamicCapacityDto;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scales the total capacity with the downstream latency and error rate measured by CapacityFilter.
+ * <p>
+ * Follows the Gradient2 algorithm: every interval the average latency of the interval is compared with a long-term
+ * average, and the total capacity is multiplied by the gradient between them, so it shrinks as soon as the downstream
+ * slows down. The capacity only grows, by its square root, when the latency is within the tolerance and requests were
+ * actually limited, so an idle gateway does not inflate it. Errors above the max error rate back the capacity off.
+ * Decisions are smoothed, bounded relative to the default capacities and applied through
+ * CapacityManager.updateCapacities, keeping the ratios of the tiers.
+ * <p>
+ * Only a single gateway node may adapt the capacities: the latency is measured per node while the default capacities
+ * are shared through Redis, so with several adapting nodes the last writer wins. Default capacities updated by anyone
+ * else, e.g. through the admin API, become the base of the scaling and pause the adaptation for
+ * capacity.adaptive.pause-after-update.
+ */
+@Slf4j
+@Component
+public class AdaptiveCapacityController {
+    private static final double MIN_GRADIENT = 0.5;
+    // Long-term latency decay once the recent latency recovered, so the limit does not stay high after a slowdown
+    private static final double LONG_RTT_RECOVERY = 0.95;
+
+    private final CapacityManager capacityManager;
+    private final CapacityProperties.Adaptive adaptiveProperties;
+    // Default capacities the scaling is relative to, only changed by the adjust task
+    private Map<Integer, Integer> baseCapacities;
+    private double minLimit;
+    private double maxLimit;
+    private long pausedUntilNanos;
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder limitedRequests = new LongAdder();
+
+    private final Counter increases;
+    private final Counter decreases;
+
+    private volatile double limit;
+    private volatile double shortRttNanos;
+    private volatile double longRttNanos;
+    private volatile double gradient = 1.0;
+    private Map<Integer, Integer> appliedCapacities;
+
+    private Disposable adjustTask;
+
+    public AdaptiveCapacityController(
+            CapacityManager capacityManager,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.capacityManager = capacityManager;
+        this.adaptiveProperties = capacityProperties.getAdaptive();
+        rebase(Map.copyOf(limitProperties.getTiersCapacity()));
+        this.pausedUntilNanos = System.nanoTime();
+
+        this.increases = adjustmentCounter(meterRegistry, "increase");
+        this.decreases = adjustmentCounter(meterRegistry, "decrease");
+        Gauge.builder("capacity.adaptive.limit", this, controller -> controller.limit)
+                .description("Total capacity of all tiers chosen by the adaptive controller")
+                .register(meterRegistry);
+        Gauge.builder("capacity.adaptive.gradient", this, controller -> controller.gradient)
+                .description("Ratio of the long-term to the recent downstream latency, capped at 1")
+                .register(meterRegistry);
+        Gauge.builder("capacity.adaptive.rtt.short", this, controller -> controller.shortRttNanos / 1_000_000)
+                .description("Average downstream latency of the last interval")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("capacity.adaptive.rtt.long", this, controller -> controller.longRttNanos / 1_000_000)
+                .description("Long-term average downstream latency")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (adaptiveProperties.isEnabled()) {
+            log.info("Adapting the total capacity every {} between {} and {}",
+                    adaptiveProperties.getInterval(), minLimit, maxLimit);
+
+            adjustTask = Flux.interval(adaptiveProperties.getInterval())
+                    .onBackpressureDrop()
+                    .concatMap(tick -> adjust())
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (adjustTask != null) {
+            adjustTask.dispose();
+        }
+    }
+
+    /**
+     * Records a completed downstream request
+     *
+     * @param latencyNanos time the request held its permit
+     * @param failed true if the request failed or the downstream responded with a server error
+     */
+    public void recordResponse(long latencyNanos, boolean failed) {
+        if (!adaptiveProperties.isEnabled()) {
+            return;
+        }
+
+        samples.increment();
+        if (failed) {
+            errors.increment();
+        } else {
+            this.latencyNanos.add(latencyNanos);
+        }
+    }
+
+    /**
+     * Records a request which found no capacity available, the capacity only grows while requests are limited
+     */
+    public void recordLimited() {
+        if (adaptiveProperties.isEnabled()) {
+            limitedRequests.increment();
+        }
+    }
+
+    private Mono<Void> adjust() {
+        long intervalSamples = samples.sumThenReset();
+        long intervalErrors = errors.sumThenReset();
+        long intervalLatency = latencyNanos.sumThenReset();
+        long intervalLimited = limitedRequests.sumThenReset();
+
+        if (intervalSamples < adaptiveProperties.getMinSamples()) {
+            return Mono.empty();
+        }
+
+        long successfulSamples = intervalSamples - intervalErrors;
+        if (successfulSamples > 0) {
+            updateRtt((double) intervalLatency / successfulSamples);
+        }
+
+        double newGradient = longRttNanos > 0
+                ? adaptiveProperties.getRttTolerance() * longRttNanos / shortRttNanos
+                : 1.0;
+        newGradient = Math.max(MIN_GRADIENT, Math.min(1.0, newGradient));
+        double errorRate = (double) intervalErrors / intervalSamples;
+        if (errorRate > adaptiveProperties.getMaxErrorRate()) {
+            newGradient = Math.min(newGradient, adaptiveProperties.getErrorBackoff());
+        }
+        gradient = newGradient;
+
+        double limitGradient = newGradient;
+        boolean grow = newGradient >= 1.0 && intervalLimited > 0;
+        return capacityManager.getDefaultCapacities()
+                .flatMap(response -> {
+                    Map<Integer, Integer> defaults = response.getCapacities();
+                    if (!Boolean.TRUE.equals(response.getSuccess()) || defaults == null || defaults.isEmpty()) {
+                        return Mono.empty();
+                    }
+                    if (!defaults.equals(appliedCapacities)) {
+                        log.info("Default capacities were updated to {}, adapting from them after {}",
+                                defaults, adaptiveProperties.getPauseAfterUpdate());
+                        rebase(defaults);
+                        pausedUntilNanos = System.nanoTime() + adaptiveProperties.getPauseAfterUpdate().toNanos();
+                        return Mono.empty();
+                    }
+                    if (System.nanoTime() - pausedUntilNanos < 0) {
+                        return Mono.empty();
+                    }
+
+                    double currentLimit = limit;
+                    double growth = grow ? Math.sqrt(currentLimit) : 0;
+                    double smoothing = adaptiveProperties.getSmoothing();
+                    double newLimit = currentLimit * (1 - smoothing)
+                            + (currentLimit * limitGradient + growth) * smoothing;
+                    limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+
+                    return apply(scaledCapacities(limit), errorRate);
+                })
+                .onErrorResume(e -> {
+                    log.warn("Failed to read the default capacities to adapt: {}", e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Makes the capacities the base of the scaling, the bounds of the total capacity are relative to them
+     */
+    private void rebase(Map<Integer, Integer> capacities) {
+        baseCapacities = Map.copyOf(capacities);
+        appliedCapacities = baseCapacities;
+
+        int baseLimit = baseCapacities.values().stream().mapToInt(Integer::intValue).sum();
+        limit = baseLimit;
+        minLimit = Math.max(1, baseLimit * adaptiveProperties.getMinScale());
+        maxLimit = Math.max(minLimit, baseLimit * adaptiveProperties.getMaxScale());
+    }
+
+    private void updateRtt(double rttNanos) {
+        shortRttNanos = rttNanos;
+        if (longRttNanos == 0) {
+            longRttNanos = rttNanos;
+            return;
+        }
+
+        double longRtt = longRttNanos + (rttNanos - longRttNanos) * 2 / (adaptiveProperties.getLongWindow() + 1);
+        if (longRtt / rttNanos > 2) {
+            longRtt *= LONG_RTT_RECOVERY;
+        }
+        longRttNanos = longRtt;
+    }
+
+    private Mono<Void> apply(Map<Integer, Integer> capacities, double errorRate) {
+        Map<Integer, Integer> previous = appliedCapacities;
+        if (capacities.equals(previous)) {
+            return Mono.empty();
+        }
+
+        int previousTotal = previous.values().stream().mapToInt(Integer::intValue).sum();
+        int newTotal = capacities.values().stream().mapToInt(Integer::intValue).sum();
+        log.info("Adapting total capacity {} -> {} (latency {} ms, long-term {} ms, error rate {})",
+                previousTotal, newTotal, TimeUnit.NANOSECONDS.toMillis((long) shortRttNanos),
+                TimeUnit.NANOSECONDS.toMillis((long) longRttNanos), errorRate);
+
+        return capacityManager.updateCapacities(new DynamicCapacityDto(capacities))
+                .doOnNext(response -> {
+                    if (Boolean.TRUE.equals(response.getSuccess())) {
+                        appliedCapacities = capacities;
+                        (newTotal > previousTotal ? increases : decreases).increment();
+                    } else {
+                        log.warn("Failed to apply adapted capacities {}: {}", capacities, response.getError());
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.warn("Failed to apply adapted capacities {}: {}", capacities, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Splits the total capacity between the tiers in the ratios of the base capacities,
+     * every configured tier keeps at least one permit
+     */
+    private Map<Integer, Integer> scaledCapacities(double totalLimit) {
+        double baseTotal = baseCapacities.values().stream().mapToInt(Integer::intValue).sum();
+        Map<Integer, Integer> capacities = new LinkedHashMap<>(baseCapacities.size());
+        baseCapacities.forEach((tier, capacity) -> capacities.put(tier,
+                capacity == 0 ? 0 : (int) Math.max(1, Math.round(capacity * totalLimit / baseTotal))));
+        return capacities;
+    }
+
+    private static Counter adjustmentCounter(MeterRegistry meterRegistry, String direction) {
+        return Counter.builder("capacity.adaptive.adjustments")
+                .description("Total capacity changes applied by the adaptive controller")
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+}
@@ -1,148 +1,314 @@
 package com.example.gateway.capacity.filter;
 
-import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.capacity.adaptive.AdaptiveCapacityController;
+import com.example.gateway.capacity.filter.RejectionResponses.RenderedRejection;
+import com.example.gateway.capacity.manager.CapacityPools;
+import com.example.gateway.capacity.manager.CapacityPools.CapacityPool;
+import com.example.gateway.capacity.metrics.CapacityMetrics;
 import com.example.gateway.dto.AcquireCapacityResult;
-import com.example.gateway.dto.RejectedResponseDto;
+import com.example.gateway.dto.RejectedLimit;
+import com.example.gateway.dto.ReleaseReason;
 import com.example.gateway.properties.SpringCloudGatewayProperties;
 import com.example.gateway.resolver.ClientNameKeyResolver;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import io.micrometer.core.instrument.MeterRegistry;
-import lombok.RequiredArgsConstructor;
+import com.example.gateway.utils.CapacityResults;
+import com.example.gateway.utils.RequestUtils;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.OrderedGatewayFilter;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Admits requests within the capacity of the tiers, holding a permit of the capacity pool of the route
+ * until the response completes.
+ * <p>
+ * Routes use the pool named in their CapacityFilter, e.g. {@code CapacityFilter=reports}, or the pool with the same
+ * name as the route id, else the global pool. A route naming its pool in a CapacityFilter of its own is limited by
+ * that filter only, the CapacityFilter of the default filters lets its requests pass.
+ */
 @Slf4j
 @Component
-@RequiredArgsConstructor
-public class CapacityFilter extends AbstractGatewayFilterFactory<Object> {
-
-    private final CapacityManager capacityManager;
-    private final SpringCloudGatewayProperties limitProperties;
+public class CapacityFilter extends AbstractGatewayFilterFactory<CapacityFilter.Config> {
+    private final CapacityPools capacityPools;
     private final ClientNameKeyResolver clientNameKeyResolver;
-    private final ObjectMapper objectMapper;
-    private final MeterRegistry meterRegistry;
+    private final RejectionResponses rejectionResponses;
+    private final CapacityTimeouts capacityTimeouts;
+    private final CapacityMetrics capacityMetrics;
+    private final AdaptiveCapacityController adaptiveCapacityController;
+    private final SpringCloudGatewayProperties limitProperties;
+    // Limiting filter of each route by route id, resolved on the first request of the route
+    private final Map<String, RouteLimit> routeLimits = new ConcurrentHashMap<>();
+
+    public CapacityFilter(
+            CapacityPools capacityPools,
+            ClientNameKeyResolver clientNameKeyResolver,
+            RejectionResponses rejectionResponses,
+            CapacityTimeouts capacityTimeouts,
+            CapacityMetrics capacityMetrics,
+            AdaptiveCapacityController adaptiveCapacityController,
+            SpringCloudGatewayProperties limitProperties
+    ) {
+        super(Config.class);
+        this.capacityPools = capacityPools;
+        this.clientNameKeyResolver = clientNameKeyResolver;
+        this.rejectionResponses = rejectionResponses;
+        this.capacityTimeouts = capacityTimeouts;
+        this.capacityMetrics = capacityMetrics;
+        this.adaptiveCapacityController = adaptiveCapacityController;
+        this.limitProperties = limitProperties;
+    }
 
     @Override
-    public GatewayFilter apply(Object config) {
-        return (exchange, chain) -> {
-            String clientId = clientNameKeyResolver.resolve(exchange).block();
-            int requestedTier = limitProperties.getTierForClient(clientId);
+    public List<String> shortcutFieldOrder() {
+        return List.of("pool");
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        // A stateless filter instance per route, shared by all requests of the route
+        return new RouteCapacityFilter(capacityPools.resolve(config.getPool(), config.getRouteId()),
+                StringUtils.hasText(config.getPool()));
+    }
 
-            return Mono.usingWhen(
-                    //  Execute acquire capacity operation attempt
-                    capacityManager.tryAcquireCapacity(requestedTier, clientId),
+    /**
+     * Returns the capacity pool limiting the requests of the route, null if the route has no CapacityFilter
+     */
+    public CapacityPool poolOf(Route route) {
+        RouteCapacityFilter filter = limitingFilter(route);
+        return filter != null ? filter.pool() : null;
+    }
 
-                    // Handle acquire capacity operation result
-                    acquireResult -> handleAcquireCapacityOperationResult(exchange,
-                            chain, acquireResult, clientId, requestedTier),
+    /**
+     * Routes are built again on refresh, the limiting filters of the previous routes are resolved again
+     */
+    @EventListener(RefreshRoutesEvent.class)
+    public void onRefreshRoutes() {
+        routeLimits.clear();
+    }
 
-                    // Handle cleanup on completion when capacity was acquired to release capacity back into the pool
-                    acquireResult -> handleAcquireCapacityOperationCleanupOnCompletion(
-                            acquireResult, clientId),
+    /**
+     * Returns the limiting filter of the route, resolved once per route instance
+     */
+    private RouteCapacityFilter limitingFilter(Route route) {
+        RouteLimit limit = routeLimits.get(route.getId());
+        if (limit == null || limit.route() != route) {
+            // A request still routed by the previous routes during a refresh resolves its own route as well
+            limit = new RouteLimit(route, findLimitingFilter(route));
+            routeLimits.put(route.getId(), limit);
+        }
+        return limit.filter();
+    }
 
-                    // Handle cleanup on error to release capacity back into the pool or do nothing if no capacity was acquired
-                    (acquireResult, err) -> handleAcquireCapacityOperationCleanupOnError(
-                            acquireResult, err, clientId),
+    /**
+     * Returns the CapacityFilter limiting the requests of the route: the first one naming a pool, else the first one,
+     * so a route naming its pool is not limited by the default filters too
+     */
+    private static RouteCapacityFilter findLimitingFilter(Route route) {
+        RouteCapacityFilter limiting = null;
+        for (GatewayFilter filter : route.getFilters()) {
+            GatewayFilter delegate = filter instanceof OrderedGatewayFilter ordered ? ordered.getDelegate() : filter;
+            if (delegate instanceof RouteCapacityFilter capacityFilter) {
+                if (capacityFilter.namedPool()) {
+                    return capacityFilter;
+                }
+                if (limiting == null) {
+                    limiting = capacityFilter;
+                }
+            }
+        }
+        return limiting;
+    }
 
-                    // Handle cleanup on request cancellation when capacity was acquired to release capacity back into the pool
-                    // or do nothing if no capacity was acquired
-                    acquireResult -> handleAcquireCapacityOperationCleanupOnRequestCancellation(
-                            acquireResult, clientId)
-            );
-        };
+    private Mono<Void> filter(CapacityPool pool, ServerWebExchange exchange, GatewayFilterChain chain) {
+        return clientNameKeyResolver.resolveClient(exchange)
+                .flatMap(client -> acquireCapacity(pool, exchange, chain, client.name(), client.tier()));
     }
 
-    private Mono<Object> handleAcquireCapacityOperationCleanupOnRequestCancellation(
-            AcquireCapacityResult acquireResult,
-            String clientId
+    private Mono<Void> acquireCapacity(
+            CapacityPool pool,
+            ServerWebExchange exchange,
+            GatewayFilterChain chain,
+            String clientId,
+            int requestedTier
     ) {
-        log.warn("Capacity acquisition cancelled for client {} and tier {}", clientId, acquireResult.sourceTier());
-        log.debug("Acquired capacity operation result: {}", acquireResult);
+        long acquireStart = System.nanoTime();
+        SpringCloudGatewayProperties.RateLimit rateLimit = limitProperties.getRateLimitForTier(requestedTier);
 
-        if (acquireResult.acquired()) {
-            log.debug("Cleaning up acquired capacity for client {} and tier {}", clientId, acquireResult.sourceTier());
-            capacityManager.handleReleaseCapacity(acquireResult.sourceTier(), clientId);
-        } else {
-            log.debug("No capacity acquired for client {}, no cleanup needed", clientId);
-        }
+        // Requests arriving together on the same event loop acquire their permits with a single Redis call,
+        // rate limited requests check their rate and acquire their permit with a single call of their own
+        Mono<AcquireCapacityResult> acquire = rateLimit != null
+                ? pool.manager().tryAcquireRateLimitedCapacity(requestedTier, clientId, rateLimit)
+                : pool.acquireBatcher().tryAcquireCapacity(RequestUtils.getEventLoop(exchange), requestedTier, clientId);
 
-        return Mono.empty();
+        return acquire.flatMap(acquireResult -> {
+            if (acquireResult.acquired()) {
+                recordAcquire(clientId, requestedTier, acquireResult, acquireStart);
+                return handleAcquiredCapacity(pool, exchange, chain, acquireResult, clientId);
+            }
+            return handleExhaustedCapacity(pool, exchange, chain, acquireResult, clientId, requestedTier, acquireStart);
+        });
     }
 
-    private Mono<Object> handleAcquireCapacityOperationCleanupOnError(
+    private Mono<Void> handleExhaustedCapacity(
+            CapacityPool pool,
+            ServerWebExchange exchange,
+            GatewayFilterChain chain,
             AcquireCapacityResult acquireResult,
-            Throwable err,
-            String clientId
+            String clientId,
+            int requestedTier,
+            long acquireStart
     ) {
-        log.error("Error occurred during capacity acquisition for client {} and tier {}: {}",
-                clientId, acquireResult.sourceTier(), err.getMessage());
-        log.debug("Acquired capacity operation result: {}", acquireResult);
+        if (!CapacityResults.isCapacityExhausted(acquireResult)) {
+            recordAcquire(clientId, requestedTier, acquireResult, acquireStart);
+            return handleNotAcquiredCapacity(exchange, clientId, requestedTier, acquireResult);
+        }
 
-        if (acquireResult.acquired()) {
-            log.debug("Cleaning up acquired capacity for client {} and tier {}", clientId, acquireResult.sourceTier());
-            capacityManager.handleReleaseCapacity(acquireResult.sourceTier(), clientId);
-        } else {
-            log.debug("No capacity acquired for client {}, no cleanup needed", clientId);
+        if (pool.isGlobal()) {
+            adaptiveCapacityController.recordLimited();
         }
+        if (!pool.waitQueue().isEnabled()) {
+            recordAcquire(clientId, requestedTier, acquireResult, acquireStart);
+            return handleNotAcquiredCapacity(exchange, clientId, requestedTier, acquireResult);
+        }
+
+        // Wait for a release instead of rejecting a short spike right away, the outcome and latency of the acquire
+        // are those after the wait
+        return pool.waitQueue().await(requestedTier, clientId)
+                .doOnNext(waitResult -> recordAcquire(clientId, requestedTier, waitResult, acquireStart))
+                .flatMap(waitResult -> waitResult.acquired()
+                        ? handleAcquiredCapacity(pool, exchange, chain, waitResult, clientId)
+                        : handleNotAcquiredCapacity(exchange, clientId, requestedTier, waitResult));
+    }
 
-        return Mono.empty();
+    private void recordAcquire(String clientId, int requestedTier, AcquireCapacityResult result, long acquireStart) {
+        capacityMetrics.recordAcquire(clientId, requestedTier, result, System.nanoTime() - acquireStart);
     }
 
-    private Mono<Object> handleAcquireCapacityOperationCleanupOnCompletion(
+    private Mono<Void> handleAcquiredCapacity(
+            CapacityPool pool,
+            ServerWebExchange exchange,
+            GatewayFilterChain chain,
             AcquireCapacityResult acquireResult,
             String clientId
     ) {
-        log.debug("Cleaning up acquired capacity for client {} and tier {}", clientId, acquireResult.sourceTier());
-        log.debug("Acquired capacity operation result: {}", acquireResult);
-
-        if (acquireResult.acquired()) {
-            capacityManager.handleReleaseCapacity(acquireResult.sourceTier(), clientId);
+        if (log.isDebugEnabled()) {
+            log.debug("Successfully acquired capacity for client {} from tier {}, requested tier {}",
+                    clientId, acquireResult.sourceTier(), acquireResult.requestedTier());
         }
-        return Mono.empty();
+
+        long acquiredAt = System.nanoTime();
+        int sourceTier = acquireResult.sourceTier();
+        Duration timeout = capacityTimeouts.downstream(exchange, acquireResult.requestedTier());
+        // The adaptive capacity controller resizes the global pool only, by the latencies of its own routes
+        boolean adaptive = pool.isGlobal();
+
+        // Proceed with filter chain, the acquired capacity is released back into the pool once the response
+        // completes or fails, the client disconnects or the timeout passes. The timeout cancels the downstream call,
+        // so a stuck upstream holds the permit no longer than the timeout of its route and tier.
+        // The permit is released before the timeout response is written, other errors are left to the error handler.
+        return chain.filter(exchange)
+                .timeout(timeout)
+                .doOnSuccess(ignored -> {
+                    if (adaptive) {
+                        adaptiveCapacityController.recordResponse(
+                                System.nanoTime() - acquiredAt, isServerError(exchange));
+                    }
+                    capacityMetrics.recordRelease(sourceTier, ReleaseReason.COMPLETED);
+                })
+                .doOnError(e -> {
+                    if (adaptive) {
+                        adaptiveCapacityController.recordResponse(System.nanoTime() - acquiredAt, true);
+                    }
+                    capacityMetrics.recordRelease(sourceTier,
+                            e instanceof TimeoutException ? ReleaseReason.TIMEOUT : ReleaseReason.ERROR);
+                })
+                .doOnCancel(() -> capacityMetrics.recordRelease(sourceTier, ReleaseReason.CANCELLED))
+                .doFinally(signal -> {
+                    capacityMetrics.recordHoldTime(sourceTier, System.nanoTime() - acquiredAt);
+                    handleCapacityRelease(pool, acquireResult, clientId, signal);
+                })
+                .onErrorResume(TimeoutException.class, e -> handleDownstreamTimeout(exchange, clientId, timeout, e));
     }
 
-    private Mono<Void> handleAcquireCapacityOperationResult(
+    private Mono<Void> handleDownstreamTimeout(
             ServerWebExchange exchange,
-            GatewayFilterChain chain,
-            AcquireCapacityResult acquireResult,
             String clientId,
-            int requestedTier
+            Duration timeout,
+            TimeoutException timeoutException
     ) {
-        log.debug("Acquired capacity operation result: {}", acquireResult);
+        log.warn("Downstream response for client {} timed out after {}, capacity released", clientId, timeout);
 
-        if (!acquireResult.acquired()) {
-            // Reject early if no capacity
-            log.error("Failed to acquire capacity for client {} and requested tier {}",
-                    clientId, requestedTier);
-            return handleRejection(exchange, requestedTier, clientId)
-                    .timeout(Duration.ofSeconds(10)) // Safety timeout
-                    .onErrorResume(e -> {
-                        log.error("Dynamic capacity error. Rejection handling timed out or failed: {}", e.getMessage());
-                        return Mono.empty();
-                    });
+        ServerHttpResponse response = exchange.getResponse();
+        if (response.isCommitted()) {
+            // Part of the response is already sent, only closing the connection tells the client it is incomplete
+            return Mono.error(timeoutException);
         }
 
-        log.debug("Successfully acquired capacity for client {} from tier {}, requested tier {}",
-                clientId, acquireResult.sourceTier(), requestedTier);
+        // Headers copied from an upstream response which never arrived in full do not describe the timeout response
+        response.getHeaders().clear();
+        response.setStatusCode(HttpStatus.GATEWAY_TIMEOUT);
+        return response.setComplete();
+    }
 
-        // Otherwise proceed with filter chain
-        return chain.filter(exchange)
-                .timeout(Duration.ofSeconds(30)) // Safety timeout for stuck responses
+    private static boolean isServerError(ServerWebExchange exchange) {
+        HttpStatusCode status = exchange.getResponse().getStatusCode();
+        return status != null && status.is5xxServerError();
+    }
+
+    private void handleCapacityRelease(
+            CapacityPool pool,
+            AcquireCapacityResult acquireResult,
+            String clientId,
+            SignalType signal
+    ) {
+        // Cancellations are expected on client disconnects and counted by capacity.permit.released
+        if (log.isDebugEnabled()) {
+            log.debug("Cleaning up acquired capacity for client {} and tier {} of pool {} on {}",
+                    clientId, acquireResult.sourceTier(), pool.name(), signal);
+        }
+
+        pool.manager().handleReleaseCapacity(acquireResult, clientId);
+    }
+
+    private Mono<Void> handleNotAcquiredCapacity(
+            ServerWebExchange exchange,
+            String clientId,
+            int requestedTier,
+            AcquireCapacityResult acquireResult
+    ) {
+        if (log.isDebugEnabled()) {
+            log.debug("Failed to acquire capacity for client {} and requested tier {}: {}",
+                    clientId, requestedTier, acquireResult.error());
+        }
+
+        // Reject early if no capacity
+        return handleRejection(exchange, requestedTier, clientId, CapacityResults.rejectedLimit(acquireResult))
+                .timeout(capacityTimeouts.rejection()) // Safety timeout
                 .onErrorResume(e -> {
-                    log.warn("Downstream response processing failed or timed out for client {}: {}",
-                            clientId, e.getMessage());
+                    log.error("Dynamic capacity error. Rejection handling timed out or failed: {}", e.getMessage());
                     return Mono.empty();
                 });
     }
@@ -150,28 +316,84 @@ public class CapacityFilter extends AbstractGatewayFilterFactory<Object> {
     private Mono<Void> handleRejection(
             ServerWebExchange exchange,
             int tier,
-            String clientId
+            String clientId,
+            RejectedLimit rejectedLimit
     ) {
-        log.debug("Request rejected for client {} (requested tier {}): capacity exhausted", clientId, tier);
-        log.trace("Constructing rejection response for return");
+        if (log.isDebugEnabled()) {
+            log.debug("Request rejected for client {} (requested tier {}): {} limit reached",
+                    clientId, tier, rejectedLimit.tag());
+        }
+
+        // The body and header values are rendered once per client, tier and limit, rejecting allocates next to nothing
+        RenderedRejection rejection;
+        try {
+            rejection = rejectionResponses.get(clientId, tier, rejectedLimit);
+        } catch (IllegalStateException e) {
+            return Mono.error(e);
+        }
 
         ServerHttpResponse response = exchange.getResponse();
         response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
-        response.getHeaders().add("X-Rejected-Tier", String.valueOf(tier));
-        response.getHeaders().add("X-Rejected-Client", clientId);
-        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        HttpHeaders headers = response.getHeaders();
+        headers.set("X-Rejected-Tier", rejection.tier());
+        headers.set("X-Rejected-Client", clientId);
+        headers.set("X-Rejected-Limit", rejection.limit());
+        headers.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        headers.set(HttpHeaders.CONTENT_LENGTH, rejection.contentLength());
+
+        // Wrapping shares the rendered bytes instead of copying them into a new buffer
+        DataBuffer buffer = response.bufferFactory().wrap(rejection.body());
+        return response.writeWith(Mono.just(buffer));
+    }
 
-        RejectedResponseDto dto = new RejectedResponseDto(clientId, tier);
+    /**
+     * Capacity filter of a route, bound to the capacity pool of the route
+     */
+    private final class RouteCapacityFilter implements GatewayFilter {
+        private final CapacityPool pool;
+        private final boolean namedPool;
 
-        byte[] bytes;
-        try {
-            bytes = objectMapper.writeValueAsBytes(dto);
-        } catch (JsonProcessingException e) {
-            return Mono.error(e);
+        private RouteCapacityFilter(CapacityPool pool, boolean namedPool) {
+            this.pool = pool;
+            this.namedPool = namedPool;
         }
 
-        DataBuffer buffer = response.bufferFactory().wrap(bytes);
-        log.trace("Returning rejection response to client: {}", dto);
-        return response.writeWith(Mono.just(buffer));
+        private CapacityPool pool() {
+            return pool;
+        }
+
+        private boolean namedPool() {
+            return namedPool;
+        }
+
+        @Override
+        public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+            // Another CapacityFilter of the route limits its requests, e.g. the route names its pool
+            // and this filter is one of the default filters
+            Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+            if (route != null && limitingFilter(route) != this) {
+                return chain.filter(exchange);
+            }
+            return CapacityFilter.this.filter(pool, exchange, chain);
+        }
+
+        @Override
+        public String toString() {
+            return "CapacityFilter[pool=" + pool.name() + "]";
+        }
+    }
+
+    /**
+     * Limiting filter of a route, null if the route has no CapacityFilter
+     */
+    private record RouteLimit(Route route, RouteCapacityFilter filter) {}
+
+    @Data
+    public static class Config implements HasRouteId {
+        /**
+         * Name of the capacity pool of the route, the pool named after the route id or the global pool if not set
+         */
+        private String pool;
+        private String routeId;
     }
 }
@@ -0,0 +1,119 @@
+package com.example.gateway.capacity.filter;
+
+import com.example.gateway.properties.CapacityProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timeouts of CapacityFilter. Downstream calls made while holding a permit are timed out per route and requested tier.
+ * <p>
+ * A route overrides the capacity.timeouts settings with its metadata, either for all tiers or per tier:
+ * <pre>
+ * metadata:
+ *   capacity-timeout: 5s
+ *   capacity-tier-timeouts:
+ *     3: 2s
+ * </pre>
+ * Values are durations such as 5s or 500ms, plain numbers are milliseconds like the response-timeout metadata of
+ * Spring Cloud Gateway. The metadata is parsed once per route, routes are weakly referenced so refreshed routes
+ * are parsed again.
+ */
+@Slf4j
+@Component
+public class CapacityTimeouts {
+    public static final String TIMEOUT_METADATA = "capacity-timeout";
+    public static final String TIER_TIMEOUTS_METADATA = "capacity-tier-timeouts";
+
+    private final CapacityProperties.Timeouts timeoutProperties;
+    private final Cache<Route, RouteTimeouts> timeoutsByRoute = Caffeine.newBuilder().weakKeys().build();
+
+    public CapacityTimeouts(CapacityProperties capacityProperties) {
+        this.timeoutProperties = capacityProperties.getTimeouts();
+    }
+
+    /**
+     * Returns the downstream timeout of the matched route for the requested tier
+     */
+    public Duration downstream(ServerWebExchange exchange, int tier) {
+        Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+        if (route != null) {
+            Duration timeout = timeoutsByRoute.get(route, CapacityTimeouts::parse).forTier(tier);
+            if (timeout != null) {
+                return timeout;
+            }
+        }
+        return timeoutProperties.getDownstream(tier);
+    }
+
+    /**
+     * Returns the maximum time writing a rejection response may take
+     */
+    public Duration rejection() {
+        return timeoutProperties.getRejection();
+    }
+
+    private static RouteTimeouts parse(Route route) {
+        Map<String, Object> metadata = route.getMetadata();
+        Duration timeout = toDuration(route, TIMEOUT_METADATA, metadata.get(TIMEOUT_METADATA));
+
+        Map<Integer, Duration> tierTimeouts = new HashMap<>();
+        if (metadata.get(TIER_TIMEOUTS_METADATA) instanceof Map<?, ?> tiers) {
+            tiers.forEach((tier, value) -> {
+                Duration tierTimeout = toDuration(route, TIER_TIMEOUTS_METADATA, value);
+                if (tierTimeout == null) {
+                    return;
+                }
+                try {
+                    tierTimeouts.put(Integer.parseInt(String.valueOf(tier)), tierTimeout);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring {} of route {}, invalid tier: {}", TIER_TIMEOUTS_METADATA, route.getId(), tier);
+                }
+            });
+        }
+
+        return new RouteTimeouts(timeout, Map.copyOf(tierTimeouts));
+    }
+
+    private static Duration toDuration(Route route, String name, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            Duration timeout = value instanceof Number millis
+                    ? Duration.ofMillis(millis.longValue())
+                    : DurationStyle.detectAndParse(String.valueOf(value));
+            if (!timeout.isNegative() && !timeout.isZero()) {
+                return timeout;
+            }
+        } catch (IllegalArgumentException e) {
+            // Logged below
+        }
+
+        log.warn("Ignoring {} of route {}, invalid timeout: {}", name, route.getId(), value);
+        return null;
+    }
+
+    /**
+     * Timeouts set by the metadata of a route
+     *
+     * @param timeout timeout of all tiers, null if not set
+     * @param tierTimeouts timeouts per requested tier
+     */
+    private record RouteTimeouts(Duration timeout, Map<Integer, Duration> tierTimeouts) {
+        private Duration forTier(int tier) {
+            Duration tierTimeout = tierTimeouts.get(tier);
+            return tierTimeout != null ? tierTimeout : timeout;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.gateway.capacity.filter;
+
+import com.example.gateway.dto.RejectedLimit;
+import com.example.gateway.dto.RejectedResponseDto;
+import com.example.gateway.properties.CapacityProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rejection responses of CapacityFilter rendered once per client, tier and rejected limit.
+ * <p>
+ * Rejections spike exactly when the gateway is overloaded, so the JSON body and the header values are rendered
+ * on the first rejection and reused by all later ones. The body is wrapped into the response buffer without copying,
+ * and the lookup allocates nothing once the response is rendered.
+ */
+@Component
+public class RejectionResponses {
+    private static final RejectedLimit[] LIMITS = RejectedLimit.values();
+
+    private final ObjectMapper objectMapper;
+    private final Cache<String, ClientRejections> rejectionsByClient;
+
+    public RejectionResponses(
+            ObjectMapper objectMapper,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.objectMapper = objectMapper;
+        Cache<String, ClientRejections> cache = Caffeine.newBuilder()
+                .maximumSize(capacityProperties.getRejection().getMaximumCachedClients())
+                .recordStats()
+                .build();
+        this.rejectionsByClient = CaffeineCacheMetrics.monitor(meterRegistry, cache, "rejection_responses");
+    }
+
+    /**
+     * Returns the rejection response of the client and tier for the rejected limit, rendering it on first use
+     *
+     * @throws IllegalStateException if the response body cannot be serialized
+     */
+    public RenderedRejection get(String clientId, int tier, RejectedLimit rejectedLimit) {
+        RenderedRejection[] rejections = rejectionsByClient.get(clientId, key -> new ClientRejections()).forTier(tier);
+
+        RenderedRejection rejection = rejections[rejectedLimit.ordinal()];
+        if (rejection == null) {
+            // Racing renders produce equal responses, whichever is stored last wins
+            rejection = render(clientId, tier, rejectedLimit);
+            rejections[rejectedLimit.ordinal()] = rejection;
+        }
+        return rejection;
+    }
+
+    private RenderedRejection render(String clientId, int tier, RejectedLimit rejectedLimit) {
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(new RejectedResponseDto(clientId, tier, rejectedLimit));
+            return new RenderedRejection(body, String.valueOf(body.length), String.valueOf(tier), rejectedLimit.tag());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to render the rejection response for client " + clientId, e);
+        }
+    }
+
+    /**
+     * Rendered rejection response
+     *
+     * @param body JSON body, shared by all responses and never modified
+     * @param contentLength value of the Content-Length header
+     * @param tier value of the X-Rejected-Tier header
+     * @param limit value of the X-Rejected-Limit header
+     */
+    public record RenderedRejection(byte[] body, String contentLength, String tier, String limit) {}
+
+    /**
+     * Rendered rejections of a single client by tier, indexed by the rejected limit
+     */
+    private static final class ClientRejections {
+        private final Map<Integer, RenderedRejection[]> byTier = new ConcurrentHashMap<>();
+
+        private RenderedRejection[] forTier(int tier) {
+            return byTier.computeIfAbsent(tier, key -> new RenderedRejection[LIMITS.length]);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.dto.AcquireCapacityRequest;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups acquire operations arriving concurrently on the same event loop into a single
+ * CapacityManager.tryAcquireCapacities call.
+ * <p>
+ * Acquire operations are collected in a batch owned by the event loop thread, so collecting needs no synchronization.
+ * The batch is flushed by a task submitted to the same event loop, which runs once the event loop has processed
+ * the requests it is currently reading, or after the configured window, or as soon as max-batch-size operations
+ * are collected. Operations requested outside of an event loop are passed to the CapacityManager directly.
+ */
+@Slf4j
+@Component
+public class CapacityAcquireBatcher {
+    private final CapacityManager capacityManager;
+    private final CapacityProperties.AcquireBatch batchProperties;
+    private final DistributionSummary batchSize;
+
+    private final FastThreadLocal<List<PendingAcquire>> batches = new FastThreadLocal<>() {
+        @Override
+        protected List<PendingAcquire> initialValue() {
+            return new ArrayList<>(batchProperties.getMaxBatchSize());
+        }
+    };
+
+    public CapacityAcquireBatcher(
+            CapacityManager capacityManager,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.capacityManager = capacityManager;
+        this.batchProperties = capacityProperties.getAcquireBatch();
+        this.batchSize = DistributionSummary.builder("capacity.acquire.batch.size")
+                .description("Number of acquire operations sent to the capacity manager at once")
+                .register(meterRegistry);
+
+        if (batchProperties.isEnabled()) {
+            log.info("Batching capacity acquire operations per event loop, window {}, up to {} operations per batch",
+                    batchProperties.getWindow(), batchProperties.getMaxBatchSize());
+        }
+    }
+
+    /**
+     * Acquire a permit of the tier with the next batch of the event loop handling the request
+     *
+     * @param eventLoop event loop handling the request, or null if unknown
+     * @param tier requested tier
+     * @param clientId client requesting the permit
+     * @return AcquireCapacityResult once the batch is executed
+     */
+    public Mono<AcquireCapacityResult> tryAcquireCapacity(EventLoop eventLoop, int tier, String clientId) {
+        if (!batchProperties.isEnabled() || eventLoop == null) {
+            return capacityManager.tryAcquireCapacity(tier, clientId);
+        }
+
+        return Mono.defer(() -> eventLoop.inEventLoop()
+                ? enqueue(eventLoop, new AcquireCapacityRequest(tier, clientId))
+                : capacityManager.tryAcquireCapacity(tier, clientId));
+    }
+
+    private Mono<AcquireCapacityResult> enqueue(EventLoop eventLoop, AcquireCapacityRequest request) {
+        return Mono.create(sink -> {
+            PendingAcquire pending = new PendingAcquire(request, sink);
+            sink.onCancel(pending::cancel);
+
+            List<PendingAcquire> batch = batches.get();
+            batch.add(pending);
+
+            if (batch.size() >= batchProperties.getMaxBatchSize()) {
+                flush();
+            } else if (batch.size() == 1) {
+                scheduleFlush(eventLoop);
+            }
+        });
+    }
+
+    private void scheduleFlush(EventLoop eventLoop) {
+        Duration window = batchProperties.getWindow();
+        if (window.isZero()) {
+            eventLoop.execute(this::flush);
+        } else {
+            eventLoop.schedule(this::flush, window.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush() {
+        List<PendingAcquire> collected = batches.get();
+        if (collected.isEmpty()) {
+            return;
+        }
+        batches.set(new ArrayList<>(batchProperties.getMaxBatchSize()));
+
+        // Requests cancelled while waiting for the flush do not need a permit anymore
+        List<PendingAcquire> batch = collected.stream().filter(pending -> !pending.isCancelled()).toList();
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchSize.record(batch.size());
+
+        List<AcquireCapacityRequest> requests = batch.stream().map(PendingAcquire::request).toList();
+        capacityManager.tryAcquireCapacities(requests)
+                .subscribe(
+                        results -> {
+                            for (int i = 0; i < batch.size(); i++) {
+                                batch.get(i).complete(i < results.size() ? results.get(i)
+                                        : CapacityResults.failedAcquire("Missing batch result", requests.get(i).tier()));
+                            }
+                        },
+                        error -> {
+                            log.error("Failed to acquire capacity for a batch of {} requests", batch.size(), error);
+                            batch.forEach(pending -> pending.complete(
+                                    CapacityResults.failedAcquire("Error executing script", pending.request().tier())));
+                        }
+                );
+    }
+
+    /**
+     * Acquire operation waiting for its batch, a permit acquired for an already cancelled operation is released
+     */
+    private final class PendingAcquire {
+        private final AcquireCapacityRequest request;
+        private final MonoSink<AcquireCapacityResult> sink;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private PendingAcquire(AcquireCapacityRequest request, MonoSink<AcquireCapacityResult> sink) {
+            this.request = request;
+            this.sink = sink;
+        }
+
+        private AcquireCapacityRequest request() {
+            return request;
+        }
+
+        private boolean isCancelled() {
+            return done.get();
+        }
+
+        private void cancel() {
+            done.set(true);
+        }
+
+        private void complete(AcquireCapacityResult result) {
+            if (done.compareAndSet(false, true)) {
+                sink.success(result);
+            } else if (result.acquired()) {
+                capacityManager.handleReleaseCapacity(result, request.clientId());
+            }
+        }
+    }
+}
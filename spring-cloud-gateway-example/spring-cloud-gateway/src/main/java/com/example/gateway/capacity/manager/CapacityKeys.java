@@ -0,0 +1,107 @@
+package com.example.gateway.capacity.manager;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Redis keys of a single capacity store.
+ * <p>
+ * All keys of a store share the same hash tag, so they are located in the same Redis Cluster slot
+ * and can be used together by a single Lua script. Sharded stores use a hash tag per shard,
+ * so their keys are spread across the slots of the cluster, and capacity pools use a hash tag per pool.
+ *
+ * @param capacity Redis hash key of the live capacities
+ * @param defaultCapacity Redis hash key of the default capacities
+ * @param freeTiers Redis sorted set key of tiers with free capacity
+ * @param leases Redis hash key of permits leased by gateway nodes
+ * @param leaseExpiry Redis sorted set key of lease expiry times of gateway nodes
+ * @param releasedChannel Redis pub/sub channel notified when an exhausted tier gets capacity again
+ * @param fairShare Redis hash key of the permits held, lent and borrowed per tier with weighted fair scheduling
+ * @param scheduling Redis hash key of the weighted fair scheduling settings per tier
+ * @param releasedBatchPrefix prefix of the Redis keys marking the release batches already applied
+ * @param clientInFlightPrefix prefix of the Redis keys counting the in-flight requests of each client
+ * @param rateLimitPrefix prefix of the Redis keys of the token bucket of each client
+ */
+public record CapacityKeys(
+        String capacity,
+        String defaultCapacity,
+        String freeTiers,
+        String leases,
+        String leaseExpiry,
+        String releasedChannel,
+        String fairShare,
+        String scheduling,
+        String releasedBatchPrefix,
+        String clientInFlightPrefix,
+        String rateLimitPrefix
+) {
+    private static final String HASH_TAG = "spring_cloud_gateway";
+
+    public static final CapacityKeys DEFAULT = withHashTag(HASH_TAG);
+
+    public static CapacityKeys forShard(int shard) {
+        return withHashTag(HASH_TAG + ":shard_" + shard);
+    }
+
+    /**
+     * Returns the keys of all capacity stores, a single store uses the default keys
+     */
+    public static List<CapacityKeys> forShards(int shards) {
+        return forShards(HASH_TAG, shards);
+    }
+
+    /**
+     * Returns the keys of all capacity stores of a capacity pool, the stores of a pool share no key
+     * with the global stores or with other pools
+     */
+    public static List<CapacityKeys> forPool(String pool, int shards) {
+        return forShards(HASH_TAG + ":pool_" + pool, shards);
+    }
+
+    private static List<CapacityKeys> forShards(String hashTag, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of capacity shards must be positive: " + shards);
+        }
+        return shards == 1
+                ? List.of(withHashTag(hashTag))
+                : IntStream.range(0, shards).mapToObj(shard -> withHashTag(hashTag + ":shard_" + shard)).toList();
+    }
+
+    private static CapacityKeys withHashTag(String hashTag) {
+        String prefix = "{" + hashTag + "}:";
+        return new CapacityKeys(
+                prefix + "capacity_map",
+                prefix + "default_capacities",
+                prefix + "free_tiers",
+                prefix + "leases",
+                prefix + "lease_expiry",
+                prefix + "capacity_released",
+                prefix + "fair_share",
+                prefix + "scheduling",
+                prefix + "released_batch:",
+                prefix + "client_in_flight:",
+                prefix + "rate_limit:"
+        );
+    }
+
+    /**
+     * Returns the Redis key marking the release batch as applied
+     */
+    public String releasedBatch(String batchId) {
+        return releasedBatchPrefix + batchId;
+    }
+
+    /**
+     * Returns the Redis key counting the in-flight requests of the client
+     */
+    public String clientInFlight(String clientId) {
+        return clientInFlightPrefix + clientId;
+    }
+
+    /**
+     * Returns the Redis key of the token bucket of the client
+     */
+    public String rateLimit(String clientId) {
+        return rateLimitPrefix + clientId;
+    }
+}
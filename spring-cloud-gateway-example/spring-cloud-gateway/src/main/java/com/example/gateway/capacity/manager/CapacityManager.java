@@ -1,16 +1,94 @@
 package com.example.gateway.capacity.manager;
 
+import com.example.gateway.dto.AcquireCapacityRequest;
 import com.example.gateway.dto.AcquireCapacityResult;
 import com.example.gateway.dto.DynamicCapacityDto;
 import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.InFlightPermitsResponse;
 import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.utils.CapacityResults;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Map;
+
 public interface CapacityManager {
     Mono<AcquireCapacityResult> tryAcquireCapacity(int tier, String clientId);
+
+    /**
+     * Acquire a permit for each of the requests, returning the results in the order of the requests.
+     * Implementations backed by a remote store should override it to acquire all permits in a single call.
+     */
+    default Mono<List<AcquireCapacityResult>> tryAcquireCapacities(List<AcquireCapacityRequest> requests) {
+        return Flux.fromIterable(requests)
+                .concatMap(request -> tryAcquireCapacity(request.tier(), request.clientId()))
+                .collectList();
+    }
+
+    /**
+     * Acquire a permit of the tier only if the client is within its rate limit, checking both limits at once.
+     * A request within the rate limit uses up its share of the rate even if no permit is available.
+     * Engines which do not support rate limits reject the request.
+     */
+    default Mono<AcquireCapacityResult> tryAcquireRateLimitedCapacity(
+            int tier,
+            String clientId,
+            SpringCloudGatewayProperties.RateLimit rateLimit
+    ) {
+        return Mono.just(CapacityResults.failedAcquire(
+                "Rate limits are not supported by " + getClass().getSimpleName(), tier));
+    }
+
     Mono<ReleaseCapacityResult> releaseCapacity(int tier, String clientId);
     Mono<DynamicCapacityResponse> getCurrentCapacities();
     Mono<DynamicCapacityResponse> getDefaultCapacities();
     Mono<DynamicCapacityResponse> updateCapacities(DynamicCapacityDto dto);
+
+    /**
+     * Returns the permits currently held by each gateway node, for engines tracking them per node
+     */
+    default Mono<InFlightPermitsResponse> getInFlightPermits() {
+        return Mono.just(InFlightPermitsResponse.builder()
+                .success(false)
+                .error("In-flight permits are not tracked per node by " + getClass().getSimpleName())
+                .build());
+    }
+
+    /**
+     * Emits the tier number whenever a tier gets free capacity again, used to wake up requests waiting for capacity.
+     * Notifications are best effort, engines which do not support them never emit.
+     */
+    default Flux<Integer> releaseEvents() {
+        return Flux.never();
+    }
+
     void handleReleaseCapacity(Integer tierToRelease, String clientId);
+
+    /**
+     * Releases the permit of a successful acquire result. Engines granting permits in a degraded mode while their
+     * store is unavailable override it to release such permits locally.
+     */
+    default void handleReleaseCapacity(AcquireCapacityResult acquireResult, String clientId) {
+        handleReleaseCapacity(acquireResult.sourceTier(), clientId);
+    }
+
+    /**
+     * Prepares the engine for traffic before the node reports ready: completes once the default capacities are
+     * initialized and the given number of connections to the capacity store is open, fails if the capacities
+     * could not be initialized. Engines without a remote store are ready right away.
+     */
+    default Mono<Void> warmUp(int connections) {
+        return Mono.empty();
+    }
+
+    /**
+     * Creates the manager of a capacity pool, with tier capacities of its own and no permit shared with this manager
+     * or with other pools. Engines which do not support capacity pools fail, so the pools are rejected at startup.
+     */
+    default CapacityManager forPool(String pool, Map<Integer, Integer> tiersCapacity) {
+        throw new IllegalStateException("Capacity pools are not supported by " + getClass().getSimpleName()
+                + ", remove capacity.pools");
+    }
 }
@@ -0,0 +1,170 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Capacity pools shared by groups of routes, each with a capacity manager, acquire batcher and wait queue of its own.
+ * <p>
+ * The global pool holds the spring-cloud-gateway.tiers-capacity and serves all routes without a pool of their own.
+ * Pools configured in capacity.pools keep their permits in capacity stores of their own, so a slow upstream exhausting
+ * the capacity of its pool does not take the capacity of the routes of other pools. Pools are used by the routes
+ * naming them in their CapacityFilter, or by the route with the same id as the pool. The global pool is named so
+ * that no configured pool or route id takes its name by accident.
+ */
+@Slf4j
+@Component
+public class CapacityPools {
+    public static final String GLOBAL_POOL = "@global";
+
+    private final CapacityPool globalPool;
+    // Pools by name, sorted by name, including the global pool
+    private final Map<String, CapacityPool> pools;
+
+    public CapacityPools(
+            CapacityManager capacityManager,
+            CapacityAcquireBatcher capacityAcquireBatcher,
+            CapacityWaitQueue capacityWaitQueue,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        Map<Integer, Integer> globalCapacity = limitProperties.getTiersCapacity();
+        this.globalPool = new CapacityPool(GLOBAL_POOL, globalCapacity, capacityManager, capacityAcquireBatcher,
+                capacityWaitQueue);
+
+        Map<String, CapacityPool> pools = new TreeMap<>();
+        pools.put(GLOBAL_POOL, globalPool);
+        capacityProperties.getPools().forEach((name, pool) -> {
+            Map<Integer, Integer> tiersCapacity = pool.getTiersCapacity();
+            if (GLOBAL_POOL.equals(name)) {
+                throw new IllegalStateException("Capacity pool " + GLOBAL_POOL
+                        + " is the global pool, set its capacity with spring-cloud-gateway.tiers-capacity");
+            }
+            if (!tiersCapacity.keySet().containsAll(globalCapacity.keySet())) {
+                throw new IllegalStateException("Capacity pool " + name + " has no capacity for tiers "
+                        + globalCapacity.keySet() + ", set capacity.pools." + name + ".tiers-capacity of every tier");
+            }
+
+            CapacityManager poolManager = capacityManager.forPool(name, tiersCapacity);
+            pools.put(name, new CapacityPool(
+                    name,
+                    Map.copyOf(tiersCapacity),
+                    poolManager,
+                    new CapacityAcquireBatcher(poolManager, capacityProperties, meterRegistry),
+                    new CapacityWaitQueue(poolManager, capacityProperties, meterRegistry, name)
+            ));
+        });
+        this.pools = Collections.unmodifiableMap(pools);
+
+        if (pools.size() > 1) {
+            log.info("Capacity pools: {}", pools.keySet());
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        // The wait queue of the global pool is a bean started on its own
+        namedPools().forEach(pool -> pool.waitQueue().start());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        namedPools().forEach(pool -> pool.waitQueue().shutdown());
+    }
+
+    public CapacityPool global() {
+        return globalPool;
+    }
+
+    /**
+     * Returns the pool with the name, null if there is no such pool
+     */
+    public CapacityPool get(String name) {
+        return pools.get(name);
+    }
+
+    /**
+     * Returns all pools sorted by name, including the global pool
+     */
+    public Collection<CapacityPool> all() {
+        return pools.values();
+    }
+
+    /**
+     * Returns the pool of a route: the pool named by the route, else the pool with the same name as the route id,
+     * else the global pool
+     *
+     * @param pool name of the pool given by the route, or null
+     * @param routeId id of the route
+     * @throws IllegalArgumentException if the route names a pool which is not configured
+     */
+    public CapacityPool resolve(String pool, String routeId) {
+        if (pool != null && !pool.isBlank()) {
+            CapacityPool named = pools.get(pool);
+            if (named == null) {
+                throw new IllegalArgumentException("Capacity pool " + pool + " of route " + routeId
+                        + " is not configured, configured pools: " + pools.keySet());
+            }
+            return named;
+        }
+
+        // Only configured pools are named after routes, a route is never bound to the global pool by its id
+        CapacityPool named = routeId != null ? pools.get(routeId) : null;
+        return named != null ? named : globalPool;
+    }
+
+    /**
+     * Initializes the capacities of the pools and opens their connections, the global pool is warmed up
+     * by CapacityWarmUp with its own capacity manager
+     */
+    public Mono<Void> warmUp() {
+        return Flux.fromIterable(namedPools())
+                .flatMap(pool -> pool.manager().warmUp(0))
+                .then();
+    }
+
+    private Collection<CapacityPool> namedPools() {
+        return pools.values().stream().filter(pool -> pool != globalPool).toList();
+    }
+
+    /**
+     * Capacity pool of a group of routes
+     *
+     * @param name name of the pool
+     * @param tiersCapacity default capacity of every tier of the pool
+     * @param manager capacity manager of the pool
+     * @param acquireBatcher acquire batcher of the pool
+     * @param waitQueue wait queue of the requests of the pool
+     */
+    public record CapacityPool(
+            String name,
+            Map<Integer, Integer> tiersCapacity,
+            CapacityManager manager,
+            CapacityAcquireBatcher acquireBatcher,
+            CapacityWaitQueue waitQueue
+    ) {
+        /**
+         * Returns the default capacity of all tiers of the pool, the most requests the pool admits at once
+         */
+        public int totalCapacity() {
+            return tiersCapacity.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        public boolean isGlobal() {
+            return GLOBAL_POOL.equals(name);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.capacity.scripts.ReleaseCapacityBatchScript;
+import com.example.gateway.capacity.scripts.ReleaseCapacityFairScript;
+import com.example.gateway.dto.ReleaseCapacityBatchResult;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.properties.CapacityProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates capacity releases per tier and applies them to Redis in batches.
+ * <p>
+ * Releases are only counted per tier on the request path. Pending releases of all tiers of a capacity store are
+ * flushed with a single ReleaseCapacityBatchScript call once per window, or as soon as max-batch-size releases
+ * are pending. With weighted fair scheduling, the batch is flushed with ReleaseCapacityFairScript instead.
+ * Releases of capped clients are counted per client and applied to their in-flight counters with the same call.
+ * The number of pending releases is bounded by max-pending; above it, callers have to release directly.
+ * A batch failing or timing out may still have been applied, so it is retried under the same batch id,
+ * which the scripts apply only once.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class CapacityReleaseBatcher {
+    private static final Duration FLUSH_TIMEOUT = Duration.ofSeconds(5);
+    // How long a batch stays marked as applied in the store, and so how long a failed batch is retried
+    private static final Duration BATCH_TTL = Duration.ofMinutes(5);
+
+    private final ReleaseCapacityBatchScript releaseCapacityBatchScript;
+    private final ReleaseCapacityFairScript releaseCapacityFairScript;
+    private final CapacityProperties.ReleaseBatch batchProperties;
+    private final String nodeId;
+    private final CapacityProperties capacityProperties;
+
+    private final Map<CapacityKeys, Map<Integer, AtomicInteger>> pendingByStore = new ConcurrentHashMap<>();
+    private final Map<CapacityKeys, Map<String, AtomicInteger>> pendingClientsByStore = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final Queue<StoreBatch> failedBatches = new ConcurrentLinkedQueue<>();
+    private final String batcherId = UUID.randomUUID().toString();
+    private final AtomicLong batchSequence = new AtomicLong();
+    private volatile CompletableFuture<Void> runningFlush = CompletableFuture.completedFuture(null);
+
+    private final DistributionSummary batchSize;
+    private final Timer flushLatency;
+    private final Counter rejectedReleases;
+
+    private Disposable flushTask;
+
+    public CapacityReleaseBatcher(
+            ReleaseCapacityBatchScript releaseCapacityBatchScript,
+            ReleaseCapacityFairScript releaseCapacityFairScript,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.releaseCapacityBatchScript = releaseCapacityBatchScript;
+        this.releaseCapacityFairScript = releaseCapacityFairScript;
+        this.batchProperties = capacityProperties.getReleaseBatch();
+        this.nodeId = capacityProperties.inFlightNodeId();
+        this.capacityProperties = capacityProperties;
+
+        this.batchSize = DistributionSummary.builder("capacity.release.batch.size")
+                .description("Number of permits released per batch")
+                .register(meterRegistry);
+        this.flushLatency = Timer.builder("capacity.release.batch.flush")
+                .description("Latency of batch release flushes")
+                .register(meterRegistry);
+        this.rejectedReleases = Counter.builder("capacity.release.batch.rejected")
+                .description("Releases done directly because too many releases were pending")
+                .register(meterRegistry);
+        Gauge.builder("capacity.release.batch.pending", pending, AtomicInteger::get)
+                .description("Number of releases waiting for the next flush")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return batchProperties.isEnabled();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (isEnabled()) {
+            log.info("Batching capacity releases every {}, up to {} releases per batch",
+                    batchProperties.getWindow(), batchProperties.getMaxBatchSize());
+
+            flushTask = Flux.interval(batchProperties.getWindow())
+                    .onBackpressureDrop()
+                    .concatMap(tick -> flush())
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushTask == null) {
+            return;
+        }
+        flushTask.dispose();
+
+        // Flush everything left once the flush which may still be running has completed
+        try {
+            runningFlush.get(FLUSH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            flush().block(FLUSH_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            log.error("Failed to wait for the last capacity release flush on shutdown: {}", e.getMessage());
+        }
+
+        if (pending.get() > 0) {
+            log.error("Failed to flush {} pending capacity releases on shutdown", pending.get());
+        }
+    }
+
+    /**
+     * Adds a release of a single permit of the tier to the next batch.
+     *
+     * @param keys capacity store the permit was acquired from
+     * @param tier tier the permit was acquired from
+     * @param clientKey Redis key counting the in-flight requests of the client, null if the client is not capped
+     * @return false if too many releases are pending and the permit has to be released directly
+     */
+    public boolean release(CapacityKeys keys, int tier, String clientKey) {
+        if (pending.incrementAndGet() > batchProperties.getMaxPending()) {
+            pending.decrementAndGet();
+            rejectedReleases.increment();
+            return false;
+        }
+
+        // Counted before the permit, so a flush taking the permit always takes the client release as well
+        if (clientKey != null) {
+            pendingClientsByStore.computeIfAbsent(keys, store -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(clientKey, key -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+        pendingByStore.computeIfAbsent(keys, store -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tier, key -> new AtomicInteger())
+                .incrementAndGet();
+
+        if (pending.get() >= batchProperties.getMaxBatchSize()) {
+            flush().subscribe();
+        }
+        return true;
+    }
+
+    private Mono<Void> flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return Mono.empty();
+        }
+
+        Map<CapacityKeys, StoreBatch> batches = new HashMap<>();
+        pendingByStore.forEach((keys, pendingByTier) -> pendingByTier.forEach((tier, counter) -> {
+            int permits = counter.getAndSet(0);
+            if (permits > 0) {
+                batches.computeIfAbsent(keys, this::newBatch).permitsByTier().put(tier, permits);
+            }
+        }));
+
+        int permits = batches.values().stream().mapToInt(StoreBatch::permits).sum();
+        if (permits > 0) {
+            pending.addAndGet(-permits);
+            batchSize.record(permits);
+        }
+
+        // Client releases are only flushed with permits of their store, the scripts need at least one tier
+        batches.forEach((keys, batch) -> pendingClientsByStore.getOrDefault(keys, Map.of())
+                .forEach((clientKey, counter) -> {
+                    int releases = counter.getAndSet(0);
+                    if (releases > 0) {
+                        batch.releasesByClientKey().put(clientKey, releases);
+                    }
+                }));
+
+        // Failed batches are retried as they are, with the same id, so a batch applied despite the error is skipped
+        List<StoreBatch> toFlush = new ArrayList<>(batches.values());
+        for (StoreBatch failed; (failed = failedBatches.poll()) != null; ) {
+            pending.addAndGet(-failed.permits());
+            toFlush.add(failed);
+        }
+        if (toFlush.isEmpty()) {
+            flushing.set(false);
+            return Mono.empty();
+        }
+
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        runningFlush = flushed;
+        long start = System.nanoTime();
+        return Flux.fromIterable(toFlush)
+                .flatMap(this::flush)
+                .doFinally(signal -> {
+                    flushLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    flushing.set(false);
+                    flushed.complete(null);
+                })
+                .then();
+    }
+
+    private Mono<Void> flush(StoreBatch batch) {
+        return release(batch.keys(), batch)
+                .timeout(FLUSH_TIMEOUT)
+                .doOnNext(result -> {
+                    if (!result.released()) {
+                        log.error("Failed to release capacity batch {}: {}", batch, result.error());
+                    } else if (result.droppedPermits() > 0) {
+                        log.warn("Dropped {} released permits, already reclaimed or of tiers missing in the store: {}",
+                                result.droppedPermits(), batch);
+                    } else {
+                        log.debug("Released capacity batch: {}", batch);
+                    }
+                })
+                .onErrorResume(e -> {
+                    if (System.nanoTime() - batch.createdAt() > BATCH_TTL.toNanos()) {
+                        // Past the TTL, the batch is no longer marked as applied and a retry could apply it twice
+                        log.error("Giving up on capacity batch {} after retrying it for {}: {}",
+                                batch, BATCH_TTL, e.getMessage());
+                    } else {
+                        log.error("Error releasing capacity batch {}, retrying with the next flush: {}",
+                                batch, e.getMessage());
+                        pending.addAndGet(batch.permits());
+                        failedBatches.add(batch);
+                    }
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private Mono<ReleaseCapacityBatchResult> release(CapacityKeys keys, StoreBatch batch) {
+        String releasedChannel = capacityProperties.releasedChannel(keys.releasedChannel());
+        if (capacityProperties.getScheduling().isWeightedFair()) {
+            return releaseCapacityFairScript.release(keys.capacity(), keys.freeTiers(), keys.leases(),
+                    keys.fairShare(), keys.releasedBatch(batch.id()), BATCH_TTL, releasedChannel, nodeId, batch.permitsByTier(), batch.releasesByClientKey());
+        }
+        return releaseCapacityBatchScript.release(keys.capacity(), keys.freeTiers(), keys.leases(),
+                keys.releasedBatch(batch.id()), BATCH_TTL, releasedChannel, nodeId, batch.permitsByTier(), batch.releasesByClientKey());
+    }
+
+    private StoreBatch newBatch(CapacityKeys keys) {
+        return new StoreBatch(keys, batcherId + ":" + batchSequence.incrementAndGet(), System.nanoTime(),
+                new HashMap<>(), new HashMap<>());
+    }
+
+    /**
+     * Releases of a single capacity store applied with one script call
+     *
+     * @param keys capacity store of the permits
+     * @param id id of the batch, marking it as applied in the store
+     * @param createdAt time the batch was first flushed, in nanoseconds
+     * @param permitsByTier number of released permits per tier
+     * @param releasesByClientKey number of released requests per client in-flight key
+     */
+    private record StoreBatch(
+            CapacityKeys keys,
+            String id,
+            long createdAt,
+            Map<Integer, Integer> permitsByTier,
+            Map<String, Integer> releasesByClientKey
+    ) {
+        int permits() {
+            return permitsByTier.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + keys.capacity() + " " + permitsByTier + " " + releasesByClientKey;
+        }
+    }
+}
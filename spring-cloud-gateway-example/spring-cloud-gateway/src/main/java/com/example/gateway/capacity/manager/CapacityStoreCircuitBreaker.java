@@ -0,0 +1,182 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.utils.CapacityResults;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Circuit breaker around the acquire calls to the Redis capacity store, with a degraded mode admitting requests
+ * while the store is unavailable.
+ * <p>
+ * Acquire calls are cut off after the call timeout, and failing or slow calls open the capacity-store circuit
+ * breaker configured under resilience4j.circuitbreaker.instances. While it is open, acquires skip Redis and are
+ * admitted by the degraded mode: all of them, none of them, or up to a local limit of this node's share of the
+ * configured tier capacity, borrowing from lower priority tiers the same way the scripts do. The circuit breaker is
+ * shared by all capacity pools, each pool has local limits of its own, a share of the tier capacities of the pool.
+ * Permits granted in degraded mode are released locally, permits acquired from Redis are still released to Redis.
+ * Per-client caps and rate limits are not applied in degraded mode.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class CapacityStoreCircuitBreaker {
+    public static final String NAME = "capacity-store";
+
+    private final CircuitBreaker circuitBreaker;
+    private final CapacityProperties.DegradedMode mode;
+    private final Duration callTimeout;
+    private final int nodes;
+    private final Map<Integer, LocalPermitPool> localPools;
+    // Local pools sorted from the lowest to the highest priority tier, used for borrowing
+    private final LocalPermitPool[] localPoolsByPriority;
+    private final Counter degradedAcquired;
+    private final Counter degradedRejected;
+
+    public CapacityStoreCircuitBreaker(
+            CircuitBreakerRegistry circuitBreakerRegistry,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        CapacityProperties.Degraded degradedProperties = capacityProperties.getDegraded();
+        this.circuitBreaker = circuitBreakerRegistry.circuitBreaker(NAME);
+        this.mode = degradedProperties.getMode();
+        this.callTimeout = degradedProperties.getCallTimeout();
+        this.nodes = Math.max(1, degradedProperties.getNodes());
+        this.localPools = localPools(limitProperties.getTiersCapacity(), nodes);
+        this.localPoolsByPriority = byPriority(localPools);
+
+        this.degradedAcquired = degradedCounter(meterRegistry, "acquired");
+        this.degradedRejected = degradedCounter(meterRegistry, "rejected");
+
+        circuitBreaker.getEventPublisher().onStateTransition(event -> log.warn(
+                "Capacity store circuit breaker {}, degraded mode: {}", event.getStateTransition(), mode));
+        log.info("Capacity store degraded mode: {}, local capacities per node: {}", mode, localCapacities());
+    }
+
+    /**
+     * Circuit breaker of a capacity pool, sharing the circuit breaker and the metrics of the global capacity
+     * with local limits of its own
+     */
+    private CapacityStoreCircuitBreaker(
+            CapacityStoreCircuitBreaker global,
+            String pool,
+            Map<Integer, Integer> tiersCapacity
+    ) {
+        this.circuitBreaker = global.circuitBreaker;
+        this.mode = global.mode;
+        this.callTimeout = global.callTimeout;
+        this.nodes = global.nodes;
+        this.localPools = localPools(tiersCapacity, nodes);
+        this.localPoolsByPriority = byPriority(localPools);
+        this.degradedAcquired = global.degradedAcquired;
+        this.degradedRejected = global.degradedRejected;
+
+        if (mode == CapacityProperties.DegradedMode.LOCAL) {
+            log.info("Capacity store local capacities per node of pool {}: {}", pool, localCapacities());
+        }
+    }
+
+    /**
+     * Returns the circuit breaker of a capacity pool, admitting requests in LOCAL mode up to this node's share
+     * of the tier capacities of the pool
+     */
+    public CapacityStoreCircuitBreaker forPool(String pool, Map<Integer, Integer> tiersCapacity) {
+        return new CapacityStoreCircuitBreaker(this, pool, tiersCapacity);
+    }
+
+    /**
+     * Cuts the acquire call off after the call timeout and records its outcome in the circuit breaker.
+     * While the circuit breaker is open, the call is not made and fails with CallNotPermittedException.
+     */
+    public <T> Mono<T> protect(Mono<T> call) {
+        return call.timeout(callTimeout).transformDeferred(CircuitBreakerOperator.of(circuitBreaker));
+    }
+
+    /**
+     * Admits the request according to the degraded mode, used when the acquire call failed or was not permitted
+     */
+    public AcquireCapacityResult acquire(int tier) {
+        AcquireCapacityResult result = switch (mode) {
+            case FAIL_OPEN -> CapacityResults.degradedAcquire(tier, tier);
+            case FAIL_CLOSED -> CapacityResults.failedAcquire(CapacityResults.CAPACITY_STORE_UNAVAILABLE, tier);
+            case LOCAL -> acquireLocally(tier);
+        };
+
+        (result.acquired() ? degradedAcquired : degradedRejected).increment();
+        return result;
+    }
+
+    /**
+     * Releases a permit granted in degraded mode
+     */
+    public void release(AcquireCapacityResult acquireResult) {
+        if (mode != CapacityProperties.DegradedMode.LOCAL) {
+            return;
+        }
+
+        LocalPermitPool pool = localPools.get(acquireResult.sourceTier());
+        if (pool != null) {
+            pool.release(1);
+        }
+    }
+
+    private AcquireCapacityResult acquireLocally(int tier) {
+        LocalPermitPool requestedPool = localPools.get(tier);
+        if (requestedPool != null && requestedPool.tryAcquire()) {
+            return CapacityResults.degradedAcquire(tier, tier);
+        }
+
+        for (LocalPermitPool pool : localPoolsByPriority) {
+            if (pool.tier() <= tier) {
+                break;
+            }
+            if (pool.tryAcquire()) {
+                return CapacityResults.degradedAcquire(pool.tier(), tier);
+            }
+        }
+        return CapacityResults.failedAcquire(CapacityResults.NO_CAPACITY_AVAILABLE, tier);
+    }
+
+    private static Map<Integer, LocalPermitPool> localPools(Map<Integer, Integer> tiersCapacity, int nodes) {
+        return tiersCapacity.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, tier -> {
+                    LocalPermitPool pool = new LocalPermitPool(tier.getKey());
+                    pool.release(Math.ceilDiv(tier.getValue(), nodes));
+                    return pool;
+                }));
+    }
+
+    private static LocalPermitPool[] byPriority(Map<Integer, LocalPermitPool> localPools) {
+        return localPools.values().stream()
+                .sorted(Comparator.comparingInt(LocalPermitPool::tier).reversed())
+                .toArray(LocalPermitPool[]::new);
+    }
+
+    private Map<Integer, Long> localCapacities() {
+        return localPools.values().stream()
+                .collect(Collectors.toMap(LocalPermitPool::tier, LocalPermitPool::available));
+    }
+
+    private static Counter degradedCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("capacity.degraded")
+                .description("Requests admitted or rejected by the degraded mode while the capacity store was unavailable")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
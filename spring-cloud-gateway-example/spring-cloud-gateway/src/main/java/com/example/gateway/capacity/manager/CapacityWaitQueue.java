@@ -0,0 +1,326 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded wait queue for requests which could not acquire capacity, used instead of rejecting them immediately.
+ * <p>
+ * Waiting requests do not block any thread, they are parked per tier and woken when a tier gets free capacity again,
+ * as notified by CapacityManager.releaseEvents, or by a periodic retry covering missed notifications and capacity
+ * updates. Waiters are woken one at a time from the highest priority tier (the lowest tier number) first, a waiter
+ * of a lower priority tier is only tried once all higher priority waiters got their permits, because a tier can
+ * borrow from every tier a lower priority tier can borrow from. A waiter whose client reached its max in-flight
+ * requests is rejected instead of blocking the waiters behind it, and the waiters of a tier which reached its
+ * max burst are skipped until the next drain, so the waiters of the other tiers are still woken.
+ */
+@Slf4j
+@Component
+public class CapacityWaitQueue {
+    private final CapacityManager capacityManager;
+    private final CapacityProperties.Queue queueProperties;
+    private final String pool;
+
+    private final Map<Integer, TierQueue> queues = new ConcurrentHashMap<>();
+    // Tier queues sorted from the highest to the lowest priority tier
+    private volatile TierQueue[] queuesByPriority = new TierQueue[0];
+    private final AtomicInteger waiting = new AtomicInteger();
+    // Number of drain requests, only the caller incrementing it from zero drains the queues
+    private final AtomicInteger wip = new AtomicInteger();
+    private int missed;
+
+    private final Counter queueFullRejections;
+    private final Counter timeoutRejections;
+    private final Counter clientLimitRejections;
+    private final Counter wokenRequests;
+
+    private final Disposable.Composite tasks = Disposables.composite();
+
+    @Autowired
+    public CapacityWaitQueue(
+            CapacityManager capacityManager,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this(capacityManager, capacityProperties, meterRegistry, CapacityPools.GLOBAL_POOL);
+    }
+
+    /**
+     * Wait queue of the requests of a capacity pool, woken by the releases of the pool only
+     */
+    public CapacityWaitQueue(
+            CapacityManager capacityManager,
+            CapacityProperties capacityProperties,
+            MeterRegistry meterRegistry,
+            String pool
+    ) {
+        this.capacityManager = capacityManager;
+        this.queueProperties = capacityProperties.getQueue();
+        this.pool = pool;
+
+        this.queueFullRejections = rejectedCounter(meterRegistry, "queue_full");
+        this.timeoutRejections = rejectedCounter(meterRegistry, "timeout");
+        this.clientLimitRejections = rejectedCounter(meterRegistry, "client_limit");
+        this.wokenRequests = Counter.builder("capacity.queue.woken")
+                .description("Waiting requests which acquired capacity")
+                .tag("pool", pool)
+                .register(meterRegistry);
+        Gauge.builder("capacity.queue.waiting", waiting, AtomicInteger::get)
+                .description("Requests currently waiting for capacity")
+                .tag("pool", pool)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (queueProperties.isEnabled()) {
+            log.info("Requests of pool {} wait up to {} for capacity, at most {} requests per tier",
+                    pool, queueProperties.getMaxWait(), queueProperties.getMaxQueueLength());
+
+            tasks.add(capacityManager.releaseEvents()
+                    .subscribe(tier -> drain(), error -> log.error("Capacity release notifications failed", error)));
+            tasks.add(Flux.interval(queueProperties.getPollInterval())
+                    .onBackpressureDrop()
+                    .subscribe(tick -> drain()));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        tasks.dispose();
+    }
+
+    public boolean isEnabled() {
+        return queueProperties.isEnabled();
+    }
+
+    /**
+     * Wait for a permit of the tier until capacity is released or the max wait time of the tier elapses
+     *
+     * @param tier requested tier
+     * @param clientId client requesting the permit
+     * @return AcquireCapacityResult of the acquired permit, or a failed result if the queue is full or the wait timed out
+     */
+    public Mono<AcquireCapacityResult> await(int tier, String clientId) {
+        return Mono.<AcquireCapacityResult>create(sink -> {
+                    TierQueue queue = getQueue(tier);
+                    if (!queue.tryReserve()) {
+                        queueFullRejections.increment();
+                        sink.success(CapacityResults.failedAcquire("Wait queue is full", tier));
+                        return;
+                    }
+
+                    Waiter waiter = new Waiter(queue, clientId, sink);
+                    // Timeouts cancel the waiter, freeing its place in the queue
+                    sink.onCancel(waiter::cancel);
+                    queue.waiters().addLast(waiter);
+                })
+                .timeout(queueProperties.getMaxWait(tier), Mono.fromSupplier(() -> {
+                    timeoutRejections.increment();
+                    return CapacityResults.failedAcquire("Timed out waiting for capacity", tier);
+                }));
+    }
+
+    private void drain() {
+        if (waiting.get() == 0 || wip.getAndIncrement() != 0) {
+            return;
+        }
+        missed = 1;
+        drainLoop();
+    }
+
+    private void drainLoop() {
+        // Waiters are woken one by one, until a waiter of the highest priority tier fails to acquire a permit.
+        // Only the drain loop touches the set, and the drain loop never runs twice at once.
+        Set<Integer> burstLimitedTiers = new HashSet<>();
+        wakeNextWaiter(burstLimitedTiers)
+                .repeat()
+                .takeWhile(woken -> woken)
+                .subscribe(null, error -> {
+                    log.error("Failed to wake up requests waiting for capacity", error);
+                    endDrain();
+                }, this::endDrain);
+    }
+
+    private void endDrain() {
+        missed = wip.addAndGet(-missed);
+        if (missed != 0) {
+            drainLoop();
+        }
+    }
+
+    private Mono<Boolean> wakeNextWaiter(Set<Integer> burstLimitedTiers) {
+        return Mono.defer(() -> {
+            Waiter waiter = nextWaiter(burstLimitedTiers);
+            if (waiter == null) {
+                return Mono.just(false);
+            }
+
+            return capacityManager.tryAcquireCapacity(waiter.tier(), waiter.clientId())
+                    .map(result -> {
+                        if (result.acquired() || CapacityResults.CLIENT_LIMIT_REACHED.equals(result.error())) {
+                            waiter.complete(result);
+                            return true;
+                        }
+                        waiter.requeue();
+                        if (CapacityResults.MAX_BURST_REACHED.equals(result.error())) {
+                            // Capacity may still be free for the other tiers, which do not wait for this one
+                            burstLimitedTiers.add(waiter.tier());
+                            return true;
+                        }
+                        return false;
+                    })
+                    .onErrorResume(e -> {
+                        log.warn("Failed to acquire capacity for a waiting request of client {} (tier {}): {}",
+                                waiter.clientId(), waiter.tier(), e.getMessage());
+                        waiter.requeue();
+                        return Mono.just(false);
+                    });
+        });
+    }
+
+    /**
+     * Removes and returns the oldest waiter of the highest priority tier which did not reach its max burst,
+     * or null if no such request is waiting
+     */
+    private Waiter nextWaiter(Set<Integer> burstLimitedTiers) {
+        for (TierQueue queue : queuesByPriority) {
+            if (burstLimitedTiers.contains(queue.tier())) {
+                continue;
+            }
+            Waiter waiter;
+            while ((waiter = queue.waiters().pollFirst()) != null) {
+                if (!waiter.isDone()) {
+                    return waiter;
+                }
+            }
+        }
+        return null;
+    }
+
+    private TierQueue getQueue(int tier) {
+        TierQueue queue = queues.get(tier);
+        if (queue != null) {
+            return queue;
+        }
+
+        synchronized (queues) {
+            queue = queues.computeIfAbsent(tier,
+                    key -> new TierQueue(key, queueProperties.getMaxQueueLength(key), new ConcurrentLinkedDeque<>(),
+                            new AtomicInteger()));
+            queuesByPriority = queues.values().stream()
+                    .sorted(Comparator.comparingInt(TierQueue::tier))
+                    .toArray(TierQueue[]::new);
+        }
+        return queue;
+    }
+
+    private Counter rejectedCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("capacity.queue.rejected")
+                .description("Waiting requests rejected without acquiring capacity")
+                .tag("pool", pool)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Requests of a single tier waiting for capacity, in the order of arrival
+     */
+    private record TierQueue(int tier, int maxLength, Deque<Waiter> waiters, AtomicInteger length) {
+        private boolean tryReserve() {
+            int current;
+            do {
+                current = length.get();
+                if (current >= maxLength) {
+                    return false;
+                }
+            } while (!length.compareAndSet(current, current + 1));
+            return true;
+        }
+    }
+
+    /**
+     * Request waiting for capacity, a permit acquired for an already cancelled request is released
+     */
+    private final class Waiter {
+        private final TierQueue queue;
+        private final String clientId;
+        private final MonoSink<AcquireCapacityResult> sink;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Waiter(TierQueue queue, String clientId, MonoSink<AcquireCapacityResult> sink) {
+            this.queue = queue;
+            this.clientId = clientId;
+            this.sink = sink;
+            waiting.incrementAndGet();
+        }
+
+        private int tier() {
+            return queue.tier();
+        }
+
+        private String clientId() {
+            return clientId;
+        }
+
+        private boolean isDone() {
+            return done.get();
+        }
+
+        private void cancel() {
+            if (done.compareAndSet(false, true)) {
+                // Removed right away, so timed out waiters do not pile up in the queue until a drain skips them
+                queue.waiters().remove(this);
+                leaveQueue();
+            }
+        }
+
+        private void complete(AcquireCapacityResult result) {
+            if (done.compareAndSet(false, true)) {
+                leaveQueue();
+                (result.acquired() ? wokenRequests : clientLimitRejections).increment();
+                sink.success(result);
+            } else if (result.acquired()) {
+                capacityManager.handleReleaseCapacity(result, clientId);
+            }
+        }
+
+        /**
+         * Puts the waiter back at the head of its queue, keeping its place, unless it was cancelled meanwhile
+         */
+        private void requeue() {
+            if (!done.get()) {
+                queue.waiters().addFirst(this);
+            }
+        }
+
+        private void leaveQueue() {
+            queue.length().decrementAndGet();
+            waiting.decrementAndGet();
+        }
+    }
+}
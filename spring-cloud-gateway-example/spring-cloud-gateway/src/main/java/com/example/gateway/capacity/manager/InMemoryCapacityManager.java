@@ -0,0 +1,390 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.config.ConditionalOnCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityRequest;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.DynamicCapacityDto;
+import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.utils.CapacityResults;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capacity manager keeping capacities in the JVM, for single-node deployments and local development without Redis.
+ * <p>
+ * Follows the semantics of the Lua scripts of RedisCapacityManager: a permit is acquired from the requested tier or
+ * borrowed from the lowest priority tier with free capacity, and capacity updates preserve in-flight permits.
+ * Acquire and release operations are lock-free, only capacity updates are serialized. Clients with an in-flight
+ * cap take a slot of their own counter before a permit, the slot is given back if no permit is available.
+ * Counters of clients idle for spring-cloud-gateway.client-in-flight.ttl are dropped, as their keys expire in Redis.
+ * Rate limited clients take a token of their own bucket first, the same as try_acquire_capacity_rate_limited.lua,
+ * buckets of idle clients are dropped after twice the time they take to refill, as their keys expire in Redis.
+ */
+@Slf4j
+@Service
+@ConditionalOnCapacityEngine(CapacityProperties.Engine.IN_MEMORY)
+public class InMemoryCapacityManager implements CapacityManager {
+    private final SpringCloudGatewayProperties limitProperties;
+    private final CapacityProperties.InMemory inMemory;
+    // Default capacity of every tier, of the global capacity or of a capacity pool
+    private final Map<Integer, Integer> tiersCapacity;
+
+    private volatile Capacities capacities = Capacities.EMPTY;
+    // Tiers which got free capacity again, emissions racing with each other are dropped
+    private final Sinks.Many<Integer> releasedTiers = Sinks.many().multicast().directBestEffort();
+    private final Cache<String, AtomicInteger> clientInFlight;
+    private final Cache<String, TokenBucket> tokenBuckets;
+
+    @Autowired
+    public InMemoryCapacityManager(SpringCloudGatewayProperties limitProperties, CapacityProperties capacityProperties) {
+        this(limitProperties, capacityProperties.getInMemory(), limitProperties.getTiersCapacity());
+
+        if (capacityProperties.getScheduling().isWeightedFair()) {
+            throw new IllegalStateException("Weighted fair scheduling is only supported by the Redis capacity engine, "
+                    + "set capacity.scheduling.policy to PRIORITY or capacity.engine to REDIS");
+        }
+
+        log.info("Storing dynamic capacities in memory");
+    }
+
+    /**
+     * Manager of the global capacity or of a capacity pool, in-flight caps and rate limits of the clients
+     * are counted by every manager on its own
+     */
+    private InMemoryCapacityManager(
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties.InMemory inMemory,
+            Map<Integer, Integer> tiersCapacity
+    ) {
+        this.limitProperties = limitProperties;
+        this.inMemory = inMemory;
+        this.tiersCapacity = Map.copyOf(tiersCapacity);
+        this.clientInFlight = Caffeine.newBuilder()
+                .expireAfterAccess(limitProperties.getClientInFlight().getTtl())
+                .maximumSize(inMemory.getMaximumClients())
+                .build();
+        this.tokenBuckets = Caffeine.newBuilder()
+                .expireAfter(new TokenBucketExpiry())
+                .maximumSize(inMemory.getMaximumClients())
+                .build();
+
+        DynamicCapacityResponse result = initializeDefaultCapacities();
+        log.info("Initialized default dynamic capacities: {}", result);
+    }
+
+    @Override
+    public CapacityManager forPool(String pool, Map<Integer, Integer> tiersCapacity) {
+        return new InMemoryCapacityManager(limitProperties, inMemory, tiersCapacity);
+    }
+
+    @Override
+    public Mono<AcquireCapacityResult> tryAcquireCapacity(int tier, String clientId) {
+        return Mono.just(acquire(tier, clientId));
+    }
+
+    @Override
+    public Mono<List<AcquireCapacityResult>> tryAcquireCapacities(List<AcquireCapacityRequest> requests) {
+        List<AcquireCapacityResult> results = new ArrayList<>(requests.size());
+        for (AcquireCapacityRequest request : requests) {
+            results.add(acquire(request.tier(), request.clientId()));
+        }
+        return Mono.just(results);
+    }
+
+    @Override
+    public Mono<AcquireCapacityResult> tryAcquireRateLimitedCapacity(
+            int tier,
+            String clientId,
+            SpringCloudGatewayProperties.RateLimit rateLimit
+    ) {
+        if (capacities.live().isEmpty()) {
+            return Mono.just(CapacityResults.failedAcquire("No capacity data found in memory", tier));
+        }
+
+        TokenBucket bucket = tokenBuckets.get(clientId, key -> new TokenBucket(rateLimit));
+        if (!bucket.tryTake(rateLimit.getReplenishRate(), rateLimit.getBurstCapacity(), System.nanoTime())) {
+            return Mono.just(CapacityResults.failedAcquire(CapacityResults.RATE_LIMIT_REACHED, tier));
+        }
+        return Mono.just(acquire(tier, clientId));
+    }
+
+    @Override
+    public Mono<ReleaseCapacityResult> releaseCapacity(int tier, String clientId) {
+        return Mono.just(release(tier, clientId));
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> getCurrentCapacities() {
+        return Mono.just(successResponse(capacities.current()));
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> getDefaultCapacities() {
+        return Mono.just(successResponse(new HashMap<>(capacities.defaults())));
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> updateCapacities(DynamicCapacityDto dto) {
+        Map<Integer, Integer> newCapacities = dto.getCapacities();
+        log.info("Updating dynamic capacities: {}", newCapacities);
+
+        return Mono.fromSupplier(() -> update(newCapacities));
+    }
+
+    @Override
+    public Flux<Integer> releaseEvents() {
+        return releasedTiers.asFlux();
+    }
+
+    @Override
+    public void handleReleaseCapacity(Integer tierToRelease, String clientId) {
+        if (tierToRelease != null) {
+            ReleaseCapacityResult result = release(tierToRelease, clientId);
+            if (!result.released()) {
+                log.error("Failed to release capacity for client {} (tier {}): {}",
+                        clientId, tierToRelease, result.error());
+            }
+        } else {
+            log.warn("Dynamic capacity filter error. Tier to release is null for client {}, no release was done", clientId);
+        }
+    }
+
+    private AcquireCapacityResult acquire(int tier, String clientId) {
+        if (tier < 1) {
+            return CapacityResults.failedAcquire("Invalid tier number: " + tier, tier);
+        }
+
+        Capacities current = capacities;
+        if (current.live().isEmpty()) {
+            return CapacityResults.failedAcquire("No capacity data found in memory", tier);
+        }
+
+        AtomicInteger client = clientCounter(clientId);
+        if (client != null && !takePermit(client, limitProperties.getMaxInFlightForClient(clientId))) {
+            return CapacityResults.failedAcquire(CapacityResults.CLIENT_LIMIT_REACHED, tier);
+        }
+
+        AcquireCapacityResult result = acquire(current, tier);
+        if (client != null && !result.acquired()) {
+            client.decrementAndGet();
+        }
+        return result;
+    }
+
+    private AcquireCapacityResult acquire(Capacities current, int tier) {
+        // Try to acquire capacity from the requested tier
+        AtomicInteger requested = current.live().get(tier);
+        if (requested != null && takePermit(requested)) {
+            return CapacityResults.successfulAcquire(tier, tier);
+        }
+
+        // If no capacity in requested tier, try to borrow from lower priority tiers, the lowest priority first
+        for (int lowerTier : current.tiersByPriority()) {
+            if (lowerTier <= tier) {
+                break;
+            }
+            if (takePermit(current.live().get(lowerTier))) {
+                return CapacityResults.successfulAcquire(lowerTier, tier);
+            }
+        }
+
+        return CapacityResults.failedAcquire(CapacityResults.NO_CAPACITY_AVAILABLE, tier);
+    }
+
+    private ReleaseCapacityResult release(int tier, String clientId) {
+        if (tier < 1) {
+            return CapacityResults.failedRelease("Invalid tier number: " + tier);
+        }
+
+        // The request is done, whether or not its permit can still be returned
+        AtomicInteger client = clientCounter(clientId);
+        if (client != null) {
+            client.updateAndGet(inFlight -> Math.max(0, inFlight - 1));
+        }
+
+        AtomicInteger capacity = capacities.live().get(tier);
+        if (capacity == null) {
+            return CapacityResults.failedRelease("Tier " + tier + " does not exist in capacity store");
+        }
+
+        int previousCapacity = capacity.getAndIncrement();
+        if (previousCapacity <= 0 && previousCapacity + 1 > 0) {
+            releasedTiers.tryEmitNext(tier);
+        }
+        return CapacityResults.successfulRelease(tier, previousCapacity, previousCapacity + 1);
+    }
+
+    private static boolean takePermit(AtomicInteger capacity) {
+        int current;
+        do {
+            current = capacity.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!capacity.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    private static boolean takePermit(AtomicInteger inFlight, int maxInFlight) {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Returns the in-flight counter of the client, null if the client is not capped
+     */
+    private AtomicInteger clientCounter(String clientId) {
+        if (clientId == null || limitProperties.getMaxInFlightForClient(clientId) <= 0) {
+            return null;
+        }
+        return clientInFlight.get(clientId, key -> new AtomicInteger());
+    }
+
+    /**
+     * Replaces the capacities the same way initialize_capacity.lua does: the live capacity of a tier becomes
+     * new_default + (current - old_default), so permits acquired before the update are still accounted for.
+     * Counters of the tiers kept by the update are adjusted in place, so concurrent acquire and release
+     * operations are not lost.
+     */
+    private synchronized DynamicCapacityResponse update(Map<Integer, Integer> newCapacities) {
+        if (newCapacities.isEmpty()) {
+            return DynamicCapacityResponse.builder()
+                    .success(false)
+                    .error("Invalid number of arguments. Must be pairs of (tier, capacity).")
+                    .build();
+        }
+
+        Capacities current = capacities;
+        Map<Integer, AtomicInteger> live = new HashMap<>(newCapacities.size());
+
+        newCapacities.forEach((tier, newDefault) -> {
+            AtomicInteger capacity = current.live().get(tier);
+            Integer oldDefault = current.defaults().get(tier);
+
+            if (capacity != null && oldDefault != null) {
+                capacity.addAndGet(newDefault - oldDefault);
+                live.put(tier, capacity);
+            } else {
+                // No old default value => assume no in-flight
+                live.put(tier, new AtomicInteger(newDefault));
+            }
+        });
+
+        capacities = new Capacities(live, Map.copyOf(newCapacities));
+        return successResponse(capacities.current());
+    }
+
+    private DynamicCapacityResponse initializeDefaultCapacities() {
+        DynamicCapacityDto defaultCapacities = new DynamicCapacityDto(tiersCapacity);
+        log.info("Default dynamic capacities from configs: {}", defaultCapacities);
+
+        return update(defaultCapacities.getCapacities());
+    }
+
+    private static DynamicCapacityResponse successResponse(Map<Integer, Integer> capacities) {
+        return DynamicCapacityResponse.builder()
+                .capacities(capacities)
+                .success(true)
+                .build();
+    }
+
+    /**
+     * Token bucket of a single client, refilled for the time passed since its last use
+     */
+    private static final class TokenBucket {
+        // Time the bucket is kept without use, the bucket key TTL of try_acquire_capacity_rate_limited.lua
+        private final long idleNanos;
+        private double tokens = -1;
+        private long timestampNanos;
+
+        private TokenBucket(SpringCloudGatewayProperties.RateLimit rateLimit) {
+            int replenishRate = Math.max(1, rateLimit.getReplenishRate());
+            long refillSeconds = (long) Math.ceil((double) rateLimit.getBurstCapacity() / replenishRate);
+            this.idleNanos = TimeUnit.SECONDS.toNanos(refillSeconds * 2);
+        }
+
+        private synchronized boolean tryTake(int replenishRate, int burstCapacity, long nowNanos) {
+            if (tokens < 0) {
+                tokens = burstCapacity;
+            } else {
+                double refill = (nowNanos - timestampNanos) * replenishRate / 1_000_000_000.0;
+                tokens = Math.min(burstCapacity, tokens + Math.max(0, refill));
+            }
+            timestampNanos = nowNanos;
+
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Expires a token bucket once it is idle for its own idle time, which depends on the rate limit of the client
+     */
+    private static final class TokenBucketExpiry implements Expiry<String, TokenBucket> {
+        @Override
+        public long expireAfterCreate(String clientId, TokenBucket bucket, long currentTime) {
+            return bucket.idleNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(String clientId, TokenBucket bucket, long currentTime, long currentDuration) {
+            return bucket.idleNanos;
+        }
+
+        @Override
+        public long expireAfterRead(String clientId, TokenBucket bucket, long currentTime, long currentDuration) {
+            return bucket.idleNanos;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the configured tiers, the live capacity counters are shared between snapshots
+     *
+     * @param live live capacity counter per tier
+     * @param defaults default capacity per tier
+     * @param tiersByPriority tier numbers from the lowest to the highest priority
+     */
+    private record Capacities(Map<Integer, AtomicInteger> live, Map<Integer, Integer> defaults, int[] tiersByPriority) {
+        private static final Capacities EMPTY = new Capacities(Map.of(), Map.of());
+
+        private Capacities(Map<Integer, AtomicInteger> live, Map<Integer, Integer> defaults) {
+            this(live, defaults, live.keySet().stream()
+                    .sorted(Comparator.reverseOrder())
+                    .mapToInt(Integer::intValue)
+                    .toArray());
+        }
+
+        private Map<Integer, Integer> current() {
+            Map<Integer, Integer> current = new HashMap<>(live.size());
+            live.forEach((tier, capacity) -> current.put(tier, capacity.get()));
+            return current;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.capacity.scripts.LeaseCapacityScript;
+import com.example.gateway.capacity.scripts.ReturnLeaseScript;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.DynamicCapacityDto;
+import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.InFlightPermitsResponse;
+import com.example.gateway.dto.LeaseCapacityResult;
+import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.utils.CapacityResults;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capacity manager serving acquire and release operations from local pools of permits leased from Redis.
+ * <p>
+ * Blocks of permits are leased per tier by LeaseCapacityScript only when the local pool of the requested tier is
+ * empty, so most requests never reach Redis. Idle permits are returned in the background, and leases are renewed
+ * by NodeLeaseRenewer, so permits of a crashed node are reclaimed by the remaining nodes once its leases expire.
+ * <p>
+ * Tier borrowing is preserved: the lease script borrows from lower priority tiers in Redis when the requested tier
+ * is exhausted, and locally held permits of lower priority tiers are borrowed when nothing can be leased.
+ * <p>
+ * Permits are tagged with the lease epoch they were taken in. Once the leases of the node expire, the epoch changes,
+ * and permits of the previous epochs still in flight are dropped on release, as other nodes reclaimed them already.
+ */
+@Slf4j
+@Primary
+@Service
+@ConditionalOnProperty(prefix = "capacity.lease", name = "enabled", havingValue = "true")
+@ConditionalOnRedisCapacityEngine
+public class LeasedCapacityManager implements CapacityManager {
+    private final RedisCapacityManager redisCapacityManager;
+    private final LeaseCapacityScript leaseCapacityScript;
+    private final ReturnLeaseScript returnLeaseScript;
+    private final NodeLeaseRenewer nodeLeaseRenewer;
+    private final CapacityStoreCircuitBreaker capacityStoreCircuitBreaker;
+    private final CapacityProperties.Lease leaseProperties;
+    private final String nodeId;
+    private final CapacityKeys keys = CapacityKeys.DEFAULT;
+    private final String releasedChannel;
+    // Tiers released to the local pools, emissions racing with each other are dropped
+    private final Sinks.Many<Integer> releasedTiers = Sinks.many().multicast().directBestEffort();
+
+    private final Map<Integer, LocalPermitPool> pools = new ConcurrentHashMap<>();
+    // Local pools sorted from the lowest to the highest priority tier, used for borrowing
+    private volatile LocalPermitPool[] poolsByPriority = new LocalPermitPool[0];
+    // Changed whenever the permits held locally are discarded after the leases of the node expired
+    private final AtomicInteger leaseEpoch = new AtomicInteger(1);
+
+    private Disposable returnTask;
+
+    public LeasedCapacityManager(
+            RedisCapacityManager redisCapacityManager,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
+            LeaseCapacityScript leaseCapacityScript,
+            ReturnLeaseScript returnLeaseScript,
+            NodeLeaseRenewer nodeLeaseRenewer,
+            CapacityStoreCircuitBreaker capacityStoreCircuitBreaker
+    ) {
+        this.redisCapacityManager = redisCapacityManager;
+        this.leaseCapacityScript = leaseCapacityScript;
+        this.returnLeaseScript = returnLeaseScript;
+        this.nodeLeaseRenewer = nodeLeaseRenewer;
+        this.capacityStoreCircuitBreaker = capacityStoreCircuitBreaker;
+        this.leaseProperties = capacityProperties.getLease();
+        this.nodeId = capacityProperties.getNodeId();
+        this.releasedChannel = capacityProperties.releasedChannel(keys.releasedChannel());
+
+        if (redisCapacityManager.isSharded()) {
+            throw new IllegalStateException("Leasing capacity is not supported with sharded capacity stores, "
+                    + "set capacity.sharding.shards to 1 or disable capacity.lease");
+        }
+        if (capacityProperties.getScheduling().isWeightedFair()) {
+            throw new IllegalStateException("Leasing capacity is not supported with weighted fair scheduling, "
+                    + "set capacity.scheduling.policy to PRIORITY or disable capacity.lease");
+        }
+        if (limitProperties.hasClientInFlightCaps()) {
+            throw new IllegalStateException("Leasing capacity is not supported with per-client in-flight caps, "
+                    + "remove max-in-flight of the clients and client-in-flight.default-max or disable capacity.lease");
+        }
+        if (!limitProperties.getTiersRateLimit().isEmpty()) {
+            throw new IllegalStateException("Leasing capacity is not supported with rate limits, "
+                    + "remove spring-cloud-gateway.tiers-rate-limit or disable capacity.lease");
+        }
+
+        limitProperties.getTiersCapacity().keySet().forEach(this::getPool);
+
+        log.info("Leasing capacity for node {} in blocks of {} permits", nodeId, leaseProperties.getBlockSize());
+    }
+
+    @PostConstruct
+    public void start() {
+        returnTask = Flux.interval(leaseProperties.getReturnInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> returnIdlePermits())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        returnTask.dispose();
+
+        log.info("Returning all leased permits of node {}", nodeId);
+        Flux.fromIterable(pools.values())
+                .flatMap(pool -> returnLease(pool, pool.drain(Integer.MAX_VALUE)))
+                .then()
+                .block(Duration.ofSeconds(5));
+    }
+
+    @Override
+    public Mono<AcquireCapacityResult> tryAcquireCapacity(int tier, String clientId) {
+        // Borrowing from locally held lower priority tiers is deferred until the requested tier
+        // is exhausted in Redis too, the same way try_acquire_capacity.lua borrows
+        LocalPermitPool requestedPool = pools.get(tier);
+        if (requestedPool != null && requestedPool.tryAcquire()) {
+            return Mono.just(CapacityResults.leasedAcquire(tier, tier, leaseEpoch.get()));
+        }
+
+        return leaseAndAcquire(tier, clientId);
+    }
+
+    @Override
+    public Mono<ReleaseCapacityResult> releaseCapacity(int tier, String clientId) {
+        return Mono.fromSupplier(() -> {
+            LocalPermitPool pool = getPool(tier);
+            int previousCapacity = (int) pool.available();
+            pool.release(1);
+            return CapacityResults.successfulRelease(tier, previousCapacity, previousCapacity + 1);
+        });
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> getCurrentCapacities() {
+        return redisCapacityManager.getCurrentCapacities();
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> getDefaultCapacities() {
+        return redisCapacityManager.getDefaultCapacities();
+    }
+
+    @Override
+    public Mono<DynamicCapacityResponse> updateCapacities(DynamicCapacityDto dto) {
+        // Leased permits are already subtracted from the live capacities, so they are kept as in-flight
+        return redisCapacityManager.updateCapacities(dto);
+    }
+
+    @Override
+    public Mono<InFlightPermitsResponse> getInFlightPermits() {
+        return redisCapacityManager.getInFlightPermits();
+    }
+
+    @Override
+    public Flux<Integer> releaseEvents() {
+        // Permits released to the local pools are only visible to this node, permits returned to Redis to all nodes
+        return Flux.merge(releasedTiers.asFlux(), redisCapacityManager.releaseEvents());
+    }
+
+    @Override
+    public void handleReleaseCapacity(Integer tierToRelease, String clientId) {
+        if (tierToRelease != null) {
+            getPool(tierToRelease).release(1);
+            releasedTiers.tryEmitNext(tierToRelease);
+        } else {
+            log.warn("Dynamic capacity filter error. Tier to release is null for client {}, no release was done", clientId);
+        }
+    }
+
+    /**
+     * Permits granted by the degraded mode of the circuit breaker were never leased, and permits taken before
+     * the leases of the node expired were reclaimed by other nodes already
+     */
+    @Override
+    public void handleReleaseCapacity(AcquireCapacityResult acquireResult, String clientId) {
+        if (acquireResult.degraded()) {
+            capacityStoreCircuitBreaker.release(acquireResult);
+        } else if (acquireResult.leaseEpoch() != leaseEpoch.get()) {
+            log.debug("Dropped release of a permit of tier {} taken before the leases of node {} expired",
+                    acquireResult.sourceTier(), nodeId);
+        } else {
+            handleReleaseCapacity(acquireResult.sourceTier(), clientId);
+        }
+    }
+
+    @Override
+    public Mono<Void> warmUp(int connections) {
+        return redisCapacityManager.warmUp(connections);
+    }
+
+    @Override
+    public CapacityManager forPool(String pool, Map<Integer, Integer> tiersCapacity) {
+        throw new IllegalStateException("Leasing capacity is not supported with capacity pools, "
+                + "remove capacity.pools or disable capacity.lease");
+    }
+
+    /**
+     * Takes a permit of the requested tier from the local pool, borrowing from the lowest priority tier first.
+     *
+     * @return result of the acquired permit, or null if no permit is available locally
+     */
+    private AcquireCapacityResult tryAcquireLocally(int tier) {
+        LocalPermitPool requestedPool = pools.get(tier);
+        if (requestedPool != null && requestedPool.tryAcquire()) {
+            return CapacityResults.leasedAcquire(tier, tier, leaseEpoch.get());
+        }
+
+        for (LocalPermitPool pool : poolsByPriority) {
+            if (pool.tier() <= tier) {
+                break;
+            }
+            if (pool.tryAcquire()) {
+                return CapacityResults.leasedAcquire(pool.tier(), tier, leaseEpoch.get());
+            }
+        }
+        return null;
+    }
+
+    private Mono<AcquireCapacityResult> leaseAndAcquire(int tier, String clientId) {
+        // Leased permits are put into the local pool even if the request is cancelled in the meantime,
+        // otherwise they would stay leased by this node without being used. The lease is started only once
+        // the circuit breaker permits the call, and its timeout cuts off waiting for the lease, not the lease itself.
+        return Mono.defer(() -> {
+                    CompletableFuture<LeaseCapacityResult> lease = leaseCapacityScript
+                            .lease(keys.capacity(), keys.leases(), keys.leaseExpiry(), keys.freeTiers(), nodeId, tier,
+                                    leaseProperties.getBlockSize(), leaseProperties.getTtl())
+                            .doOnNext(result -> {
+                                if (result.leased()) {
+                                    getPool(result.sourceTier()).release(result.permits());
+                                }
+                            })
+                            .toFuture();
+                    return Mono.fromFuture(lease, true);
+                })
+                .transform(capacityStoreCircuitBreaker::protect)
+                .map(leaseResult -> {
+                    AcquireCapacityResult result = tryAcquireLocally(tier);
+                    if (result != null) {
+                        return result;
+                    }
+                    return CapacityResults.failedAcquire(
+                            leaseResult.leased() ? CapacityResults.NO_CAPACITY_AVAILABLE : leaseResult.error(), tier);
+                })
+                .doOnError(e -> log.debug("Failed to lease capacity for client {} (tier {}): {}",
+                        clientId, tier, e.getMessage()))
+                .onErrorResume(e -> {
+                    // Permits still held locally are used before the degraded mode
+                    AcquireCapacityResult result = tryAcquireLocally(tier);
+                    return Mono.just(result != null ? result : capacityStoreCircuitBreaker.acquire(tier));
+                });
+    }
+
+    private Mono<Void> returnIdlePermits() {
+        discardExpiredPermits();
+
+        return Flux.fromIterable(pools.values())
+                .concatMap(pool -> {
+                    // Keep a few permits for busy tiers, return everything held by tiers without traffic
+                    int keep = pool.acquisitionsSinceLastCheck() > 0 ? leaseProperties.getMaxIdlePermits() : 0;
+                    long surplus = pool.available() - keep;
+                    if (surplus <= 0) {
+                        return Mono.empty();
+                    }
+                    return returnLease(pool, pool.drain((int) surplus));
+                })
+                .then();
+    }
+
+    private Mono<Void> returnLease(LocalPermitPool pool, int permits) {
+        if (permits <= 0) {
+            return Mono.empty();
+        }
+
+        return returnLeaseScript
+                .returnLease(keys.capacity(), keys.leases(), keys.freeTiers(), releasedChannel, nodeId,
+                        pool.tier(), permits)
+                .doOnNext(result -> log.debug("Returned {} leased permits of tier {}: {}", permits, pool.tier(), result))
+                .onErrorResume(e -> {
+                    log.warn("Failed to return {} leased permits of tier {}, keeping them locally: {}",
+                            permits, pool.tier(), e.getMessage());
+                    pool.release(permits);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Once the leases of this node expire, other nodes reclaim its permits, so the permits still held locally
+     * must not be used anymore, and the permits in flight must not be released to the local pools.
+     */
+    private void discardExpiredPermits() {
+        if (nodeLeaseRenewer.isExpired()) {
+            // Changed before draining, so a permit taken while draining is tagged with the new epoch at worst
+            int epoch = leaseEpoch.incrementAndGet();
+            log.warn("Leases of node {} expired, dropping releases of the permits in flight before lease epoch {}",
+                    nodeId, epoch);
+            pools.values().forEach(pool -> {
+                int discarded = pool.drain(Integer.MAX_VALUE);
+                if (discarded > 0) {
+                    log.warn("Discarded {} permits of tier {} after lease expiry", discarded, pool.tier());
+                }
+            });
+        }
+    }
+
+    private LocalPermitPool getPool(int tier) {
+        LocalPermitPool pool = pools.get(tier);
+        if (pool != null) {
+            return pool;
+        }
+
+        synchronized (pools) {
+            pool = pools.computeIfAbsent(tier, LocalPermitPool::new);
+            poolsByPriority = pools.values().stream()
+                    .sorted(Comparator.comparingInt(LocalPermitPool::tier).reversed())
+                    .toArray(LocalPermitPool[]::new);
+            log.debug("Local permit pools for tiers: {}", pools.keySet());
+        }
+        return pool;
+    }
+}
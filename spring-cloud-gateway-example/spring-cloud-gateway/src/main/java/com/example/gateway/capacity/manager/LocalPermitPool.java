@@ -0,0 +1,92 @@
+package com.example.gateway.capacity.manager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free pool of permits held locally by this node for a single tier.
+ * Permits are spread over stripes picked by the calling thread, so event loop threads do not contend on a single
+ * counter. Stripes are padded to separate cache lines.
+ */
+final class LocalPermitPool {
+    private static final int PADDING = 8;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+    private final int tier;
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PADDING);
+    private final LongAdder acquisitions = new LongAdder();
+
+    LocalPermitPool(int tier) {
+        this.tier = tier;
+    }
+
+    int tier() {
+        return tier;
+    }
+
+    /**
+     * Takes a single permit from the pool, starting with the stripe of the calling thread.
+     *
+     * @return true if a permit was taken
+     */
+    boolean tryAcquire() {
+        int start = stripeIndex();
+        for (int i = 0; i < STRIPES; i++) {
+            int index = ((start + i) & (STRIPES - 1)) * PADDING;
+            long available;
+            while ((available = stripes.get(index)) > 0) {
+                if (stripes.compareAndSet(index, available, available - 1)) {
+                    acquisitions.increment();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts permits back into the stripe of the calling thread.
+     */
+    void release(int permits) {
+        stripes.addAndGet(stripeIndex() * PADDING, permits);
+    }
+
+    /**
+     * Takes up to the given number of permits out of the pool.
+     *
+     * @return the number of permits taken
+     */
+    int drain(int maxPermits) {
+        int drained = 0;
+        for (int i = 0; i < STRIPES && drained < maxPermits; i++) {
+            int index = i * PADDING;
+            long available;
+            while ((available = stripes.get(index)) > 0 && drained < maxPermits) {
+                long taken = Math.min(available, maxPermits - drained);
+                if (stripes.compareAndSet(index, available, available - taken)) {
+                    drained += (int) taken;
+                }
+            }
+        }
+        return drained;
+    }
+
+    long available() {
+        long available = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            available += stripes.get(i * PADDING);
+        }
+        return available;
+    }
+
+    /**
+     * Returns the number of permits taken since the previous call.
+     */
+    long acquisitionsSinceLastCheck() {
+        return acquisitions.sumThenReset();
+    }
+
+    private static int stripeIndex() {
+        return (int) Thread.currentThread().threadId() & (STRIPES - 1);
+    }
+}
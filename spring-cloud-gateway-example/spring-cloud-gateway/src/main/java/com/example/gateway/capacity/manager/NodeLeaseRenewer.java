@@ -0,0 +1,101 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.capacity.scripts.RenewLeaseScript;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.properties.CapacityProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Heartbeats the leases of this node and reclaims permits held by dead nodes.
+ * <p>
+ * Permits held by a node, both leased blocks and in-flight permits of the regular acquire operations, are tracked
+ * per node in Redis. Every node renews its leases periodically with RenewLeaseScript, which also returns the permits
+ * of the nodes whose leases expired back to their tiers, so capacity does not decay when nodes die without releasing
+ * their permits.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class NodeLeaseRenewer {
+    private final RenewLeaseScript renewLeaseScript;
+    private final List<CapacityKeys> shards;
+    private final String nodeId;
+    private final Duration ttl;
+    private final boolean enabled;
+    // Reclaimed permits have to go through the fair share accounting with weighted fair scheduling
+    private final boolean weightedFair;
+
+    private volatile long lastRenewNanos = System.nanoTime();
+    private Disposable renewTask;
+
+    public NodeLeaseRenewer(RenewLeaseScript renewLeaseScript, CapacityProperties capacityProperties) {
+        this.renewLeaseScript = renewLeaseScript;
+        // The stores of the capacity pools track the permits of the node the same way as the global stores
+        int shardCount = capacityProperties.getSharding().getShards();
+        this.shards = Stream.concat(
+                CapacityKeys.forShards(shardCount).stream(),
+                capacityProperties.getPools().keySet().stream()
+                        .flatMap(pool -> CapacityKeys.forPool(pool, shardCount).stream())
+        ).toList();
+        this.nodeId = capacityProperties.getNodeId();
+        this.ttl = capacityProperties.getLease().getTtl();
+        this.enabled = capacityProperties.getLease().isEnabled() || capacityProperties.getLease().isTrackInFlight();
+        this.weightedFair = capacityProperties.getScheduling().isWeightedFair();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            log.info("Renewing leases of node {} every {}", nodeId, ttl.dividedBy(3));
+
+            renewTask = Flux.interval(Duration.ZERO, ttl.dividedBy(3))
+                    .onBackpressureDrop()
+                    .concatMap(tick -> renewLeases())
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (renewTask != null) {
+            renewTask.dispose();
+        }
+    }
+
+    /**
+     * Returns true once the leases of this node were not renewed for longer than their time to live,
+     * so other nodes may have reclaimed the permits held by this node
+     */
+    public boolean isExpired() {
+        return System.nanoTime() - lastRenewNanos > ttl.toNanos();
+    }
+
+    private Mono<Void> renewLeases() {
+        return Flux.fromIterable(shards)
+                .concatMap(keys -> renewLeaseScript
+                        .renew(keys.capacity(), keys.leases(), keys.leaseExpiry(), keys.freeTiers(),
+                                weightedFair ? keys.fairShare() : null, nodeId, ttl)
+                        .doOnNext(result -> {
+                            if (result.reclaimedPermits() > 0) {
+                                log.warn("Reclaimed {} permits held by {} nodes with expired leases",
+                                        result.reclaimedPermits(), result.expiredNodes());
+                            }
+                        }))
+                .then()
+                .doOnSuccess(ignored -> lastRenewNanos = System.nanoTime())
+                .onErrorResume(e -> {
+                    log.error("Failed to renew leases of node {}: {}", nodeId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+}
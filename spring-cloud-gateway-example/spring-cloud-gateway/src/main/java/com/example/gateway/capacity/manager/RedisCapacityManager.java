@@ -1,81 +1,318 @@
 package com.example.gateway.capacity.manager;
 
 import com.example.gateway.capacity.scripts.InitializeCapacityScript;
+import com.example.gateway.capacity.scripts.ReleaseCapacityFairScript;
 import com.example.gateway.capacity.scripts.ReleaseCapacityScript;
+import com.example.gateway.capacity.scripts.TryAcquireCapacityBatchScript;
+import com.example.gateway.capacity.scripts.TryAcquireCapacityFairScript;
+import com.example.gateway.capacity.scripts.TryAcquireCapacityRateLimitedScript;
 import com.example.gateway.capacity.scripts.TryAcquireCapacityScript;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityRequest;
 import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientInFlightLimit;
 import com.example.gateway.dto.DynamicCapacityDto;
 import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.InFlightPermitsResponse;
 import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
 import com.example.gateway.properties.SpringCloudGatewayProperties;
 import com.example.gateway.utils.CapacityResults;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RMap;
 import org.redisson.api.RMapAsync;
+import org.redisson.api.RScoredSortedSetAsync;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisConnectionException;
+import org.redisson.client.codec.IntegerCodec;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 @Service
+@ConditionalOnRedisCapacityEngine
 public class RedisCapacityManager implements CapacityManager {
-    public static final String CAPACITY_KEY = "spring_cloud_gateway:capacity_map ";
-    public static final String DEFAULT_CAPACITY_KEY = "spring_cloud_gateway:default_capacities ";
-
     private final RedissonClient redisson;
     private final SpringCloudGatewayProperties limitProperties;
+    private final CapacityProperties capacityProperties;
     private final InitializeCapacityScript initializeCapacityScript;
     private final TryAcquireCapacityScript tryAcquireCapacityScript;
+    private final TryAcquireCapacityBatchScript tryAcquireCapacityBatchScript;
     private final ReleaseCapacityScript releaseCapacityScript;
+    private final TryAcquireCapacityFairScript tryAcquireCapacityFairScript;
+    private final TryAcquireCapacityRateLimitedScript tryAcquireCapacityRateLimitedScript;
+    private final ReleaseCapacityFairScript releaseCapacityFairScript;
+    private final CapacityReleaseBatcher capacityReleaseBatcher;
+    private final CapacityStoreCircuitBreaker capacityStoreCircuitBreaker;
+    private final Timer releaseTimer;
+    // Independent capacity stores, each holding its share of the capacity of every tier
+    private final List<CapacityKeys> shards;
+    // Default capacity of every tier, of the global capacity or of a capacity pool
+    private final Map<Integer, Integer> tiersCapacity;
+    // Id of this node acquired permits are tracked with, empty if in-flight permits are not tracked
+    private final String nodeId;
+    private final boolean weightedFair;
+    // Initialization of the default capacities started at construction, awaited by warm-up
+    private final Mono<DynamicCapacityResponse> initialization;
 
+    @Autowired
     public RedisCapacityManager(
             RedissonClient redisson,
             SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
             InitializeCapacityScript initializeCapacityScript,
             TryAcquireCapacityScript tryAcquireCapacityScript,
-            ReleaseCapacityScript releaseCapacityScript
+            TryAcquireCapacityBatchScript tryAcquireCapacityBatchScript,
+            ReleaseCapacityScript releaseCapacityScript,
+            TryAcquireCapacityFairScript tryAcquireCapacityFairScript,
+            TryAcquireCapacityRateLimitedScript tryAcquireCapacityRateLimitedScript,
+            ReleaseCapacityFairScript releaseCapacityFairScript,
+            CapacityReleaseBatcher capacityReleaseBatcher,
+            CapacityStoreCircuitBreaker capacityStoreCircuitBreaker,
+            MeterRegistry meterRegistry
     ) {
         this.redisson = redisson;
         this.limitProperties = limitProperties;
+        this.capacityProperties = capacityProperties;
         this.initializeCapacityScript = initializeCapacityScript;
         this.tryAcquireCapacityScript = tryAcquireCapacityScript;
+        this.tryAcquireCapacityBatchScript = tryAcquireCapacityBatchScript;
         this.releaseCapacityScript = releaseCapacityScript;
+        this.tryAcquireCapacityFairScript = tryAcquireCapacityFairScript;
+        this.tryAcquireCapacityRateLimitedScript = tryAcquireCapacityRateLimitedScript;
+        this.releaseCapacityFairScript = releaseCapacityFairScript;
+        this.capacityReleaseBatcher = capacityReleaseBatcher;
+        this.capacityStoreCircuitBreaker = capacityStoreCircuitBreaker;
+        this.releaseTimer = Timer.builder("capacity.release.latency")
+                .description("Latency of releases applied to Redis one by one")
+                .register(meterRegistry);
+
+        this.shards = CapacityKeys.forShards(capacityProperties.getSharding().getShards());
+        this.tiersCapacity = limitProperties.getTiersCapacity();
+        this.nodeId = capacityProperties.inFlightNodeId();
+        this.weightedFair = capacityProperties.getScheduling().isWeightedFair();
+
+        if (weightedFair && !limitProperties.getTiersRateLimit().isEmpty()) {
+            throw new IllegalStateException("Rate limits are not supported with weighted fair scheduling, "
+                    + "set capacity.scheduling.policy to PRIORITY or remove spring-cloud-gateway.tiers-rate-limit");
+        }
+
+        log.info("Redis capacity stores: {}, scheduling policy: {}",
+                shards, capacityProperties.getScheduling().getPolicy());
+
+        this.initialization = startInitialization();
+    }
 
-        log.info("Redis capacities key: {}", CAPACITY_KEY);
-        log.info("Redis default capacities key: {}", DEFAULT_CAPACITY_KEY);
+    /**
+     * Manager of a capacity pool, with capacity stores and degraded mode limits of its own. The scripts, release
+     * batches and the circuit breaker are shared with the global manager.
+     */
+    private RedisCapacityManager(RedisCapacityManager global, String pool, Map<Integer, Integer> tiersCapacity) {
+        this.redisson = global.redisson;
+        this.limitProperties = global.limitProperties;
+        this.capacityProperties = global.capacityProperties;
+        this.initializeCapacityScript = global.initializeCapacityScript;
+        this.tryAcquireCapacityScript = global.tryAcquireCapacityScript;
+        this.tryAcquireCapacityBatchScript = global.tryAcquireCapacityBatchScript;
+        this.releaseCapacityScript = global.releaseCapacityScript;
+        this.tryAcquireCapacityFairScript = global.tryAcquireCapacityFairScript;
+        this.tryAcquireCapacityRateLimitedScript = global.tryAcquireCapacityRateLimitedScript;
+        this.releaseCapacityFairScript = global.releaseCapacityFairScript;
+        this.capacityReleaseBatcher = global.capacityReleaseBatcher;
+        this.capacityStoreCircuitBreaker = global.capacityStoreCircuitBreaker.forPool(pool, tiersCapacity);
+        this.releaseTimer = global.releaseTimer;
+        this.shards = CapacityKeys.forPool(pool, capacityProperties.getSharding().getShards());
+        this.tiersCapacity = Map.copyOf(tiersCapacity);
+        this.nodeId = global.nodeId;
+        this.weightedFair = global.weightedFair;
 
-        // Initialize default capacities and subscribe to the result
-        initializeDefaultCapacities()
-                .subscribe(
-                        result -> log.info("Initialized default dynamic capacities: {}", result),
-                        error -> log.error("Failed to initialize default capacities", error)
-                );
+        log.info("Redis capacity stores of pool {}: {}", pool, shards);
+
+        this.initialization = startInitialization();
+    }
+
+    /**
+     * Initializes the default capacities and subscribes to the result, CapacityWarmUp keeps the node out of
+     * the load balancer until the initialization succeeded
+     */
+    private Mono<DynamicCapacityResponse> startInitialization() {
+        Mono<DynamicCapacityResponse> initialization = initialize().cache();
+        initialization.subscribe(
+                result -> log.info("Initialized default dynamic capacities of {}: {}", shards.get(0).capacity(), result),
+                error -> log.error("Failed to initialize default capacities of {}", shards.get(0).capacity(), error)
+        );
+        return initialization;
+    }
+
+    @Override
+    public CapacityManager forPool(String pool, Map<Integer, Integer> tiersCapacity) {
+        return new RedisCapacityManager(this, pool, tiersCapacity);
+    }
+
+    /**
+     * Waits for the initialization of the default capacities, repeating it if it failed, e.g. while Redis was
+     * unreachable, then opens the connections. Repeating the initialization keeps in-flight permits accounted for.
+     */
+    @Override
+    public Mono<Void> warmUp(int connections) {
+        return initialization
+                .filter(result -> Boolean.TRUE.equals(result.getSuccess()))
+                .onErrorResume(e -> Mono.empty())
+                .switchIfEmpty(Mono.defer(this::initialize))
+                .flatMap(result -> Boolean.TRUE.equals(result.getSuccess())
+                        ? Mono.<Void>empty()
+                        : Mono.error(new IllegalStateException(
+                                "Failed to initialize default capacities: " + result.getError())))
+                .then(openConnections(Math.max(connections, shards.size())));
+    }
+
+    /**
+     * Sends concurrent commands to every capacity store, so Redisson opens its connections before the first requests
+     */
+    private Mono<Void> openConnections(int connections) {
+        return Flux.range(0, connections)
+                .flatMap(i -> Mono.fromCompletionStage(() ->
+                        redisson.getKeys().countExistsAsync(shards.get(i % shards.size()).capacity())), connections)
+                .then();
+    }
+
+    /**
+     * Returns the capacity store of the client, all requests of a client use the same store
+     */
+    public CapacityKeys keysFor(String clientId) {
+        if (shards.size() == 1 || clientId == null) {
+            return shards.get(0);
+        }
+        return shards.get(Math.floorMod(clientId.hashCode(), shards.size()));
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
     }
 
     public Mono<AcquireCapacityResult> tryAcquireCapacity(int tier, String clientId) {
+        CapacityKeys keys = keysFor(clientId);
+
+        if (weightedFair) {
+            return tryAcquireCapacities(keys, List.of(new AcquireCapacityRequest(tier, clientId)))
+                    .map(results -> results.get(0));
+        }
+
         return tryAcquireCapacityScript
-                .executeAsync(CAPACITY_KEY, String.valueOf(tier))
+                .tryAcquire(keys.capacity(), keys.freeTiers(), keys.leases(), nodeId, tier,
+                        clientLimit(keys, clientId), clientInFlightTtl())
                 .doOnError(e -> {
                     log.error("Failed to acquire capacity for client {} (tier {})", clientId, tier, e);
                 })
-                .doOnCancel(() -> {
-                    log.warn("Release capacity operation cancelled for client {} (tier {})", clientId, tier);
-                    log.info("Attempting to release capacity for client {} (tier {})", clientId, tier);
-                    handleReleaseCapacity(tier, clientId);
+                .transform(acquire -> protect(acquire, result -> releaseAbandoned(result, clientId)))
+                .onErrorResume(e -> Mono.just(capacityStoreCircuitBreaker.acquire(tier)));
+    }
+
+    /**
+     * The token bucket of the client and the capacity of the tiers are checked by a single script call
+     */
+    @Override
+    public Mono<AcquireCapacityResult> tryAcquireRateLimitedCapacity(
+            int tier,
+            String clientId,
+            SpringCloudGatewayProperties.RateLimit rateLimit
+    ) {
+        CapacityKeys keys = keysFor(clientId);
+
+        return tryAcquireCapacityRateLimitedScript
+                .tryAcquire(keys.capacity(), keys.freeTiers(), keys.leases(), keys.rateLimit(clientId), nodeId,
+                        tier, rateLimit, clientLimit(keys, clientId), clientInFlightTtl())
+                .doOnError(e -> log.error("Failed to acquire rate limited capacity for client {} (tier {})",
+                        clientId, tier, e))
+                .transform(acquire -> protect(acquire, result -> releaseAbandoned(result, clientId)))
+                .onErrorResume(e -> Mono.just(capacityStoreCircuitBreaker.acquire(tier)));
+    }
+
+    @Override
+    public Mono<List<AcquireCapacityResult>> tryAcquireCapacities(List<AcquireCapacityRequest> requests) {
+        if (!isSharded()) {
+            return tryAcquireCapacities(shards.get(0), requests);
+        }
+
+        // A single script call per capacity store, the results are put back in the order of the requests
+        Map<CapacityKeys, List<Integer>> indexesByShard = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            indexesByShard.computeIfAbsent(keysFor(requests.get(i).clientId()), keys -> new ArrayList<>()).add(i);
+        }
+
+        AcquireCapacityResult[] results = new AcquireCapacityResult[requests.size()];
+        return Flux.fromIterable(indexesByShard.entrySet())
+                .flatMap(shard -> {
+                    List<Integer> indexes = shard.getValue();
+                    List<AcquireCapacityRequest> shardRequests = indexes.stream().map(requests::get).toList();
+                    return tryAcquireCapacities(shard.getKey(), shardRequests)
+                            .doOnNext(shardResults -> {
+                                for (int i = 0; i < indexes.size(); i++) {
+                                    results[indexes.get(i)] = shardResults.get(i);
+                                }
+                            });
                 })
-                .onErrorReturn(CapacityResults.failedAcquire("Error executing script", tier));
+                .then(Mono.fromSupplier(() -> Arrays.asList(results)));
+    }
+
+    private Mono<List<AcquireCapacityResult>> tryAcquireCapacities(
+            CapacityKeys keys,
+            List<AcquireCapacityRequest> requests
+    ) {
+        List<Integer> tiers = requests.stream().map(AcquireCapacityRequest::tier).toList();
+        // Not a stream toList, it does not allow the null limits of uncapped clients
+        List<ClientInFlightLimit> clientLimits = new ArrayList<>(requests.size());
+        requests.forEach(request -> clientLimits.add(clientLimit(keys, request.clientId())));
+
+        Mono<List<AcquireCapacityResult>> acquire = weightedFair
+                ? tryAcquireCapacityFairScript.tryAcquire(keys.capacity(), keys.defaultCapacity(), keys.freeTiers(),
+                        keys.leases(), keys.fairShare(), keys.scheduling(), nodeId, tiers, clientLimits,
+                        clientInFlightTtl())
+                : tryAcquireCapacityBatchScript.tryAcquire(keys.capacity(), keys.freeTiers(), keys.leases(), nodeId,
+                        tiers, clientLimits, clientInFlightTtl());
+
+        return acquire
+                .doOnError(e -> log.error("Failed to acquire capacity for a batch of {} requests", requests.size(), e))
+                .transform(batch -> protect(batch, results -> {
+                    for (int i = 0; i < results.size(); i++) {
+                        releaseAbandoned(results.get(i), requests.get(i).clientId());
+                    }
+                }))
+                // Failed or timed out calls only, codes rejecting the whole batch are failed acquires of its requests
+                .onErrorResume(e -> Mono.just(tiers.stream()
+                        .map(capacityStoreCircuitBreaker::acquire)
+                        .toList()));
     }
 
     public Mono<ReleaseCapacityResult> releaseCapacity(int tier, String clientId) {
-        return releaseCapacityScript
-                .executeAsync(CAPACITY_KEY, String.valueOf(tier))
+        return release(keysFor(clientId), tier, clientId)
                 .timeout(Duration.ofSeconds(5))
-                .retryWhen(Retry.fixedDelay(3, Duration.ofMillis(100)))
+                .transform(release -> timed(release, releaseTimer))
+                // Only retried if the release was never sent, a release timing out may have been applied already
+                .retryWhen(Retry.fixedDelay(3, Duration.ofMillis(100))
+                        .filter(RedisConnectionException.class::isInstance))
                 .doOnSuccess(result -> {
                     if (result.released()) {
                         log.debug("Released capacity for tier {} and client {}: {} -> {}", tier, clientId,
@@ -90,20 +327,45 @@ public class RedisCapacityManager implements CapacityManager {
                 });
     }
 
+    private Mono<ReleaseCapacityResult> release(CapacityKeys keys, int tier, String clientId) {
+        String releasedChannel = capacityProperties.releasedChannel(keys.releasedChannel());
+        String clientKey = clientKey(keys, clientId);
+        if (!weightedFair) {
+            return releaseCapacityScript
+                    .release(keys.capacity(), keys.freeTiers(), keys.leases(), releasedChannel, nodeId, tier,
+                            clientKey);
+        }
+
+        // Capacities before and after the release are not reported, the permit may go back to a lending tier
+        return releaseCapacityFairScript
+                .release(keys.capacity(), keys.freeTiers(), keys.leases(), keys.fairShare(), releasedChannel, nodeId,
+                        Map.of(tier, 1), clientKey == null ? Map.of() : Map.of(clientKey, 1))
+                .map(result -> result.released()
+                        ? new ReleaseCapacityResult(true, tier, null, null, null)
+                        : CapacityResults.failedRelease(result.error()));
+    }
+
     public Mono<DynamicCapacityResponse> getCurrentCapacities() {
-        return getCapacitiesFromKey(CAPACITY_KEY);
+        return getShardedCapacities(CapacityKeys::capacity);
     }
 
     @Override
     public Mono<DynamicCapacityResponse> getDefaultCapacities() {
-        return getCapacitiesFromKey(DEFAULT_CAPACITY_KEY);
+        return getShardedCapacities(CapacityKeys::defaultCapacity);
     }
 
     public Mono<DynamicCapacityResponse> updateCapacities(DynamicCapacityDto dto) {
         Map<Integer, Integer> capacities = dto.getCapacities();
         log.info("Updating dynamic capacities: {}", capacities);
 
-        return initializeCapacityScript.initialize(CAPACITY_KEY, DEFAULT_CAPACITY_KEY, capacities)
+        return Flux.range(0, shards.size())
+                .concatMap(shard -> {
+                    CapacityKeys keys = shards.get(shard);
+                    Map<Integer, Integer> shardCapacities = shareOf(capacities, shard);
+                    return initializeCapacityScript.initialize(
+                            keys.capacity(), keys.defaultCapacity(), keys.freeTiers(), shardCapacities);
+                })
+                .reduce(this::mergeResponses)
                 .timeout(Duration.ofSeconds(5))
                 .onErrorResume(e -> {
                     log.error("Error during updating dynamic capacities", e);
@@ -114,8 +376,78 @@ public class RedisCapacityManager implements CapacityManager {
                 });
     }
 
+    @Override
+    public Mono<InFlightPermitsResponse> getInFlightPermits() {
+        return Mono.defer(() -> {
+            Map<String, Map<Integer, Integer>> permitsByNode = new TreeMap<>();
+            Map<String, Long> leaseExpiryByNode = new TreeMap<>();
+
+            return Flux.fromIterable(shards)
+                    .concatMap(keys -> readInFlightPermits(keys, permitsByNode, leaseExpiryByNode))
+                    .then(Mono.fromSupplier(() -> InFlightPermitsResponse.builder()
+                            .permitsByNode(permitsByNode)
+                            .leaseExpiryByNode(leaseExpiryByNode)
+                            .success(true)
+                            .build()));
+        }).onErrorResume(e -> {
+            log.error("Error during reading in-flight permits: {}", e.getMessage());
+            return Mono.just(InFlightPermitsResponse.builder()
+                    .success(false)
+                    .error("Error reading in-flight permits: " + e.getMessage())
+                    .build());
+        });
+    }
+
+    private Mono<Void> readInFlightPermits(
+            CapacityKeys keys,
+            Map<String, Map<Integer, Integer>> permitsByNode,
+            Map<String, Long> leaseExpiryByNode
+    ) {
+        RMapAsync<String, String> leases = redisson.getMap(keys.leases(), StringCodec.INSTANCE);
+        RScoredSortedSetAsync<String> leaseExpiry =
+                redisson.getScoredSortedSet(keys.leaseExpiry(), StringCodec.INSTANCE);
+
+        return Mono.fromCompletionStage(leases::readAllMapAsync)
+                .doOnNext(fields -> fields.forEach((field, permits) -> {
+                    // Fields are stored as "node_id|tier"
+                    int separator = field.lastIndexOf('|');
+                    String node = field.substring(0, separator);
+                    int tier = Integer.parseInt(field.substring(separator + 1));
+                    permitsByNode.computeIfAbsent(node, key -> new TreeMap<>())
+                            .merge(tier, Integer.parseInt(permits), Integer::sum);
+                }))
+                .then(Mono.fromCompletionStage(() -> leaseExpiry.entryRangeAsync(0, -1)))
+                .doOnNext(entries -> entries.forEach(entry ->
+                        leaseExpiryByNode.merge(entry.getValue(), entry.getScore().longValue(), Math::max)))
+                .then();
+    }
+
+    /**
+     * Release scripts publish the tier to the channel of the capacity store once it is no longer exhausted,
+     * so every gateway node is notified about releases of all nodes
+     */
+    @Override
+    public Flux<Integer> releaseEvents() {
+        return Flux.fromIterable(shards)
+                .flatMap(keys -> releaseEvents(keys.releasedChannel()));
+    }
+
+    private Flux<Integer> releaseEvents(String channel) {
+        return Flux.create(sink -> {
+            RTopic topic = redisson.getTopic(channel, StringCodec.INSTANCE);
+            int listenerId = topic.addListener(String.class, (ignored, tier) -> sink.next(Integer.parseInt(tier)));
+            sink.onDispose(() -> topic.removeListener(listenerId));
+        });
+    }
+
     public void handleReleaseCapacity(Integer tierToRelease, String clientId) {
         if (tierToRelease != null) {
+            CapacityKeys keys = keysFor(clientId);
+            if (capacityReleaseBatcher.isEnabled()
+                    && capacityReleaseBatcher.release(keys, tierToRelease, clientKey(keys, clientId))) {
+                return;
+            }
+
             releaseCapacity(tierToRelease, clientId)
                     .subscribe( // we are in a cleanup phase, so subscribe is fine
                             result -> {
@@ -132,11 +464,101 @@ public class RedisCapacityManager implements CapacityManager {
         }
     }
 
+    /**
+     * Runs an acquire script behind the circuit breaker. The script keeps running in Redis when the circuit breaker
+     * times it out or the client disconnects, the permits it acquires for the abandoned requests are released
+     * right away instead of being lost.
+     */
+    private <T> Mono<T> protect(Mono<T> acquire, Consumer<T> releaseAbandoned) {
+        return Mono.defer(() -> {
+                    CompletableFuture<T> result = acquire.toFuture();
+                    return Mono.fromFuture(result, true)
+                            .doOnCancel(() -> result.thenAccept(releaseAbandoned));
+                })
+                .transform(capacityStoreCircuitBreaker::protect);
+    }
+
+    private void releaseAbandoned(AcquireCapacityResult result, String clientId) {
+        if (result.acquired()) {
+            log.debug("Releasing capacity acquired for an abandoned request of client {} (tier {})",
+                    clientId, result.sourceTier());
+            handleReleaseCapacity(result, clientId);
+        }
+    }
+
+    /**
+     * Permits granted by the degraded mode of the circuit breaker were never taken from Redis
+     */
+    @Override
+    public void handleReleaseCapacity(AcquireCapacityResult acquireResult, String clientId) {
+        if (acquireResult.degraded()) {
+            capacityStoreCircuitBreaker.release(acquireResult);
+        } else {
+            handleReleaseCapacity(acquireResult.sourceTier(), clientId);
+        }
+    }
+
+    /**
+     * Returns the in-flight cap of the client, null if the client is not capped
+     */
+    private ClientInFlightLimit clientLimit(CapacityKeys keys, String clientId) {
+        int maxInFlight = clientId == null ? 0 : limitProperties.getMaxInFlightForClient(clientId);
+        return maxInFlight > 0 ? new ClientInFlightLimit(keys.clientInFlight(clientId), maxInFlight) : null;
+    }
+
+    private String clientKey(CapacityKeys keys, String clientId) {
+        ClientInFlightLimit limit = clientLimit(keys, clientId);
+        return limit != null ? limit.key() : null;
+    }
+
+    private Duration clientInFlightTtl() {
+        return limitProperties.getClientInFlight().getTtl();
+    }
+
+    private static <T> Mono<T> timed(Mono<T> operation, Timer timer) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return operation.doFinally(signal -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    /**
+     * Splits the capacity of every tier evenly between the shards, the remainder goes to the first shards
+     */
+    private Map<Integer, Integer> shareOf(Map<Integer, Integer> capacities, int shard) {
+        Map<Integer, Integer> share = new LinkedHashMap<>(capacities.size());
+        capacities.forEach((tier, capacity) ->
+                share.put(tier, capacity / shards.size() + (shard < capacity % shards.size() ? 1 : 0)));
+        return share;
+    }
+
+    private Mono<DynamicCapacityResponse> getShardedCapacities(Function<CapacityKeys, String> capacityKey) {
+        return Flux.fromIterable(shards)
+                .concatMap(keys -> getCapacitiesFromKey(capacityKey.apply(keys)))
+                .reduce(this::mergeResponses);
+    }
+
+    /**
+     * Sums the capacities of the shards, the merged response fails if any of the shards failed
+     */
+    private DynamicCapacityResponse mergeResponses(DynamicCapacityResponse first, DynamicCapacityResponse second) {
+        if (!Boolean.TRUE.equals(first.getSuccess())) {
+            return first;
+        }
+        if (!Boolean.TRUE.equals(second.getSuccess())) {
+            return second;
+        }
+
+        Map<Integer, Integer> capacities = new HashMap<>(first.getCapacities());
+        second.getCapacities().forEach((tier, capacity) -> capacities.merge(tier, capacity, Integer::sum));
+        return first.toBuilder().capacities(capacities).build();
+    }
+
     private Mono<DynamicCapacityResponse> getCapacitiesFromKey(String capacityKey) {
         log.debug("Getting capacities from Redis key: {}", capacityKey);
 
         return Mono.fromCompletionStage(() -> {
-                    RMapAsync<Integer, Integer> map = redisson.getMap(capacityKey);
+                    RMapAsync<Integer, Integer> map = redisson.getMap(capacityKey, IntegerCodec.INSTANCE);
                     return map.readAllEntrySetAsync();
                 })
                 .map(this::convertToCapacitiesResponse)
@@ -147,8 +569,52 @@ public class RedisCapacityManager implements CapacityManager {
                 });
     }
 
+    /**
+     * Stores the weighted fair scheduling settings of every tier in each capacity store as "weight|min|max",
+     * min guarantees and max bursts are split between the stores like the capacities
+     */
+    private Mono<Void> writeSchedulingSettings() {
+        if (!weightedFair) {
+            return Mono.empty();
+        }
+
+        CapacityProperties.Scheduling scheduling = capacityProperties.getScheduling();
+        Set<Integer> tiers = new HashSet<>(tiersCapacity.keySet());
+        tiers.addAll(scheduling.getTiers().keySet());
+
+        Map<Integer, Integer> minGuaranteed = new HashMap<>();
+        Map<Integer, Integer> maxBurst = new HashMap<>();
+        tiers.forEach(tier -> {
+            CapacityProperties.TierScheduling settings = scheduling.getTier(tier);
+            minGuaranteed.put(tier, settings.getMinGuaranteed());
+            if (settings.getMaxBurst() != null) {
+                maxBurst.put(tier, settings.getMaxBurst());
+            }
+        });
+
+        return Flux.range(0, shards.size())
+                .concatMap(shard -> {
+                    Map<Integer, Integer> shardMinGuaranteed = shareOf(minGuaranteed, shard);
+                    Map<Integer, Integer> shardMaxBurst = shareOf(maxBurst, shard);
+                    Map<String, String> settings = new HashMap<>();
+                    tiers.forEach(tier -> settings.put(String.valueOf(tier), scheduling.getTier(tier).getWeight()
+                            + "|" + shardMinGuaranteed.get(tier)
+                            + "|" + shardMaxBurst.getOrDefault(tier, -1)));
+
+                    RMap<String, String> map = redisson.getMap(shards.get(shard).scheduling(), StringCodec.INSTANCE);
+                    return Mono.fromCompletionStage(map.deleteAsync())
+                            .then(Mono.fromCompletionStage(map.putAllAsync(settings)));
+                })
+                .doOnComplete(() -> log.info("Weighted fair scheduling settings: {}", scheduling.getTiers()))
+                .then();
+    }
+
+    private Mono<DynamicCapacityResponse> initialize() {
+        return writeSchedulingSettings().then(Mono.defer(this::initializeDefaultCapacities));
+    }
+
     private Mono<DynamicCapacityResponse> initializeDefaultCapacities() {
-        DynamicCapacityDto defaultCapacities = new DynamicCapacityDto(limitProperties.getTiersCapacity());
+        DynamicCapacityDto defaultCapacities = new DynamicCapacityDto(tiersCapacity);
         log.info("Default dynamic capacities from configs: {}", defaultCapacities);
 
         return updateCapacities(defaultCapacities);
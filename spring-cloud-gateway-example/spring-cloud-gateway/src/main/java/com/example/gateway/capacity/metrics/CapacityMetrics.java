@@ -0,0 +1,191 @@
+package com.example.gateway.capacity.metrics;
+
+import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.ReleaseReason;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import com.example.gateway.utils.CapacityResults;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capacity metrics recorded by CapacityFilter and refreshed from the capacity store.
+ * <p>
+ * Tags are bounded: tiers come from the capacity configuration, and clients are tagged by their id only when they are
+ * configured in spring-cloud-gateway.clients, all other clients share the "other" tag.
+ */
+@Slf4j
+@Component
+public class CapacityMetrics {
+    private static final String OTHER_CLIENT = "other";
+
+    private final MeterRegistry meterRegistry;
+    private final CapacityManager capacityManager;
+    private final SpringCloudGatewayProperties limitProperties;
+    private final CapacityProperties.Metrics metricsProperties;
+
+    private final Map<AcquireKey, Counter> acquiredCounters = new ConcurrentHashMap<>();
+    private final Map<RejectKey, Counter> rejectedCounters = new ConcurrentHashMap<>();
+    private final Map<LatencyKey, Timer> acquireTimers = new ConcurrentHashMap<>();
+    private final Map<Integer, Timer> holdTimers = new ConcurrentHashMap<>();
+    private final Map<ReleaseKey, Counter> releasedCounters = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> liveCapacities = new ConcurrentHashMap<>();
+
+    private Disposable refreshTask;
+
+    public CapacityMetrics(
+            MeterRegistry meterRegistry,
+            CapacityManager capacityManager,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties
+    ) {
+        this.meterRegistry = meterRegistry;
+        this.capacityManager = capacityManager;
+        this.limitProperties = limitProperties;
+        this.metricsProperties = capacityProperties.getMetrics();
+    }
+
+    @PostConstruct
+    public void start() {
+        refreshTask = Flux.interval(metricsProperties.getRefreshInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> refreshLiveCapacities())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshTask.dispose();
+    }
+
+    /**
+     * Records the final outcome and latency of an acquire operation, after the wait queue if the request waited
+     */
+    public void recordAcquire(String clientId, int requestedTier, AcquireCapacityResult result, long latencyNanos) {
+        String client = clientTag(clientId);
+
+        if (result.acquired()) {
+            AcquireKey key = new AcquireKey(requestedTier, result.sourceTier(), client);
+            acquiredCounters.computeIfAbsent(key, this::acquiredCounter).increment();
+        } else {
+            RejectKey key = new RejectKey(requestedTier, client, CapacityResults.rejectedLimit(result).tag());
+            rejectedCounters.computeIfAbsent(key, this::rejectedCounter).increment();
+        }
+
+        acquireTimers.computeIfAbsent(new LatencyKey(requestedTier, result.acquired()), this::acquireTimer)
+                .record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records how long a permit of the source tier was held by a request
+     */
+    public void recordHoldTime(int sourceTier, long holdNanos) {
+        holdTimers.computeIfAbsent(sourceTier, this::holdTimer).record(holdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records why a permit of the source tier was released
+     */
+    public void recordRelease(int sourceTier, ReleaseReason reason) {
+        releasedCounters.computeIfAbsent(new ReleaseKey(sourceTier, reason), this::releasedCounter).increment();
+    }
+
+    private Mono<Void> refreshLiveCapacities() {
+        return capacityManager.getCurrentCapacities()
+                .doOnNext(this::updateLiveCapacities)
+                .onErrorResume(e -> {
+                    log.warn("Failed to refresh live capacity metrics: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private void updateLiveCapacities(DynamicCapacityResponse response) {
+        if (!Boolean.TRUE.equals(response.getSuccess()) || response.getCapacities() == null) {
+            return;
+        }
+
+        response.getCapacities().forEach((tier, capacity) ->
+                liveCapacities.computeIfAbsent(tier, this::liveCapacityGauge).set(capacity));
+    }
+
+    private AtomicInteger liveCapacityGauge(int tier) {
+        AtomicInteger capacity = new AtomicInteger();
+        Gauge.builder("capacity.live", capacity, AtomicInteger::get)
+                .description("Live capacity of the tier in the capacity store")
+                .tag("tier", String.valueOf(tier))
+                .register(meterRegistry);
+        return capacity;
+    }
+
+    private Counter acquiredCounter(AcquireKey key) {
+        return Counter.builder("capacity.acquired")
+                .description("Permits acquired by requested and source tier")
+                .tag("requested_tier", String.valueOf(key.requestedTier()))
+                .tag("source_tier", String.valueOf(key.sourceTier()))
+                .tag("borrowed", String.valueOf(key.requestedTier() != key.sourceTier()))
+                .tag("client", key.client())
+                .register(meterRegistry);
+    }
+
+    private Counter rejectedCounter(RejectKey key) {
+        return Counter.builder("capacity.rejected")
+                .description("Requests rejected by the rate or concurrency limits")
+                .tag("requested_tier", String.valueOf(key.requestedTier()))
+                .tag("client", key.client())
+                .tag("limit", key.limit())
+                .register(meterRegistry);
+    }
+
+    private Timer acquireTimer(LatencyKey key) {
+        return Timer.builder("capacity.acquire.latency")
+                .description("Latency of acquire operations, including the wait for capacity in the queue")
+                .tag("requested_tier", String.valueOf(key.requestedTier()))
+                .tag("outcome", key.acquired() ? "acquired" : "rejected")
+                .register(meterRegistry);
+    }
+
+    private Timer holdTimer(int sourceTier) {
+        return Timer.builder("capacity.permit.hold")
+                .description("How long acquired permits are held by requests")
+                .tag("source_tier", String.valueOf(sourceTier))
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private Counter releasedCounter(ReleaseKey key) {
+        return Counter.builder("capacity.permit.released")
+                .description("Permits released by requests, by the reason of the release")
+                .tag("source_tier", String.valueOf(key.sourceTier()))
+                .tag("reason", key.reason().tag())
+                .register(meterRegistry);
+    }
+
+    private String clientTag(String clientId) {
+        return clientId != null && limitProperties.getClientLimitsMap().containsKey(clientId) ? clientId : OTHER_CLIENT;
+    }
+
+    private record AcquireKey(int requestedTier, int sourceTier, String client) {}
+
+    private record RejectKey(int requestedTier, String client, String limit) {}
+
+    private record LatencyKey(int requestedTier, boolean acquired) {}
+
+    private record ReleaseKey(int sourceTier, ReleaseReason reason) {}
+}
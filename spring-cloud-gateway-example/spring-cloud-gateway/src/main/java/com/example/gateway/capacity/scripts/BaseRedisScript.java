@@ -1,6 +1,8 @@
 package com.example.gateway.capacity.scripts;
 
 import com.example.gateway.exception.RedisScriptException;
+import com.example.gateway.properties.CapacityProperties;
+import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RScript;
@@ -10,31 +12,45 @@ import reactor.core.publisher.Mono;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.stream.Collectors;
 
 /**
  * Base class for Redis Lua scripts execution.
  * Provides a template for loading and executing Lua scripts with proper error handling.
+ * <p>
+ * Scripts are loaded into the Redis script cache once with SCRIPT LOAD and executed with EVALSHA,
+ * so only the script digest is sent per call. When Redis no longer knows the script, e.g. after a restart
+ * or a failover, the script is loaded again and the call is retried.
  *
  * @param <T> The return type of the script execution
  */
 @Slf4j
 public abstract class BaseRedisScript<T> {
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
     private final RedissonClient redisson;
     @Getter
     private final String scriptContent;
+    @Getter
+    private final String scriptSha;
 
     /**
      * Creates a new Redis script with the given RedissonClient and script path.
      *
      * @param redisson RedissonClient instance
      * @param scriptPath Path to the Lua script in resources
+     * @param scriptProperties Script loading options
      */
-    protected BaseRedisScript(RedissonClient redisson, String scriptPath) {
+    protected BaseRedisScript(RedissonClient redisson, String scriptPath, CapacityProperties.Scripts scriptProperties) {
         this.redisson = redisson;
-        this.scriptContent = loadScript(scriptPath);
+        String script = loadScript(scriptPath);
+        this.scriptContent = scriptProperties.isMinify() ? LuaScriptMinifier.minify(script) : script;
+        this.scriptSha = sha1Hex(scriptContent);
     }
 
     /**
@@ -81,36 +97,61 @@ public abstract class BaseRedisScript<T> {
     public Mono<T> executeAsync(List<Object> keys, Object... args) {
         RScript script = redisson.getScript(StringCodec.INSTANCE);
 
-        return Mono.fromCompletionStage(
-                script.evalAsync(
-                        RScript.Mode.READ_WRITE,
-                        scriptContent,
-                        getReturnType(),
-                        keys,
-                        args
-                )
-        ).map(result -> {
-            log.debug("Raw script result: {}", result);
-            if (result == null || (result instanceof List && ((List<?>) result).isEmpty())) {
-                throw new RedisScriptException(
-                        String.format("Script %s returned empty result", getScriptPath())
-                );
-            }
-            return processResult((List<Object>) result);
-        }).onErrorMap(e -> {
-            String keysString = keys.stream()
-                    .map(String::valueOf)
-                    .collect(Collectors.joining(", "));
-            log.error("Failed to execute Redis script: {} with keys: [{}]",
-                    getScriptPath(), keysString, e);
-            return new RedisScriptException(
-                    String.format("Failed to execute Redis script: %s with keys: [%s]",
-                            getScriptPath(), keysString),
-                    e
-            );
-        }).doOnCancel(() -> {
-            log.warn("Script execution cancelled: {}", getScriptPath());
-        });
+        return evalSha(script, keys, args)
+                .onErrorResume(BaseRedisScript::isNoScriptError, e -> {
+                    log.warn("Script {} is not cached by Redis, loading it again", getScriptPath());
+                    return load().then(evalSha(script, keys, args));
+                })
+                .map(result -> {
+                    log.debug("Raw script result: {}", result);
+                    if (result == null || (result instanceof List && ((List<?>) result).isEmpty())) {
+                        throw new RedisScriptException(
+                                String.format("Script %s returned empty result", getScriptPath())
+                        );
+                    }
+                    return processResult((List<Object>) result);
+                }).onErrorMap(e -> {
+                    String keysString = keys.stream()
+                            .map(String::valueOf)
+                            .collect(Collectors.joining(", "));
+                    log.error("Failed to execute Redis script: {} with keys: [{}]",
+                            getScriptPath(), keysString, e);
+                    return new RedisScriptException(
+                            String.format("Failed to execute Redis script: %s with keys: [%s]",
+                                    getScriptPath(), keysString),
+                            e
+                    );
+                }).doOnCancel(() -> {
+                    log.warn("Script execution cancelled: {}", getScriptPath());
+                });
+    }
+
+    /**
+     * Loads the script into the Redis script cache.
+     *
+     * @return SHA1 digest of the loaded script
+     */
+    public Mono<String> load() {
+        return Mono.fromCompletionStage(() -> redisson.getScript(StringCodec.INSTANCE).scriptLoadAsync(scriptContent))
+                .doOnNext(sha -> {
+                    if (!scriptSha.equals(sha)) {
+                        throw new RedisScriptException(String.format(
+                                "Script %s digest mismatch: expected %s, got %s", getScriptPath(), scriptSha, sha));
+                    }
+                    log.info("Loaded script {} into Redis script cache: {}", getScriptPath(), sha);
+                });
+    }
+
+    /**
+     * Preloads the script at startup, so the first requests do not pay for loading it.
+     */
+    @PostConstruct
+    public void preload() {
+        load().subscribe(
+                sha -> log.debug("Preloaded script {}", getScriptPath()),
+                error -> log.warn("Failed to preload script {}, it will be loaded on first use: {}",
+                        getScriptPath(), error.getMessage())
+        );
     }
 
     /**
@@ -130,4 +171,32 @@ public abstract class BaseRedisScript<T> {
             throw new RedisScriptException("Failed to load script: " + path, e);
         }
     }
+
+    private Mono<Object> evalSha(RScript script, List<Object> keys, Object... args) {
+        return Mono.fromCompletionStage(() -> script.evalShaAsync(
+                RScript.Mode.READ_WRITE,
+                scriptSha,
+                getReturnType(),
+                keys,
+                args
+        ));
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains(NO_SCRIPT_ERROR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String sha1Hex(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
 }
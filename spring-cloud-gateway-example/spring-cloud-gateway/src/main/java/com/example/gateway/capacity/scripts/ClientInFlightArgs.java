@@ -0,0 +1,61 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.dto.ClientInFlightLimit;
+import lombok.experimental.UtilityClass;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the client in-flight keys and arguments shared by the batch acquire and release scripts.
+ * Each capped client is passed as a single key, however many of its requests are in the batch.
+ */
+@UtilityClass
+class ClientInFlightArgs {
+
+    /**
+     * Appends the client keys and the (tier, client key index, max in-flight) triples of the requests
+     *
+     * @param keys script keys, the client keys are appended after the fixed keys of the script
+     * @param args script arguments, the triples are appended in the order of the requested tiers
+     * @param tiers requested tiers
+     * @param clientLimits caps of the clients of the requests, in the same order, null for uncapped clients
+     */
+    static void appendAcquireRequests(
+            List<Object> keys,
+            List<Object> args,
+            List<Integer> tiers,
+            List<ClientInFlightLimit> clientLimits
+    ) {
+        Map<String, Integer> keyIndexes = new HashMap<>();
+        for (int i = 0; i < tiers.size(); i++) {
+            ClientInFlightLimit limit = clientLimits.get(i);
+            int keyIndex = 0;
+            if (limit != null) {
+                keyIndex = keyIndexes.computeIfAbsent(limit.key(), key -> {
+                    keys.add(key);
+                    return keyIndexes.size() + 1;
+                });
+            }
+
+            args.add(String.valueOf(tiers.get(i)));
+            args.add(String.valueOf(keyIndex));
+            args.add(String.valueOf(limit != null ? limit.maxInFlight() : 0));
+        }
+    }
+
+    /**
+     * Appends the client keys and the numbers of their released requests
+     *
+     * @param keys script keys, the client keys are appended after the fixed keys of the script
+     * @param args script arguments, the numbers are appended in the order of the client keys
+     * @param releasesByClientKey Map of client in-flight key to the number of released requests of the client
+     */
+    static void appendReleases(List<Object> keys, List<Object> args, Map<String, Integer> releasesByClientKey) {
+        releasesByClientKey.forEach((key, releases) -> {
+            keys.add(key);
+            args.add(String.valueOf(releases));
+        });
+    }
+}
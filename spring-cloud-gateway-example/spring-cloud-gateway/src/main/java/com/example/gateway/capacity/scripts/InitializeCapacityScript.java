@@ -1,7 +1,9 @@
 package com.example.gateway.capacity.scripts;
 
-import com.example.gateway.utils.RedisUtils;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
 import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.RedisUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
@@ -18,11 +20,12 @@ import java.util.Map;
  */
 @Slf4j
 @Component
+@ConditionalOnRedisCapacityEngine
 public class InitializeCapacityScript extends BaseRedisScript<DynamicCapacityResponse> {
     private static final String SCRIPT_PATH = "/lua_scripts/initialize_capacity.lua";
 
-    public InitializeCapacityScript(RedissonClient redisson) {
-        super(redisson, SCRIPT_PATH);
+    public InitializeCapacityScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
         log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
         log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
     }
@@ -65,12 +68,14 @@ public class InitializeCapacityScript extends BaseRedisScript<DynamicCapacityRes
      *
      * @param capacitiesKey Redis key for the capacity map
      * @param defaultCapacityKey Redis key for the default capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
      * @param capacities Map of tier to capacity values (already sorted in descending order)
      * @return DynamicCapacityResponse with the result
      */
     public Mono<DynamicCapacityResponse> initialize(
             String capacitiesKey,
             String defaultCapacityKey,
+            String freeTiersKey,
             Map<Integer, Integer> capacities
     ) {
         log.debug("Updating capacities: {}", capacities);
@@ -78,7 +83,7 @@ public class InitializeCapacityScript extends BaseRedisScript<DynamicCapacityRes
         log.trace("Redis default capacities key: {}", defaultCapacityKey);
 
         List<Object> args = formatCapacityArgs(capacities);
-        return executeAsync(List.of(capacitiesKey, defaultCapacityKey), args.toArray());
+        return executeAsync(List.of(capacitiesKey, defaultCapacityKey, freeTiersKey), args.toArray());
     }
 
     /**
@@ -0,0 +1,94 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.LeaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import com.example.gateway.utils.RedisUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script for leasing a block of permits of a tier to a gateway node.
+ * Leased permits are recorded per node, so they can be reclaimed when the node stops renewing its leases.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class LeaseCapacityScript extends BaseRedisScript<LeaseCapacityResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/lease_capacity.lua";
+
+    public LeaseCapacityScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MAPVALUELIST;
+    }
+
+    @Override
+    protected LeaseCapacityResult processResult(List<Object> result) {
+        log.debug("Processing lease capacity result: {}", result);
+
+        Map<String, Object> resultMap = RedisUtils.toMap(result);
+        log.debug("Mapped result map: {}", resultMap);
+
+        boolean leased = Boolean.TRUE.equals(resultMap.get("leased"));
+        Integer requestedTier = resultMap.get("requested_tier") == null ? null
+                : Integer.valueOf((String) resultMap.get("requested_tier"));
+
+        if (!leased) {
+            String error = (String) resultMap.get("error");
+            log.debug("Failed to lease capacity from tier {}: {}", requestedTier, error);
+            return CapacityResults.failedLease(error, requestedTier);
+        }
+
+        int sourceTier = Integer.parseInt((String) resultMap.get("source_tier"));
+        int permits = Integer.parseInt((String) resultMap.get("permits"));
+        log.debug("Leased {} permits from tier {}, requested tier {}", permits, sourceTier, requestedTier);
+
+        return CapacityResults.successfulLease(sourceTier, requestedTier, permits);
+    }
+
+    /**
+     * Lease up to the given number of permits of the tier, borrowing from lower priority tiers if the tier is exhausted
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param leasesKey Redis key for the permits leased by nodes
+     * @param leaseExpiryKey Redis key for the lease expiry time of nodes
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param nodeId id of the node leasing the permits
+     * @param tier requested tier
+     * @param permits maximum number of permits to lease
+     * @param ttl lease time to live
+     * @return LeaseCapacityResult with the source tier and the number of leased permits
+     */
+    public Mono<LeaseCapacityResult> lease(
+            String capacityKey,
+            String leasesKey,
+            String leaseExpiryKey,
+            String freeTiersKey,
+            String nodeId,
+            int tier,
+            int permits,
+            Duration ttl
+    ) {
+        return executeAsync(List.of(capacityKey, leasesKey, leaseExpiryKey, freeTiersKey),
+                nodeId, String.valueOf(tier), String.valueOf(permits), String.valueOf(ttl.toMillis()));
+    }
+}
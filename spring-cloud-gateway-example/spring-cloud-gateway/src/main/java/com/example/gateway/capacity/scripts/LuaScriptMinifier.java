@@ -0,0 +1,68 @@
+package com.example.gateway.capacity.scripts;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Strips comments, indentation and blank lines from Lua scripts to reduce the size of loaded scripts.
+ * String literals are preserved as is, long strings ([[...]]) are not supported.
+ */
+@UtilityClass
+class LuaScriptMinifier {
+
+    /**
+     * Minifies the Lua script.
+     *
+     * @param script Lua script source
+     * @return script without comments, indentation and blank lines
+     */
+    static String minify(String script) {
+        StringBuilder result = new StringBuilder(script.length());
+        StringBuilder line = new StringBuilder();
+        char quote = 0;
+        int i = 0;
+
+        while (i < script.length()) {
+            char c = script.charAt(i);
+
+            if (quote != 0) {
+                // Inside a string literal, copy everything until the closing quote
+                line.append(c);
+                if (c == '\\' && i + 1 < script.length()) {
+                    line.append(script.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                i++;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                line.append(c);
+                i++;
+            } else if (script.startsWith("--[[", i)) {
+                // Block comment, skip until the closing brackets
+                int end = script.indexOf("]]", i + 4);
+                i = end < 0 ? script.length() : end + 2;
+            } else if (script.startsWith("--", i)) {
+                // Line comment, skip until the end of the line
+                int end = script.indexOf('\n', i);
+                i = end < 0 ? script.length() : end;
+            } else if (c == '\n') {
+                appendLine(result, line);
+                i++;
+            } else {
+                line.append(c);
+                i++;
+            }
+        }
+        appendLine(result, line);
+
+        return result.toString();
+    }
+
+    private static void appendLine(StringBuilder result, StringBuilder line) {
+        String trimmed = line.toString().strip();
+        if (!trimmed.isEmpty()) {
+            result.append(trimmed).append('\n');
+        }
+        line.setLength(0);
+    }
+}
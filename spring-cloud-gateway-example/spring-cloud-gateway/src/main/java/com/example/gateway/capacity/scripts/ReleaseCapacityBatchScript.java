@@ -0,0 +1,97 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.ReleaseCapacityBatchResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script for releasing permits of several tiers at once.
+ * Permits of the same tier are applied with a single HINCRBY.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class ReleaseCapacityBatchScript extends BaseRedisScript<ReleaseCapacityBatchResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/release_capacity_batch.lua";
+
+    public ReleaseCapacityBatchScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MULTI;
+    }
+
+    @Override
+    protected ReleaseCapacityBatchResult processResult(List<Object> result) {
+        log.debug("Processing release capacity batch result: {}", result);
+
+        // {outcome, released_permits, dropped_permits}, or {outcome} if not released
+        int outcome = ScriptResults.intAt(result, 0);
+        if (outcome != ScriptResults.OK) {
+            String error = ScriptResults.error(outcome);
+            log.info("Failed to release capacity batch: {}", error);
+            return CapacityResults.failedBatchRelease(error);
+        }
+
+        return CapacityResults.successfulBatchRelease(ScriptResults.intAt(result, 1), ScriptResults.intAt(result, 2));
+    }
+
+    /**
+     * Release permits of several tiers back to the capacity store
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param batchKey Redis key marking the batch as applied, so a retried batch is only applied once
+     * @param batchTtl how long the batch stays marked as applied
+     * @param releasedChannel Redis channel notified when a tier is no longer exhausted, empty to not notify
+     * @param nodeId id of the node holding the permits, empty if the permits are not tracked per node
+     * @param permitsByTier Map of tier to the number of permits to release
+     * @param releasesByClientKey Map of client in-flight key to the number of released requests of the client
+     * @return ReleaseCapacityBatchResult with the number of released permits
+     */
+    public Mono<ReleaseCapacityBatchResult> release(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String batchKey,
+            Duration batchTtl,
+            String releasedChannel,
+            String nodeId,
+            Map<Integer, Integer> permitsByTier,
+            Map<String, Integer> releasesByClientKey
+    ) {
+        List<Object> keys = new ArrayList<>(List.of(capacityKey, freeTiersKey, leasesKey, batchKey));
+        List<Object> args = new ArrayList<>(permitsByTier.size() * 2 + releasesByClientKey.size() + 3);
+        args.add(nodeId);
+        args.add(releasedChannel);
+        args.add(String.valueOf(batchTtl.toMillis()));
+        ClientInFlightArgs.appendReleases(keys, args, releasesByClientKey);
+        permitsByTier.forEach((tier, permits) -> {
+            args.add(String.valueOf(tier));
+            args.add(String.valueOf(permits));
+        });
+
+        return executeAsync(keys, args.toArray());
+    }
+}
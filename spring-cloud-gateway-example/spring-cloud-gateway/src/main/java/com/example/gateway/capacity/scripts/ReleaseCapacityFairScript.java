@@ -0,0 +1,121 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.ReleaseCapacityBatchResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script for releasing permits acquired with weighted fair scheduling, for a single or several tiers at once.
+ * Permits are released under the tier they are accounted to, and permits borrowed by the tier are returned
+ * to their lenders first.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class ReleaseCapacityFairScript extends BaseRedisScript<ReleaseCapacityBatchResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/release_capacity_fair.lua";
+
+    public ReleaseCapacityFairScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MULTI;
+    }
+
+    @Override
+    protected ReleaseCapacityBatchResult processResult(List<Object> result) {
+        log.debug("Processing release capacity fair result: {}", result);
+
+        // {outcome, released_permits, dropped_permits}, or {outcome} if not released
+        int outcome = ScriptResults.intAt(result, 0);
+        if (outcome != ScriptResults.OK) {
+            String error = ScriptResults.error(outcome);
+            log.info("Failed to release capacity with fair scheduling: {}", error);
+            return CapacityResults.failedBatchRelease(error);
+        }
+
+        return CapacityResults.successfulBatchRelease(ScriptResults.intAt(result, 1), ScriptResults.intAt(result, 2));
+    }
+
+    /**
+     * Release permits of several tiers, returning borrowed permits to their lenders first.
+     * The release is not marked as applied, it must not be retried once the script may have run.
+     *
+     * @see #release(String, String, String, String, String, Duration, String, String, Map, Map)
+     */
+    public Mono<ReleaseCapacityBatchResult> release(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String fairShareKey,
+            String releasedChannel,
+            String nodeId,
+            Map<Integer, Integer> permitsByTier,
+            Map<String, Integer> releasesByClientKey
+    ) {
+        // The capacity key stands in for the batch key, it is in the same slot and not marked with a zero TTL
+        return release(capacityKey, freeTiersKey, leasesKey, fairShareKey, capacityKey, Duration.ZERO,
+                releasedChannel, nodeId, permitsByTier, releasesByClientKey);
+    }
+
+    /**
+     * Release a batch of permits of several tiers, returning borrowed permits to their lenders first
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param fairShareKey Redis key for the permits held, lent and borrowed per tier
+     * @param batchKey Redis key marking the batch as applied, so a retried batch is only applied once
+     * @param batchTtl how long the batch stays marked as applied
+     * @param releasedChannel Redis channel notified when a tier is no longer exhausted, empty to not notify
+     * @param nodeId id of the node holding the permits, empty if the permits are not tracked per node
+     * @param permitsByTier Map of the tier the permits are accounted to to the number of permits to release
+     * @param releasesByClientKey Map of client in-flight key to the number of released requests of the client
+     * @return ReleaseCapacityBatchResult with the number of released permits
+     */
+    public Mono<ReleaseCapacityBatchResult> release(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String fairShareKey,
+            String batchKey,
+            Duration batchTtl,
+            String releasedChannel,
+            String nodeId,
+            Map<Integer, Integer> permitsByTier,
+            Map<String, Integer> releasesByClientKey
+    ) {
+        List<Object> keys = new ArrayList<>(List.of(capacityKey, freeTiersKey, leasesKey, fairShareKey, batchKey));
+        List<Object> args = new ArrayList<>(permitsByTier.size() * 2 + releasesByClientKey.size() + 3);
+        args.add(nodeId);
+        args.add(releasedChannel);
+        args.add(String.valueOf(batchTtl.toMillis()));
+        ClientInFlightArgs.appendReleases(keys, args, releasesByClientKey);
+        permitsByTier.forEach((tier, permits) -> {
+            args.add(String.valueOf(tier));
+            args.add(String.valueOf(permits));
+        });
+
+        return executeAsync(keys, args.toArray());
+    }
+}
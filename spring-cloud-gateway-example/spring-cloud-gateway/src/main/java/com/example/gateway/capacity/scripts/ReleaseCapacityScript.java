@@ -1,23 +1,25 @@
 package com.example.gateway.capacity.scripts;
 
-import com.example.gateway.utils.CapacityResults;
-import com.example.gateway.utils.RedisUtils;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
 import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
 
 import java.util.List;
-import java.util.Map;
 
 @Slf4j
 @Component
+@ConditionalOnRedisCapacityEngine
 public class ReleaseCapacityScript extends BaseRedisScript<ReleaseCapacityResult> {
     private static final String SCRIPT_PATH = "/lua_scripts/release_capacity.lua";
 
-    public ReleaseCapacityScript(RedissonClient redisson) {
-        super(redisson, SCRIPT_PATH);
+    public ReleaseCapacityScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
         log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
         log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
     }
@@ -29,28 +31,25 @@ public class ReleaseCapacityScript extends BaseRedisScript<ReleaseCapacityResult
 
     @Override
     protected RScript.ReturnType getReturnType() {
-        return RScript.ReturnType.MAPVALUELIST;
+        return RScript.ReturnType.MULTI;
     }
 
     @Override
     protected ReleaseCapacityResult processResult(List<Object> result) {
         log.debug("Processing release capacity result: {}", result);
 
-        Map<String, Object> resultMap = RedisUtils.toMap(result);
-        log.debug("Mapped result map: {}", resultMap);
-
-        boolean released = Boolean.TRUE.equals(resultMap.get("released"));
-
-        if (!released) {
-            String error = (String) resultMap.get("error");
-            log.info("Failed to release capacity: {}", error);
+        // {outcome, tier, previous_capacity, new_capacity}, or {outcome, tier} if not released
+        int outcome = ScriptResults.intAt(result, 0);
+        if (outcome != ScriptResults.OK) {
+            String error = ScriptResults.error(outcome);
+            log.info("Failed to release capacity of tier {}: {}", result.get(1), error);
             return CapacityResults.failedRelease(error);
         }
 
         ReleaseCapacityResult response = CapacityResults.successfulRelease(
-                Integer.parseInt((String) resultMap.get("tier")),
-                Integer.parseInt((String) resultMap.get("previous_capacity")),
-                Integer.parseInt((String) resultMap.get("new_capacity"))
+                ScriptResults.intAt(result, 1),
+                ScriptResults.intAt(result, 2),
+                ScriptResults.intAt(result, 3)
         );
 
         log.debug("Successfully released capacity for tier {}: {} -> {}",
@@ -58,4 +57,31 @@ public class ReleaseCapacityScript extends BaseRedisScript<ReleaseCapacityResult
 
         return response;
     }
+
+    /**
+     * Release a permit back to the tier
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param releasedChannel Redis channel notified when the tier is no longer exhausted, empty to not notify
+     * @param nodeId id of the node holding the permit, empty if the permit is not tracked per node
+     * @param tier tier the permit was acquired from
+     * @param clientKey Redis key counting the in-flight requests of the client, null if the client is not capped
+     * @return ReleaseCapacityResult with the tier capacity before and after the release
+     */
+    public Mono<ReleaseCapacityResult> release(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String releasedChannel,
+            String nodeId,
+            int tier,
+            String clientKey
+    ) {
+        List<Object> keys = clientKey == null
+                ? List.of(capacityKey, freeTiersKey, leasesKey)
+                : List.of(capacityKey, freeTiersKey, leasesKey, clientKey);
+        return executeAsync(keys, String.valueOf(tier), nodeId, releasedChannel);
+    }
 }
@@ -0,0 +1,91 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.RenewLeaseResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import com.example.gateway.utils.RedisUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script for renewing the leases of a gateway node.
+ * Also reclaims the permits leased by nodes which stopped renewing their leases, e.g. after a crash.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class RenewLeaseScript extends BaseRedisScript<RenewLeaseResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/renew_lease.lua";
+
+    public RenewLeaseScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MAPVALUELIST;
+    }
+
+    @Override
+    protected RenewLeaseResult processResult(List<Object> result) {
+        log.debug("Processing renew lease result: {}", result);
+
+        Map<String, Object> resultMap = RedisUtils.toMap(result);
+        log.debug("Mapped result map: {}", resultMap);
+
+        boolean renewed = Boolean.TRUE.equals(resultMap.get("renewed"));
+
+        if (!renewed) {
+            String error = (String) resultMap.get("error");
+            log.info("Failed to renew leases: {}", error);
+            return CapacityResults.failedRenew(error);
+        }
+
+        return CapacityResults.successfulRenew(
+                Integer.parseInt((String) resultMap.get("reclaimed")),
+                Integer.parseInt((String) resultMap.get("expired_nodes"))
+        );
+    }
+
+    /**
+     * Renew the leases of the node and reclaim permits of nodes with expired leases
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param leasesKey Redis key for the permits leased by nodes
+     * @param leaseExpiryKey Redis key for the lease expiry time of nodes
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param fairShareKey Redis key for the fair share accounting, null without weighted fair scheduling
+     * @param nodeId id of the node renewing its leases
+     * @param ttl lease time to live
+     * @return RenewLeaseResult with the number of reclaimed permits
+     */
+    public Mono<RenewLeaseResult> renew(
+            String capacityKey,
+            String leasesKey,
+            String leaseExpiryKey,
+            String freeTiersKey,
+            String fairShareKey,
+            String nodeId,
+            Duration ttl
+    ) {
+        List<Object> keys = fairShareKey == null
+                ? List.of(capacityKey, leasesKey, leaseExpiryKey, freeTiersKey)
+                : List.of(capacityKey, leasesKey, leaseExpiryKey, freeTiersKey, fairShareKey);
+        return executeAsync(keys, nodeId, String.valueOf(ttl.toMillis()));
+    }
+}
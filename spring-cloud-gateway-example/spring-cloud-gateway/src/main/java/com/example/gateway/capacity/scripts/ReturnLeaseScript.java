@@ -0,0 +1,88 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.utils.CapacityResults;
+import com.example.gateway.utils.RedisUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script for returning permits leased by a gateway node back to their tier.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class ReturnLeaseScript extends BaseRedisScript<ReleaseCapacityResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/return_lease.lua";
+
+    public ReturnLeaseScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MAPVALUELIST;
+    }
+
+    @Override
+    protected ReleaseCapacityResult processResult(List<Object> result) {
+        log.debug("Processing return lease result: {}", result);
+
+        Map<String, Object> resultMap = RedisUtils.toMap(result);
+        log.debug("Mapped result map: {}", resultMap);
+
+        boolean released = Boolean.TRUE.equals(resultMap.get("released"));
+
+        if (!released) {
+            String error = (String) resultMap.get("error");
+            log.info("Failed to return leased capacity: {}", error);
+            return CapacityResults.failedRelease(error);
+        }
+
+        return CapacityResults.successfulRelease(
+                Integer.parseInt((String) resultMap.get("tier")),
+                Integer.parseInt((String) resultMap.get("previous_capacity")),
+                Integer.parseInt((String) resultMap.get("new_capacity"))
+        );
+    }
+
+    /**
+     * Return permits leased by the node back to the tier
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param leasesKey Redis key for the permits leased by nodes
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param releasedChannel Redis channel notified when the tier is no longer exhausted, empty to not notify
+     * @param nodeId id of the node returning the permits
+     * @param tier tier the permits were leased from
+     * @param permits number of permits to return
+     * @return ReleaseCapacityResult with the tier capacity before and after the return
+     */
+    public Mono<ReleaseCapacityResult> returnLease(
+            String capacityKey,
+            String leasesKey,
+            String freeTiersKey,
+            String releasedChannel,
+            String nodeId,
+            int tier,
+            int permits
+    ) {
+        return executeAsync(List.of(capacityKey, leasesKey, freeTiersKey),
+                nodeId, String.valueOf(tier), String.valueOf(permits), releasedChannel);
+    }
+}
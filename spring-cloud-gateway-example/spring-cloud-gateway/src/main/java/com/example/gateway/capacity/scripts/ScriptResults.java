@@ -0,0 +1,88 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.utils.CapacityResults;
+import lombok.experimental.UtilityClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Integer result protocol of the request path Lua scripts.
+ * <p>
+ * The acquire and release scripts return fixed-position arrays of integers instead of key/value string lists.
+ * Redis sends them as integer replies, so results are decoded by position without building maps or parsing strings.
+ * A positive outcome is the tier of the acquired permit or a successful release, zero and negative outcomes are
+ * the result codes below, shared by all the scripts.
+ */
+@UtilityClass
+class ScriptResults {
+    static final int OK = 1;
+    static final int NO_CAPACITY = 0;
+    static final int MAX_BURST_REACHED = -1;
+    static final int CLIENT_LIMIT_REACHED = -2;
+    static final int RATE_LIMIT_REACHED = -3;
+    static final int NO_CAPACITY_DATA = -4;
+    static final int INVALID_ARGUMENTS = -5;
+    static final int TIER_NOT_FOUND = -6;
+    static final int PERMIT_NOT_HELD = -7;
+
+    /**
+     * Returns the integer at the position of the script result
+     */
+    static int intAt(List<Object> result, int index) {
+        Object value = result.get(index);
+        if (value instanceof Number number) {
+            return number.intValue();
+        }
+        // Only if the reply was decoded as a string, e.g. by a codec decoding integer replies as strings
+        return Integer.parseInt(String.valueOf(value));
+    }
+
+    /**
+     * Decodes the outcome of an acquire, the source tier of the acquired permit or a result code
+     */
+    static AcquireCapacityResult acquireResult(int outcome, Integer requestedTier) {
+        return outcome > 0
+                ? CapacityResults.successfulAcquire(outcome, requestedTier)
+                : CapacityResults.failedAcquire(error(outcome), requestedTier);
+    }
+
+    /**
+     * Decodes the outcomes of a batch of acquires in the order of the requested tiers. A code rejecting the whole
+     * batch, e.g. if the capacities are missing, is returned alone and becomes the failed acquire of every request.
+     */
+    static List<AcquireCapacityResult> acquireResults(int[] outcomes, List<Integer> tiers) {
+        boolean batchError = outcomes.length == 1 && isBatchError(outcomes[0]);
+
+        List<AcquireCapacityResult> results = new ArrayList<>(tiers.size());
+        for (int i = 0; i < tiers.size(); i++) {
+            results.add(acquireResult(batchError ? outcomes[0] : outcomes[i], tiers.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Returns true if the code rejects the whole batch rather than a single request of it
+     */
+    static boolean isBatchError(int code) {
+        return code <= NO_CAPACITY_DATA;
+    }
+
+    /**
+     * Returns the error of the result code, the errors checked by the capacity manager are those of CapacityResults
+     */
+    static String error(int code) {
+        return switch (code) {
+            case NO_CAPACITY -> CapacityResults.NO_CAPACITY_AVAILABLE;
+            case MAX_BURST_REACHED -> CapacityResults.MAX_BURST_REACHED;
+            case CLIENT_LIMIT_REACHED -> CapacityResults.CLIENT_LIMIT_REACHED;
+            case RATE_LIMIT_REACHED -> CapacityResults.RATE_LIMIT_REACHED;
+            case NO_CAPACITY_DATA -> "No capacity data found";
+            case INVALID_ARGUMENTS -> "Invalid script arguments";
+            case TIER_NOT_FOUND -> "Tier does not exist in capacity store";
+            case PERMIT_NOT_HELD -> "Permit is not held by the node";
+            default -> "Unknown script result code: " + code;
+        };
+    }
+}
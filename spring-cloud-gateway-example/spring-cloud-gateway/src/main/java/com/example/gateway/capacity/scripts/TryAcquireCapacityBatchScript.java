@@ -0,0 +1,93 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientInFlightLimit;
+import com.example.gateway.properties.CapacityProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Script for acquiring a permit for each of several requested tiers in a single atomic call.
+ * Each permit is acquired exactly as by TryAcquireCapacityScript, in the order of the requested tiers.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class TryAcquireCapacityBatchScript extends BaseRedisScript<int[]> {
+    private static final String SCRIPT_PATH = "/lua_scripts/try_acquire_capacity_batch.lua";
+
+    public TryAcquireCapacityBatchScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MULTI;
+    }
+
+    /**
+     * @return source tiers of the acquired permits in the order of the requested tiers, 0 if not acquired
+     * and -2 if the client reached its max in-flight requests, or a single code rejecting the whole batch
+     */
+    @Override
+    protected int[] processResult(List<Object> result) {
+        log.debug("Processing try acquire capacity batch result: {}", result);
+
+        int[] outcomes = new int[result.size()];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = ScriptResults.intAt(result, i);
+        }
+
+        if (outcomes.length == 1 && ScriptResults.isBatchError(outcomes[0])) {
+            log.debug("Failed to acquire capacity batch: {}", ScriptResults.error(outcomes[0]));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Acquire a permit for each requested tier, borrowing from the lowest priority tier with free capacity
+     * if the requested tier is exhausted
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param nodeId id of the node holding the permits, empty to not track the permits per node
+     * @param tiers requested tiers, a tier may be requested several times
+     * @param clientLimits caps of the clients of the requests, in the order of the tiers, null for uncapped clients
+     * @param clientTtl how long the in-flight counters of the clients are kept after the acquire
+     * @return AcquireCapacityResult for each requested tier, in the same order
+     */
+    public Mono<List<AcquireCapacityResult>> tryAcquire(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String nodeId,
+            List<Integer> tiers,
+            List<ClientInFlightLimit> clientLimits,
+            Duration clientTtl
+    ) {
+        List<Object> keys = new ArrayList<>(List.of(capacityKey, freeTiersKey, leasesKey));
+        List<Object> args = new ArrayList<>(tiers.size() * 3 + 2);
+        args.add(nodeId);
+        args.add(String.valueOf(clientTtl.toMillis()));
+        ClientInFlightArgs.appendAcquireRequests(keys, args, tiers, clientLimits);
+
+        return executeAsync(keys, args.toArray())
+                .map(sourceTiers -> ScriptResults.acquireResults(sourceTiers, tiers));
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientInFlightLimit;
+import com.example.gateway.properties.CapacityProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Script for acquiring permits with weighted fair scheduling, for a single or several requested tiers at once.
+ * A tier uses its own capacity first and then borrows idle capacity of any other tier, within the min guarantees
+ * and max bursts of the tiers. Permits are accounted to the requested tier, so they are released with
+ * ReleaseCapacityFairScript under the requested tier, which returns borrowed permits to their lenders first.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class TryAcquireCapacityFairScript extends BaseRedisScript<int[]> {
+    private static final String SCRIPT_PATH = "/lua_scripts/try_acquire_capacity_fair.lua";
+
+    public TryAcquireCapacityFairScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MULTI;
+    }
+
+    /**
+     * @return tiers the acquired permits are accounted to in the order of the requested tiers, 0 if no capacity
+     * is available, -1 if the tier reached its max burst and -2 if the client reached its max in-flight requests,
+     * or a single code rejecting the whole batch
+     */
+    @Override
+    protected int[] processResult(List<Object> result) {
+        log.debug("Processing try acquire capacity fair result: {}", result);
+
+        int[] outcomes = new int[result.size()];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = ScriptResults.intAt(result, i);
+        }
+
+        if (outcomes.length == 1 && ScriptResults.isBatchError(outcomes[0])) {
+            log.debug("Failed to acquire capacity with fair scheduling: {}", ScriptResults.error(outcomes[0]));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Acquire a permit for each requested tier, borrowing idle capacity of the other tiers
+     * if the requested tier is exhausted
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param defaultCapacityKey Redis key for the default capacities
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param fairShareKey Redis key for the permits held, lent and borrowed per tier
+     * @param schedulingKey Redis key for the scheduling settings per tier
+     * @param nodeId id of the node holding the permits, empty to not track the permits per node
+     * @param tiers requested tiers, a tier may be requested several times
+     * @param clientLimits caps of the clients of the requests, in the order of the tiers, null for uncapped clients
+     * @param clientTtl how long the in-flight counters of the clients are kept after the acquire
+     * @return AcquireCapacityResult for each requested tier, in the same order
+     */
+    public Mono<List<AcquireCapacityResult>> tryAcquire(
+            String capacityKey,
+            String defaultCapacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String fairShareKey,
+            String schedulingKey,
+            String nodeId,
+            List<Integer> tiers,
+            List<ClientInFlightLimit> clientLimits,
+            Duration clientTtl
+    ) {
+        List<Object> keys = new ArrayList<>(List.of(capacityKey, defaultCapacityKey, freeTiersKey, leasesKey,
+                fairShareKey, schedulingKey));
+        List<Object> args = new ArrayList<>(tiers.size() * 3 + 2);
+        args.add(nodeId);
+        args.add(String.valueOf(clientTtl.toMillis()));
+        ClientInFlightArgs.appendAcquireRequests(keys, args, tiers, clientLimits);
+
+        return executeAsync(keys, args.toArray())
+                .map(accountedTiers -> ScriptResults.acquireResults(accountedTiers, tiers));
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientInFlightLimit;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Script for acquiring a permit only if the client is within its rate limit, checking both limits in a single call.
+ * The rate limit is a token bucket per client, the permit is acquired exactly as by TryAcquireCapacityScript.
+ */
+@Slf4j
+@Component
+@ConditionalOnRedisCapacityEngine
+public class TryAcquireCapacityRateLimitedScript extends BaseRedisScript<AcquireCapacityResult> {
+    private static final String SCRIPT_PATH = "/lua_scripts/try_acquire_capacity_rate_limited.lua";
+
+    public TryAcquireCapacityRateLimitedScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
+        log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
+        log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
+    }
+
+    @Override
+    protected String getScriptPath() {
+        return SCRIPT_PATH;
+    }
+
+    @Override
+    protected RScript.ReturnType getReturnType() {
+        return RScript.ReturnType.MULTI;
+    }
+
+    @Override
+    protected AcquireCapacityResult processResult(List<Object> result) {
+        log.debug("Processing try acquire rate limited capacity result: {}", result);
+
+        // {outcome, requested_tier}, the tier is 0 if the arguments were invalid
+        int requestedTier = ScriptResults.intAt(result, 1);
+        return ScriptResults.acquireResult(ScriptResults.intAt(result, 0), requestedTier > 0 ? requestedTier : null);
+    }
+
+    /**
+     * Take a token of the client and acquire a permit of the tier, borrowing from the lowest priority tier
+     * with free capacity if the tier is exhausted
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param rateLimitKey Redis key for the token bucket of the client
+     * @param nodeId id of the node holding the permit, empty to not track the permit per node
+     * @param tier requested tier
+     * @param rateLimit rate limit of the client
+     * @param clientLimit cap of the in-flight requests of the client, null if the client is not capped
+     * @param clientTtl how long the in-flight counter of the client is kept after the acquire
+     * @return AcquireCapacityResult with the source tier of the acquired permit
+     */
+    public Mono<AcquireCapacityResult> tryAcquire(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String rateLimitKey,
+            String nodeId,
+            int tier,
+            SpringCloudGatewayProperties.RateLimit rateLimit,
+            ClientInFlightLimit clientLimit,
+            Duration clientTtl
+    ) {
+        String replenishRate = String.valueOf(rateLimit.getReplenishRate());
+        String burstCapacity = String.valueOf(rateLimit.getBurstCapacity());
+        if (clientLimit == null) {
+            return executeAsync(List.of(capacityKey, freeTiersKey, leasesKey, rateLimitKey),
+                    String.valueOf(tier), nodeId, replenishRate, burstCapacity);
+        }
+
+        return executeAsync(List.of(capacityKey, freeTiersKey, leasesKey, rateLimitKey, clientLimit.key()),
+                String.valueOf(tier), nodeId, replenishRate, burstCapacity,
+                String.valueOf(clientLimit.maxInFlight()), String.valueOf(clientTtl.toMillis()));
+    }
+}
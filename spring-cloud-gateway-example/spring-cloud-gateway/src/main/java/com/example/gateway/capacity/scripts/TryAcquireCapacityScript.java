@@ -1,23 +1,26 @@
 package com.example.gateway.capacity.scripts;
 
-import com.example.gateway.utils.CapacityResults;
-import com.example.gateway.utils.RedisUtils;
+import com.example.gateway.config.ConditionalOnRedisCapacityEngine;
 import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.ClientInFlightLimit;
+import com.example.gateway.properties.CapacityProperties;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.List;
-import java.util.Map;
 
 @Slf4j
 @Component
+@ConditionalOnRedisCapacityEngine
 public class TryAcquireCapacityScript extends BaseRedisScript<AcquireCapacityResult> {
     private static final String SCRIPT_PATH = "/lua_scripts/try_acquire_capacity.lua";
 
-    public TryAcquireCapacityScript(RedissonClient redisson) {
-        super(redisson, SCRIPT_PATH);
+    public TryAcquireCapacityScript(RedissonClient redisson, CapacityProperties capacityProperties) {
+        super(redisson, SCRIPT_PATH, capacityProperties.getScripts());
         log.info("Initialized {} script: {}", this.getClass().getSimpleName(), SCRIPT_PATH);
         log.debug("Loaded script content for {}: {}", SCRIPT_PATH, getScriptContent());
     }
@@ -29,29 +32,45 @@ public class TryAcquireCapacityScript extends BaseRedisScript<AcquireCapacityRes
 
     @Override
     protected RScript.ReturnType getReturnType() {
-        return RScript.ReturnType.MAPVALUELIST;
+        return RScript.ReturnType.MULTI;
     }
 
     @Override
     protected AcquireCapacityResult processResult(List<Object> result) {
         log.debug("Processing try acquire capacity result: {}", result);
 
-        Map<String, Object> resultMap = RedisUtils.toMap(result);
-        log.debug("Mapped result map: {}", resultMap);
-
-        boolean acquired = Boolean.TRUE.equals(resultMap.get("acquired"));
-        Integer requestedTier =  resultMap.get("requested_tier") == null ? null
-                : Integer.valueOf((String) resultMap.get("requested_tier"));
+        // {outcome, requested_tier}, the tier is 0 if the arguments were invalid
+        int requestedTier = ScriptResults.intAt(result, 1);
+        return ScriptResults.acquireResult(ScriptResults.intAt(result, 0), requestedTier > 0 ? requestedTier : null);
+    }
 
-        if (!acquired) {
-            String error = (String) resultMap.get("error");
-            log.debug("Failed to acquire capacity from tier {}: {}", requestedTier, error);
-            return CapacityResults.failedAcquire(error, requestedTier);
+    /**
+     * Acquire a permit of the tier, borrowing from the lowest priority tier with free capacity if the tier is exhausted
+     *
+     * @param capacityKey Redis key for the capacity map
+     * @param freeTiersKey Redis key for the set of tiers with free capacity
+     * @param leasesKey Redis key for the permits held per node
+     * @param nodeId id of the node holding the permit, empty to not track the permit per node
+     * @param tier requested tier
+     * @param clientLimit cap of the in-flight requests of the client, null if the client is not capped
+     * @param clientTtl how long the in-flight counter of the client is kept after the acquire
+     * @return AcquireCapacityResult with the source tier of the acquired permit
+     */
+    public Mono<AcquireCapacityResult> tryAcquire(
+            String capacityKey,
+            String freeTiersKey,
+            String leasesKey,
+            String nodeId,
+            int tier,
+            ClientInFlightLimit clientLimit,
+            Duration clientTtl
+    ) {
+        if (clientLimit == null) {
+            return executeAsync(List.of(capacityKey, freeTiersKey, leasesKey), String.valueOf(tier), nodeId);
         }
 
-        int sourceTier = Integer.parseInt((String) resultMap.get("source_tier"));
-        log.info("Successfully acquired capacity from tier {}, requested tier {}", sourceTier, requestedTier);
-
-        return CapacityResults.successfulAcquire(sourceTier, requestedTier);
+        return executeAsync(List.of(capacityKey, freeTiersKey, leasesKey, clientLimit.key()),
+                String.valueOf(tier), nodeId, String.valueOf(clientLimit.maxInFlight()),
+                String.valueOf(clientTtl.toMillis()));
     }
 }
@@ -0,0 +1,172 @@
+package com.example.gateway.capacity.warmup;
+
+import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.capacity.manager.CapacityPools;
+import com.example.gateway.capacity.scripts.BaseRedisScript;
+import com.example.gateway.dto.AcquireCapacityRequest;
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.RedisProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms the gateway up before it takes traffic, reported as the capacityWarmUp health indicator of the readiness group.
+ * <p>
+ * Once the application is started, the warm-up waits for the default capacities of every capacity pool, loads
+ * the Lua scripts into Redis, opens the Redis connections and runs synthetic acquire and release rounds through
+ * the capacity manager, so the first requests neither fail with missing capacities nor pay for cold connections
+ * and interpreted code.
+ * Failed attempts are retried with a backoff, the node stays out of service until an attempt succeeds.
+ * The duration of the warm-up and the time from the JVM start until the node is ready are exposed as metrics.
+ */
+@Slf4j
+@Component
+public class CapacityWarmUp implements HealthIndicator {
+    // Not a configured client, its in-flight counter expires after the warm-up like that of any idle client
+    private static final String WARM_UP_CLIENT = "__capacity_warm_up__";
+    private static final Duration MIN_RETRY_DELAY = Duration.ofMillis(100);
+
+    private final CapacityManager capacityManager;
+    private final CapacityPools capacityPools;
+    private final ObjectProvider<BaseRedisScript<?>> scripts;
+    private final CapacityProperties.WarmUp warmUpProperties;
+    private final int connections;
+    private final List<AcquireCapacityRequest> warmUpRound;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger failedAttempts = new AtomicInteger();
+
+    private volatile Health health;
+    private Disposable warmUpTask;
+
+    public CapacityWarmUp(
+            CapacityManager capacityManager,
+            CapacityPools capacityPools,
+            ObjectProvider<BaseRedisScript<?>> scripts,
+            SpringCloudGatewayProperties limitProperties,
+            CapacityProperties capacityProperties,
+            RedisProperties redisProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.capacityManager = capacityManager;
+        this.capacityPools = capacityPools;
+        this.scripts = scripts;
+        this.warmUpProperties = capacityProperties.getWarmUp();
+        this.connections = redisProperties.getCommands().getConnectionMinimumIdleSize();
+        this.warmUpRound = limitProperties.getTiersCapacity().keySet().stream()
+                .sorted()
+                .map(tier -> new AcquireCapacityRequest(tier, WARM_UP_CLIENT))
+                .toList();
+        this.meterRegistry = meterRegistry;
+        this.health = warmUpProperties.isEnabled()
+                ? Health.outOfService().withDetail("warmUp", "pending").build()
+                : Health.up().withDetail("warmUp", "disabled").build();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!warmUpProperties.isEnabled()) {
+            return;
+        }
+
+        log.info("Warming up capacity management with {} synthetic rounds", warmUpProperties.getIterations());
+        long start = System.nanoTime();
+
+        warmUpTask = Mono.defer(this::warmUp)
+                .timeout(warmUpProperties.getAttemptTimeout())
+                .doOnError(this::recordFailedAttempt)
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, MIN_RETRY_DELAY).maxBackoff(warmUpProperties.getMaxRetryDelay()))
+                .subscribe(
+                        ignored -> {},
+                        error -> log.error("Capacity warm-up gave up, the node stays out of service", error),
+                        () -> markReady(System.nanoTime() - start)
+                );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (warmUpTask != null) {
+            warmUpTask.dispose();
+        }
+    }
+
+    @Override
+    public Health health() {
+        return health;
+    }
+
+    private Mono<Void> warmUp() {
+        return Flux.fromStream(scripts::orderedStream)
+                .flatMap(BaseRedisScript::load)
+                .then(capacityManager.warmUp(connections))
+                .then(capacityPools.warmUp())
+                .then(Flux.range(0, warmUpProperties.getIterations())
+                        .concatMap(round -> acquireAndRelease())
+                        .then());
+    }
+
+    /**
+     * Acquires a permit of every tier in one call, the same way batched requests do, and releases the acquired
+     * permits the same way CapacityFilter does
+     */
+    private Mono<Void> acquireAndRelease() {
+        return capacityManager.tryAcquireCapacities(warmUpRound)
+                .doOnNext(results -> {
+                    for (AcquireCapacityResult result : results) {
+                        if (result.acquired()) {
+                            capacityManager.handleReleaseCapacity(result, WARM_UP_CLIENT);
+                        }
+                    }
+                })
+                .then();
+    }
+
+    private void recordFailedAttempt(Throwable error) {
+        int attempts = failedAttempts.incrementAndGet();
+        log.warn("Capacity warm-up attempt {} failed, retrying: {}", attempts, error.getMessage());
+        health = Health.outOfService()
+                .withDetail("warmUp", "retrying")
+                .withDetail("failedAttempts", attempts)
+                .withDetail("lastError", String.valueOf(error.getMessage()))
+                .build();
+    }
+
+    private void markReady(long warmUpNanos) {
+        long startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+
+        TimeGauge.builder("capacity.warm-up.duration", () -> warmUpNanos, TimeUnit.NANOSECONDS)
+                .description("Time the capacity warm-up took until the node was ready")
+                .register(meterRegistry);
+        TimeGauge.builder("capacity.startup.time", () -> startupMillis, TimeUnit.MILLISECONDS)
+                .description("Time from the JVM start until the node was ready to take traffic")
+                .register(meterRegistry);
+
+        health = Health.up()
+                .withDetail("warmUp", "done")
+                .withDetail("warmUpMillis", TimeUnit.NANOSECONDS.toMillis(warmUpNanos))
+                .withDetail("startupMillis", startupMillis)
+                .withDetail("failedAttempts", failedAttempts.get())
+                .build();
+        log.info("Capacity warm-up done in {} ms, ready {} ms after the JVM start",
+                TimeUnit.NANOSECONDS.toMillis(warmUpNanos), startupMillis);
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.gateway.config;
+
+import com.example.gateway.properties.CapacityProperties;
+import org.springframework.context.annotation.Conditional;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers the annotated bean only when capacities are stored by the given engine. capacity.engine is bound
+ * to the Engine enum, so in-memory and IN_MEMORY select the same engine, and Redis is the default engine.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.ANNOTATION_TYPE})
+@Conditional(OnCapacityEngineCondition.class)
+public @interface ConditionalOnCapacityEngine {
+    CapacityProperties.Engine value();
+}
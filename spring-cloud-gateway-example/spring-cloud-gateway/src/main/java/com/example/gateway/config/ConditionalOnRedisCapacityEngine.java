@@ -0,0 +1,19 @@
+package com.example.gateway.config;
+
+import com.example.gateway.properties.CapacityProperties;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers the annotated bean only when capacities are stored in Redis, which is the default capacity engine.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@ConditionalOnCapacityEngine(CapacityProperties.Engine.REDIS)
+public @interface ConditionalOnRedisCapacityEngine {
+}
@@ -0,0 +1,60 @@
+package com.example.gateway.config;
+
+import com.example.gateway.properties.NettyProperties;
+import com.example.gateway.utils.NativeTransports;
+import com.example.gateway.utils.NativeTransports.Transport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.web.embedded.netty.NettyServerCustomizer;
+import org.springframework.cloud.gateway.config.HttpClientCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.netty.resources.LoopResources;
+
+/**
+ * Event loops and transport of the HTTP server and of the HTTP client proxying the requests to the upstreams.
+ * <p>
+ * Both run on the same event loops, sized with netty.worker-threads, so a request is served and proxied
+ * on the event loop it arrived on. A native transport falls back to NIO when it is not available on this platform.
+ * The Redis connections can run on these event loops too, see netty.share-with-redis.
+ */
+@Slf4j
+@Configuration
+public class NettyConfig {
+    private final NettyProperties nettyProperties;
+    private final boolean preferNative;
+
+    public NettyConfig(NettyProperties nettyProperties) {
+        this.nettyProperties = nettyProperties;
+
+        Transport transportMode = nettyProperties.getTransportMode();
+        this.preferNative = nettyProperties.preferNative();
+        if (transportMode != Transport.NIO && !preferNative) {
+            log.warn("{} transport is not available on this platform, using NIO for the HTTP server and client",
+                    transportMode);
+        }
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public LoopResources gatewayLoopResources() {
+        int workerThreads = nettyProperties.getWorkerThreads() > 0
+                ? nettyProperties.getWorkerThreads()
+                : LoopResources.DEFAULT_IO_WORKER_COUNT;
+        // Without select threads, server connections are accepted on the worker event loops
+        LoopResources loopResources = nettyProperties.getSelectThreads() > 0
+                ? LoopResources.create("gateway", nettyProperties.getSelectThreads(), workerThreads, true)
+                : LoopResources.create("gateway", workerThreads, true);
+        log.info("Using {} transport with {} event loops for the HTTP server and client",
+                NativeTransports.transportOf(loopResources.onServer(preferNative)), workerThreads);
+        return loopResources;
+    }
+
+    @Bean
+    public NettyServerCustomizer gatewayLoopResourcesServerCustomizer(LoopResources gatewayLoopResources) {
+        return httpServer -> httpServer.runOn(gatewayLoopResources, preferNative);
+    }
+
+    @Bean
+    public HttpClientCustomizer gatewayLoopResourcesHttpClientCustomizer(LoopResources gatewayLoopResources) {
+        return httpClient -> httpClient.runOn(gatewayLoopResources, preferNative);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.gateway.config;
+
+import com.example.gateway.properties.CapacityProperties.Engine;
+import org.springframework.boot.autoconfigure.condition.ConditionMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionOutcome;
+import org.springframework.boot.autoconfigure.condition.SpringBootCondition;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+import java.util.Map;
+
+/**
+ * Matches the capacity.engine property bound the same way as CapacityProperties, see {@link ConditionalOnCapacityEngine}
+ */
+class OnCapacityEngineCondition extends SpringBootCondition {
+    private static final String ENGINE_PROPERTY = "capacity.engine";
+
+    @Override
+    public ConditionOutcome getMatchOutcome(ConditionContext context, AnnotatedTypeMetadata metadata) {
+        Map<String, Object> attributes = metadata.getAnnotationAttributes(ConditionalOnCapacityEngine.class.getName());
+        Engine required = (Engine) attributes.get("value");
+        Engine engine = Binder.get(context.getEnvironment())
+                .bind(ENGINE_PROPERTY, Engine.class)
+                .orElse(Engine.REDIS);
+
+        ConditionMessage.Builder message = ConditionMessage.forCondition(ConditionalOnCapacityEngine.class, required);
+        return engine == required
+                ? ConditionOutcome.match(message.foundExactly(ENGINE_PROPERTY + " " + engine))
+                : ConditionOutcome.noMatch(message.found(ENGINE_PROPERTY).items(engine));
+    }
+}
@@ -1,26 +1,34 @@
 package com.example.gateway.config;
 
+import com.example.gateway.properties.NettyProperties;
 import com.example.gateway.properties.RedisProperties;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.example.gateway.utils.NativeTransports;
+import com.example.gateway.utils.NativeTransports.Transport;
+import io.netty.channel.EventLoopGroup;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
-import org.redisson.codec.JsonJacksonCodec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.config.BaseConfig;
 import org.redisson.config.Config;
 import org.redisson.config.TransportMode;
 import org.redisson.spring.data.connection.RedissonConnectionFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import reactor.netty.resources.LoopResources;
+
+import java.util.Locale;
 
 @Slf4j
 @Configuration
 @RequiredArgsConstructor
+@ConditionalOnRedisCapacityEngine
 public class RedisConfig {
     private final RedisProperties redisProperties;
+    private final NettyProperties nettyProperties;
+    private final LoopResources gatewayLoopResources;
 
     @Bean
     public RedissonConnectionFactory redissonConnectionFactory(RedissonClient redissonClient) {
@@ -35,25 +43,113 @@ public class RedisConfig {
     @Bean(name = "redissonClient", destroyMethod = "shutdown")
     public RedissonClient redissonClient() {
         Config config = new Config();
-        config.setTransportMode(TransportMode.valueOf(redisProperties.getTransportMode()));
         config.setThreads(redisProperties.getThreads());
-        config.setNettyThreads(redisProperties.getNettyThreads());
-        config.setCodec(new JsonJacksonCodec(redissonObjectMapper()));
+        EventLoopGroup eventLoopGroup = nettyProperties.isShareWithRedis()
+                ? gatewayLoopResources.onClient(nettyProperties.preferNative())
+                : null;
+        if (eventLoopGroup != null && NativeTransports.transportOf(eventLoopGroup) == Transport.IO_URING) {
+            log.warn("Redisson cannot run on io_uring event loops, Redis connections keep their own event loops");
+            eventLoopGroup = null;
+        }
+
+        if (eventLoopGroup != null) {
+            // Redisson does not shut down event loops it did not create, they are disposed with the HTTP client
+            config.setEventLoopGroup(eventLoopGroup);
+            config.setTransportMode(NativeTransports.toRedisson(NativeTransports.transportOf(eventLoopGroup)));
+            log.info("Using {} transport on the event loops of the HTTP client for Redis connections",
+                    config.getTransportMode());
+        } else {
+            config.setTransportMode(transportMode());
+            config.setNettyThreads(redisProperties.getNettyThreads());
+        }
+        // Values are plain strings written by the capacity scripts, so they are neither serialized nor parsed as JSON
+        config.setCodec(StringCodec.INSTANCE);
 
-        config.useSingleServer()
+        log.info("Connecting to Redis in {} mode", redisProperties.getMode());
+        switch (redisProperties.getMode()) {
+            case SINGLE -> configureSingleServer(config);
+            case CLUSTER -> configureCluster(config);
+            case SENTINEL -> configureSentinel(config);
+            case REPLICATED -> configureReplicated(config);
+        }
+
+        return Redisson.create(config);
+    }
+
+    private void configureSingleServer(Config config) {
+        configureCommands(config.useSingleServer())
+                .setConnectionMinimumIdleSize(redisProperties.getCommands().getConnectionMinimumIdleSize())
+                .setConnectionPoolSize(redisProperties.getCommands().getConnectionPoolSize())
                 .setPassword(redisProperties.getPassword())
                 .setClientName(redisProperties.getClientName())
                 .setSubscriptionConnectionMinimumIdleSize(redisProperties.getConnectionMinimumIdleSize())
                 .setSubscriptionConnectionPoolSize(redisProperties.getConnectionPoolSize())
                 .setAddress(redisProperties.getNodeAddress());
+    }
 
-        return Redisson.create(config);
+    // Capacity keys share a hash tag, so the capacity scripts run on a single master node of the cluster
+    private void configureCluster(Config config) {
+        configureCommands(config.useClusterServers())
+                .setPassword(redisProperties.getPassword())
+                .setClientName(redisProperties.getClientName())
+                .setSubscriptionConnectionMinimumIdleSize(redisProperties.getConnectionMinimumIdleSize())
+                .setSubscriptionConnectionPoolSize(redisProperties.getConnectionPoolSize())
+                .setMasterConnectionMinimumIdleSize(redisProperties.getCommands().getConnectionMinimumIdleSize())
+                .setMasterConnectionPoolSize(redisProperties.getCommands().getConnectionPoolSize())
+                .addNodeAddress(redisProperties.getNodeAddressesOrDefault());
+    }
+
+    private void configureSentinel(Config config) {
+        configureCommands(config.useSentinelServers())
+                .setPassword(redisProperties.getPassword())
+                .setClientName(redisProperties.getClientName())
+                .setSubscriptionConnectionMinimumIdleSize(redisProperties.getConnectionMinimumIdleSize())
+                .setSubscriptionConnectionPoolSize(redisProperties.getConnectionPoolSize())
+                .setMasterConnectionMinimumIdleSize(redisProperties.getCommands().getConnectionMinimumIdleSize())
+                .setMasterConnectionPoolSize(redisProperties.getCommands().getConnectionPoolSize())
+                .setMasterName(redisProperties.getMasterName())
+                .addSentinelAddress(redisProperties.getNodeAddressesOrDefault());
+    }
+
+    private void configureReplicated(Config config) {
+        configureCommands(config.useReplicatedServers())
+                .setPassword(redisProperties.getPassword())
+                .setClientName(redisProperties.getClientName())
+                .setSubscriptionConnectionMinimumIdleSize(redisProperties.getConnectionMinimumIdleSize())
+                .setSubscriptionConnectionPoolSize(redisProperties.getConnectionPoolSize())
+                .setMasterConnectionMinimumIdleSize(redisProperties.getCommands().getConnectionMinimumIdleSize())
+                .setMasterConnectionPoolSize(redisProperties.getCommands().getConnectionPoolSize())
+                .addNodeAddress(redisProperties.getNodeAddressesOrDefault());
     }
 
-    private ObjectMapper redissonObjectMapper() {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.registerModule(new JavaTimeModule());
-        return mapper;
+    private <T extends BaseConfig<T>> T configureCommands(T serverConfig) {
+        RedisProperties.Commands commands = redisProperties.getCommands();
+        return serverConfig
+                .setTcpNoDelay(commands.isTcpNoDelay())
+                .setKeepAlive(commands.isKeepAlive())
+                .setPingConnectionInterval((int) commands.getPingInterval().toMillis());
+    }
+
+    /**
+     * Returns the configured transport, or NIO if the native transport is not available on this platform.
+     * Redisson has no io_uring transport, IO_URING uses epoll, the other native transport of Linux.
+     */
+    private TransportMode transportMode() {
+        Transport transport = redisProperties.getTransportMode() != null
+                ? Transport.valueOf(redisProperties.getTransportMode().trim().toUpperCase(Locale.ROOT))
+                : Transport.NIO;
+        if (transport == Transport.IO_URING) {
+            log.warn("Redisson has no io_uring transport, using EPOLL for Redis connections");
+            transport = Transport.EPOLL;
+        }
+
+        TransportMode transportMode = NativeTransports.toRedisson(transport);
+        if (NativeTransports.isAvailable(transport)) {
+            log.info("Using {} transport for Redis connections", transportMode);
+            return transportMode;
+        }
+
+        log.warn("{} transport is not available on this platform, using NIO for Redis connections", transportMode);
+        return TransportMode.NIO;
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,33 @@
 package com.example.gateway.controller;
 
 import com.example.gateway.capacity.manager.CapacityManager;
+import com.example.gateway.capacity.manager.CapacityPools;
+import com.example.gateway.capacity.manager.CapacityPools.CapacityPool;
 import com.example.gateway.dto.DynamicCapacityDto;
 import com.example.gateway.dto.DynamicCapacityResponse;
+import com.example.gateway.dto.InFlightPermitsResponse;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
 @RestController
 @RequestMapping("/api/v1.0/admin")
 @RequiredArgsConstructor
 public class AdminController {
     private final CapacityManager capacityManager;
+    private final CapacityPools capacityPools;
 
     /**
      * Dynamically update capacity values.
@@ -61,4 +71,96 @@ public class AdminController {
                         ? ResponseEntity.ok(result)
                         : ResponseEntity.internalServerError().body(result));
     }
+
+    /**
+     * Get permits currently held by each gateway node, permits of nodes whose leases expired are reclaimed
+     * by the remaining nodes
+     *
+     * @return InFlightPermitsResponse with the permits held per node and tier
+     */
+    @GetMapping("/capacity/in-flight")
+    public Mono<ResponseEntity<InFlightPermitsResponse>> getInFlightPermits() {
+        return capacityManager.getInFlightPermits()
+                .map(result -> !StringUtils.hasText(result.getError())
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.internalServerError().body(result));
+    }
+
+    /**
+     * Get dynamic capacity values of every capacity pool available at the current moment of time,
+     * the global pool is listed as "@global"
+     *
+     * @return DynamicCapacityResponse with the current capacity values per pool
+     */
+    @GetMapping("/capacity/pools")
+    public Mono<ResponseEntity<Map<String, DynamicCapacityResponse>>> getPoolCapacities() {
+        return Flux.fromIterable(capacityPools.all())
+                .concatMap(pool -> pool.manager().getCurrentCapacities()
+                        .map(result -> Map.entry(pool.name(), result)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue, TreeMap::new)
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * Dynamically update capacity values of a capacity pool, the other pools keep their capacities
+     *
+     * @return DynamicCapacityResponse with the capacity values that were set, or 404 if the pool is not configured
+     */
+    @PutMapping("/capacity/pools/{pool}")
+    public Mono<ResponseEntity<DynamicCapacityResponse>> updatePoolCapacity(
+            @PathVariable String pool,
+            @RequestBody DynamicCapacityDto request
+    ) {
+        return withPool(pool, manager -> manager.updateCapacities(request)
+                .map(result -> !StringUtils.hasText(result.getError())
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.internalServerError().body(result)));
+    }
+
+    /**
+     * Get dynamic capacity values of a capacity pool available at the current moment of time
+     *
+     * @return DynamicCapacityResponse with the current capacity values, or 404 if the pool is not configured
+     */
+    @GetMapping("/capacity/pools/{pool}")
+    public Mono<ResponseEntity<DynamicCapacityResponse>> getCurrentPoolCapacity(@PathVariable String pool) {
+        return withPool(pool, manager -> manager.getCurrentCapacities()
+                .map(result -> !StringUtils.hasText(result.getError())
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.internalServerError().body(result)));
+    }
+
+    /**
+     * Get default capacity values of a capacity pool set during the last init or update operation
+     *
+     * @return DynamicCapacityResponse with the default capacity values, or 404 if the pool is not configured
+     */
+    @GetMapping("/capacity/pools/{pool}/default")
+    public Mono<ResponseEntity<DynamicCapacityResponse>> getDefaultPoolCapacity(@PathVariable String pool) {
+        return withPool(pool, manager -> manager.getDefaultCapacities()
+                .map(result -> !StringUtils.hasText(result.getError())
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.internalServerError().body(result)));
+    }
+
+    /**
+     * Get permits of a capacity pool currently held by each gateway node
+     *
+     * @return InFlightPermitsResponse with the permits held per node and tier, or 404 if the pool is not configured
+     */
+    @GetMapping("/capacity/pools/{pool}/in-flight")
+    public Mono<ResponseEntity<InFlightPermitsResponse>> getPoolInFlightPermits(@PathVariable String pool) {
+        return withPool(pool, manager -> manager.getInFlightPermits()
+                .map(result -> !StringUtils.hasText(result.getError())
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.internalServerError().body(result)));
+    }
+
+    private <T> Mono<ResponseEntity<T>> withPool(
+            String name,
+            Function<CapacityManager, Mono<ResponseEntity<T>>> operation
+    ) {
+        CapacityPool pool = capacityPools.get(name);
+        return pool != null ? operation.apply(pool.manager()) : Mono.just(ResponseEntity.notFound().build());
+    }
 }
@@ -0,0 +1,6 @@
+package com.example.gateway.dto;
+
+public record AcquireCapacityRequest(
+        int tier,
+        String clientId
+) {}
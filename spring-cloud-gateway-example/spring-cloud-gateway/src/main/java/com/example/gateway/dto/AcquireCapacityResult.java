@@ -1,8 +1,18 @@
 package com.example.gateway.dto;
 
+/**
+ * Result of an acquire operation
+ *
+ * @param degraded true if the permit was granted by the degraded mode while the capacity store was unavailable,
+ *                 such permits are released locally instead of to the capacity store
+ * @param leaseEpoch epoch of the leases the permit was taken from by LeasedCapacityManager, releases of permits
+ *                   taken before the leases of the node expired are dropped; 0 for permits which were not leased
+ */
 public record AcquireCapacityResult(
         boolean acquired,
         Integer sourceTier,
         Integer requestedTier,
-        String error
+        String error,
+        boolean degraded,
+        int leaseEpoch
 ) {}
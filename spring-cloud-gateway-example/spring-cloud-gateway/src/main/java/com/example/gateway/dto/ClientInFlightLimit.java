@@ -0,0 +1,12 @@
+package com.example.gateway.dto;
+
+/**
+ * Cap of the in-flight requests of a client, enforced by the acquire scripts
+ *
+ * @param key Redis key counting the in-flight requests of the client
+ * @param maxInFlight maximum number of in-flight requests of the client
+ */
+public record ClientInFlightLimit(
+        String key,
+        int maxInFlight
+) {}
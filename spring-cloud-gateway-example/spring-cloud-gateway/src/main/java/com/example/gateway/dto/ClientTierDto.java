@@ -14,4 +14,9 @@ public class ClientTierDto {
     private String id;
     @Positive
     private Integer tier;
+    /**
+     * Maximum number of in-flight requests of the client across all gateway nodes, unlimited if not set
+     */
+    @Positive
+    private Integer maxInFlight;
 }
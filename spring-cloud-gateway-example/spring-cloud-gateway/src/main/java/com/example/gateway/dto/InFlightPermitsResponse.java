@@ -0,0 +1,25 @@
+package com.example.gateway.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class InFlightPermitsResponse {
+    /**
+     * Permits held by each node, by tier
+     */
+    private Map<String, Map<Integer, Integer>> permitsByNode;
+    /**
+     * Lease expiry time of each node in epoch milliseconds
+     */
+    private Map<String, Long> leaseExpiryByNode;
+    private Boolean success;
+    private String error;
+}
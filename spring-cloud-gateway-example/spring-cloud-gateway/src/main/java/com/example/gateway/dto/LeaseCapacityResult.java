@@ -0,0 +1,9 @@
+package com.example.gateway.dto;
+
+public record LeaseCapacityResult(
+        boolean leased,
+        Integer sourceTier,
+        Integer requestedTier,
+        int permits,
+        String error
+) {}
@@ -0,0 +1,26 @@
+package com.example.gateway.dto;
+
+/**
+ * Limit which rejected a request, reported in rejection responses and metrics
+ */
+public enum RejectedLimit {
+    /**
+     * The client sent more requests per second than the rate limit of its tier
+     */
+    RATE,
+    /**
+     * The client already had its max number of requests in flight
+     */
+    CLIENT_CONCURRENCY,
+    /**
+     * No capacity was available to the tier of the client
+     */
+    CONCURRENCY;
+
+    /**
+     * Returns the value of the limit in headers and metric tags
+     */
+    public String tag() {
+        return name().toLowerCase();
+    }
+}
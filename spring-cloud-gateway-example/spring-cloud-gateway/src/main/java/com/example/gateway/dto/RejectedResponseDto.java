@@ -15,10 +15,18 @@ public class RejectedResponseDto {
     private String errorMessage;
     private String clientId;
     private int requestedTier;
+    private String rejectedLimit;
 
-    public RejectedResponseDto(String clientId, int requestedTier) {
-        this.errorMessage = format("Service capacity exhausted for client '%s' and tier '%s'", clientId, requestedTier);
+    public RejectedResponseDto(String clientId, int requestedTier, RejectedLimit rejectedLimit) {
+        this.errorMessage = switch (rejectedLimit) {
+            case RATE -> format("Rate limit exceeded for client '%s' and tier '%s'", clientId, requestedTier);
+            case CLIENT_CONCURRENCY ->
+                    format("Too many in-flight requests for client '%s' and tier '%s'", clientId, requestedTier);
+            case CONCURRENCY ->
+                    format("Service capacity exhausted for client '%s' and tier '%s'", clientId, requestedTier);
+        };
         this.clientId = clientId;
         this.requestedTier = requestedTier;
+        this.rejectedLimit = rejectedLimit.tag();
     }
 }
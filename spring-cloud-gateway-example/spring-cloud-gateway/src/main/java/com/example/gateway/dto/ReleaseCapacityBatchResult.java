@@ -0,0 +1,8 @@
+package com.example.gateway.dto;
+
+public record ReleaseCapacityBatchResult(
+        boolean released,
+        int releasedPermits,
+        int droppedPermits,
+        String error
+) {}
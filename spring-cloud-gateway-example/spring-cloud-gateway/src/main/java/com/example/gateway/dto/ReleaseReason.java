@@ -0,0 +1,30 @@
+package com.example.gateway.dto;
+
+/**
+ * Why a request released its permit, reported in metrics
+ */
+public enum ReleaseReason {
+    /**
+     * The downstream response completed
+     */
+    COMPLETED,
+    /**
+     * The downstream response did not complete within the timeout of the route and tier
+     */
+    TIMEOUT,
+    /**
+     * The client disconnected or the request was cancelled otherwise
+     */
+    CANCELLED,
+    /**
+     * The downstream call or the response processing failed
+     */
+    ERROR;
+
+    /**
+     * Returns the value of the reason in metric tags
+     */
+    public String tag() {
+        return name().toLowerCase();
+    }
+}
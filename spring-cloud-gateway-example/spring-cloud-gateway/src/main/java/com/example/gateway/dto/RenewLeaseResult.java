@@ -0,0 +1,8 @@
+package com.example.gateway.dto;
+
+public record RenewLeaseResult(
+        boolean renewed,
+        int reclaimedPermits,
+        int expiredNodes,
+        String error
+) {}
@@ -0,0 +1,6 @@
+package com.example.gateway.dto;
+
+public record ResolvedClient(
+        String name,
+        int tier
+) {}
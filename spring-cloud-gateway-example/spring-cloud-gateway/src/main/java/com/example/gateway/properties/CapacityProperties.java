@@ -0,0 +1,388 @@
+package com.example.gateway.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "capacity")
+public class CapacityProperties {
+    /**
+     * Unique id of this gateway node, used to track permits leased by the node in Redis
+     */
+    private String nodeId = UUID.randomUUID().toString();
+    /**
+     * Where capacities are stored: in Redis, shared by all gateway nodes, or in the memory of a single node
+     */
+    private Engine engine = Engine.REDIS;
+
+    private Scripts scripts = new Scripts();
+    private Sharding sharding = new Sharding();
+    private Scheduling scheduling = new Scheduling();
+    private Lease lease = new Lease();
+    private ReleaseBatch releaseBatch = new ReleaseBatch();
+    private AcquireBatch acquireBatch = new AcquireBatch();
+    private Queue queue = new Queue();
+    private Adaptive adaptive = new Adaptive();
+    private Metrics metrics = new Metrics();
+    private Rejection rejection = new Rejection();
+    private InMemory inMemory = new InMemory();
+    private Timeouts timeouts = new Timeouts();
+    private Degraded degraded = new Degraded();
+    private WarmUp warmUp = new WarmUp();
+    /**
+     * Capacity pools by name, each with tier capacities of its own. Routes use the pool named in their CapacityFilter
+     * or the pool named after their route id, other routes share the global spring-cloud-gateway.tiers-capacity
+     */
+    private Map<String, Pool> pools = new HashMap<>();
+
+    public enum Engine {
+        REDIS,
+        IN_MEMORY
+    }
+
+    @Data
+    public static class Scripts {
+        /**
+         * Strip comments and indentation from Lua scripts before loading them into Redis
+         */
+        private boolean minify = true;
+    }
+
+    @Data
+    public static class Sharding {
+        /**
+         * Number of independent Redis capacity stores, each holding an even share of the capacity of every tier.
+         * Clients are assigned to stores by their id, so the stores can be spread across Redis Cluster nodes.
+         */
+        private int shards = 1;
+    }
+
+    @Data
+    public static class Scheduling {
+        /**
+         * How tiers share capacity: PRIORITY lets a tier borrow only from lower priority tiers, the lowest priority
+         * first, WEIGHTED_FAIR lets every tier borrow idle capacity of any other tier within per-tier limits
+         */
+        private Policy policy = Policy.PRIORITY;
+        /**
+         * Weighted fair scheduling settings per tier
+         */
+        private Map<Integer, TierScheduling> tiers = new HashMap<>();
+
+        public boolean isWeightedFair() {
+            return policy == Policy.WEIGHTED_FAIR;
+        }
+
+        public TierScheduling getTier(int tier) {
+            return tiers.getOrDefault(tier, new TierScheduling());
+        }
+    }
+
+    public enum Policy {
+        PRIORITY,
+        WEIGHTED_FAIR
+    }
+
+    @Data
+    public static class TierScheduling {
+        /**
+         * Share of the tier in lending its idle capacity, tiers with a higher weight keep more of their idle capacity
+         */
+        private double weight = 1.0;
+        /**
+         * Number of permits of the tier which are never lent to other tiers while the tier may still need them
+         */
+        private int minGuaranteed;
+        /**
+         * Maximum number of permits held by requests of the tier, own and borrowed, unlimited if not set
+         */
+        private Integer maxBurst;
+    }
+
+    @Data
+    public static class Lease {
+        /**
+         * Serve acquire and release operations from a local pool of permits leased from Redis
+         */
+        private boolean enabled;
+        /**
+         * Number of permits leased from Redis at once when the local pool of a tier is empty
+         */
+        private int blockSize = 5;
+        /**
+         * Number of idle permits kept in the local pool of a tier, the surplus is returned to Redis
+         */
+        private int maxIdlePermits = 5;
+        /**
+         * How often idle permits are returned to Redis
+         */
+        private Duration returnInterval = Duration.ofMillis(100);
+        /**
+         * Track permits acquired by the regular acquire operations per node, so permits held by a node which died
+         * without releasing them are reclaimed once its leases expire
+         */
+        private boolean trackInFlight = true;
+        /**
+         * How long the leases of a node stay valid without a heartbeat before other nodes reclaim them
+         */
+        private Duration ttl = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Returns the node id acquired permits are tracked with, or an empty string if in-flight permits are not tracked
+     */
+    public String inFlightNodeId() {
+        return lease.isTrackInFlight() ? nodeId : "";
+    }
+
+    @Data
+    public static class ReleaseBatch {
+        /**
+         * Aggregate capacity releases per tier and apply them to Redis in batches
+         */
+        private boolean enabled;
+        /**
+         * How long releases are collected before being flushed to Redis
+         */
+        private Duration window = Duration.ofMillis(5);
+        /**
+         * Number of pending releases which triggers a flush before the window ends
+         */
+        private int maxBatchSize = 100;
+        /**
+         * Maximum number of pending releases, further releases are applied to Redis directly
+         */
+        private int maxPending = 10_000;
+    }
+
+    @Data
+    public static class AcquireBatch {
+        /**
+         * Group acquire operations arriving concurrently on the same event loop into a single Redis call
+         */
+        private boolean enabled;
+        /**
+         * How long acquire operations are collected, zero flushes once the event loop finishes its current tasks
+         */
+        private Duration window = Duration.ZERO;
+        /**
+         * Number of collected acquire operations which triggers a flush before the window ends
+         */
+        private int maxBatchSize = 64;
+    }
+
+    @Data
+    public static class Queue {
+        /**
+         * Park requests in a wait queue when no capacity is available instead of rejecting them immediately
+         */
+        private boolean enabled;
+        /**
+         * Maximum number of requests waiting for capacity per tier, further requests are rejected
+         */
+        private int maxQueueLength = 100;
+        /**
+         * Maximum time a request waits for capacity before being rejected
+         */
+        private Duration maxWait = Duration.ofMillis(500);
+        /**
+         * How often the queue retries waiting requests without a release notification, covering missed notifications
+         * and capacity updates
+         */
+        private Duration pollInterval = Duration.ofMillis(50);
+        /**
+         * Overrides of the queue length and the wait time per tier
+         */
+        private Map<Integer, TierQueue> tiers = new HashMap<>();
+
+        public int getMaxQueueLength(int tier) {
+            TierQueue tierQueue = tiers.get(tier);
+            return tierQueue != null && tierQueue.getMaxQueueLength() != null
+                    ? tierQueue.getMaxQueueLength()
+                    : maxQueueLength;
+        }
+
+        public Duration getMaxWait(int tier) {
+            TierQueue tierQueue = tiers.get(tier);
+            return tierQueue != null && tierQueue.getMaxWait() != null
+                    ? tierQueue.getMaxWait()
+                    : maxWait;
+        }
+    }
+
+    @Data
+    public static class TierQueue {
+        /**
+         * Maximum number of requests of the tier waiting for capacity, defaults to capacity.queue.max-queue-length
+         */
+        private Integer maxQueueLength;
+        /**
+         * Maximum time a request of the tier waits for capacity, defaults to capacity.queue.max-wait
+         */
+        private Duration maxWait;
+    }
+
+    /**
+     * Returns the channel capacity releases are published to, or an empty string if nobody waits for them
+     */
+    public String releasedChannel(String channel) {
+        return queue.isEnabled() ? channel : "";
+    }
+
+    @Data
+    public static class Adaptive {
+        /**
+         * Scale the total capacity with the downstream latency and error rate, keeping the ratios of the tiers.
+         * Enable it on a single gateway node only, every adapting node overwrites the capacities shared through Redis.
+         */
+        private boolean enabled;
+        /**
+         * How often the total capacity is adjusted
+         */
+        private Duration interval = Duration.ofSeconds(1);
+        /**
+         * Lower bound of the total capacity, relative to the default capacities the adaptation started from
+         */
+        private double minScale = 0.5;
+        /**
+         * Upper bound of the total capacity, relative to the default capacities the adaptation started from
+         */
+        private double maxScale = 2.0;
+        /**
+         * Weight of a new decision in the total capacity, lower values damp the adjustments
+         */
+        private double smoothing = 0.2;
+        /**
+         * How much the recent latency may exceed the long-term latency before the capacity is decreased
+         */
+        private double rttTolerance = 1.5;
+        /**
+         * Number of intervals averaged into the long-term latency
+         */
+        private int longWindow = 60;
+        /**
+         * Error rate of downstream responses above which the capacity is decreased
+         */
+        private double maxErrorRate = 0.05;
+        /**
+         * Factor the capacity is multiplied by when the error rate is exceeded
+         */
+        private double errorBackoff = 0.9;
+        /**
+         * Minimum number of responses in an interval for the capacity to be adjusted
+         */
+        private int minSamples = 20;
+        /**
+         * How long the adaptation pauses once the default capacities were updated by anyone else, e.g. through
+         * the admin API. The updated capacities become the base of the scaling.
+         */
+        private Duration pauseAfterUpdate = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Metrics {
+        /**
+         * How often the live capacity gauges are refreshed from the capacity store
+         */
+        private Duration refreshInterval = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Rejection {
+        /**
+         * Maximum number of clients whose rendered rejection responses are kept, the least recently used are evicted
+         */
+        private long maximumCachedClients = 10_000;
+    }
+
+    @Data
+    public static class InMemory {
+        /**
+         * Maximum number of clients whose in-flight counters and token buckets the in-memory engine keeps, the least
+         * recently used are evicted. Counters of idle clients are dropped after spring-cloud-gateway.client-in-flight.ttl,
+         * token buckets once idle for twice the time they take to refill.
+         */
+        private long maximumClients = 100_000;
+    }
+
+    @Data
+    public static class Timeouts {
+        /**
+         * Maximum time a request holds its permit waiting for the downstream response, the permit is released and
+         * the request answered with 504 Gateway Timeout once it passes. Routes override it with capacity-timeout metadata.
+         */
+        private Duration downstream = Duration.ofSeconds(30);
+        /**
+         * Overrides of the downstream timeout per requested tier
+         */
+        private Map<Integer, Duration> tiers = new HashMap<>();
+        /**
+         * Maximum time writing a rejection response may take
+         */
+        private Duration rejection = Duration.ofSeconds(10);
+
+        public Duration getDownstream(int tier) {
+            return tiers.getOrDefault(tier, downstream);
+        }
+    }
+
+    @Data
+    public static class Degraded {
+        /**
+         * How requests are admitted while the circuit breaker of the capacity store is open or a call fails:
+         * FAIL_OPEN admits all requests, FAIL_CLOSED rejects all requests, LOCAL admits requests up to a local limit
+         */
+        private DegradedMode mode = DegradedMode.LOCAL;
+        /**
+         * Number of gateway nodes sharing the configured tier capacity, each node admits its share of it in LOCAL mode
+         */
+        private int nodes = 1;
+        /**
+         * Maximum duration of an acquire call to the capacity store, slower calls fail and count for the circuit breaker
+         */
+        private Duration callTimeout = Duration.ofMillis(500);
+    }
+
+    public enum DegradedMode {
+        FAIL_OPEN,
+        FAIL_CLOSED,
+        LOCAL
+    }
+
+    @Data
+    public static class WarmUp {
+        /**
+         * Keep the readiness probe out of service until the capacities are initialized and the connections,
+         * scripts and the acquire path are warmed up
+         */
+        private boolean enabled = true;
+        /**
+         * Number of synthetic rounds acquiring and releasing a permit of every tier, warming up the JIT-compiled
+         * acquire and release paths. The permits are held for a moment only, 0 skips the rounds.
+         */
+        private int iterations = 200;
+        /**
+         * Maximum duration of a warm-up attempt, failed attempts are retried until the warm-up succeeds
+         */
+        private Duration attemptTimeout = Duration.ofSeconds(30);
+        /**
+         * Maximum delay between warm-up attempts
+         */
+        private Duration maxRetryDelay = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Pool {
+        /**
+         * Capacity of every tier of the pool, shared by all routes of the pool and by no other route
+         */
+        private Map<Integer, Integer> tiersCapacity = new HashMap<>();
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.gateway.properties;
+
+import com.example.gateway.utils.NativeTransports;
+import com.example.gateway.utils.NativeTransports.Transport;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "netty")
+public class NettyProperties {
+    /**
+     * Transport of the HTTP server and of the HTTP client to the upstreams: NIO, EPOLL, KQUEUE or IO_URING,
+     * NIO is used when the native transport is not available on this platform
+     */
+    private Transport transportMode = Transport.NIO;
+    /**
+     * Number of event loops serving and proxying the requests, zero for the Reactor Netty default,
+     * the number of available processors but at least 4
+     */
+    private int workerThreads;
+    /**
+     * Number of event loops accepting server connections, zero to accept them on the worker event loops
+     */
+    private int selectThreads;
+    /**
+     * Run the Redis connections on the event loops of the HTTP client instead of their own redis.netty-threads,
+     * so Redis adds no event loop threads and the Redis transport follows the transport of the HTTP client.
+     * Redisson cannot run on io_uring event loops, with IO_URING the Redis connections keep their own event loops
+     */
+    private boolean shareWithRedis;
+
+    /**
+     * Returns true if the configured transport is a native transport available on this platform
+     */
+    public boolean preferNative() {
+        return transportMode != Transport.NIO && NativeTransports.isAvailable(transportMode);
+    }
+}
@@ -5,17 +5,79 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 @Configuration
 @ConfigurationProperties(prefix = "redis")
 public class RedisProperties {
     private boolean enabled;
+    private Mode mode = Mode.SINGLE;
     private int threads;
     private int nettyThreads;
+    /**
+     * Netty transport of the Redis connections: NIO, EPOLL or KQUEUE, IO_URING uses EPOLL as Redisson has
+     * no io_uring transport. NIO is used when the native transport is not available on this platform
+     */
     private String transportMode;
+    /**
+     * Minimum number of idle subscription connections, see commands for the connections running the scripts
+     */
     private int connectionMinimumIdleSize;
+    /**
+     * Maximum number of subscription connections, see commands for the connections running the scripts
+     */
     private int connectionPoolSize;
+    /**
+     * Connections of the commands and scripts, i.e. of every acquire and release
+     */
+    private Commands commands = new Commands();
     private String nodeAddress;
+    /**
+     * Addresses of the cluster, sentinel or replicated nodes, the node address is used when empty
+     */
+    private List<String> nodeAddresses = new ArrayList<>();
+    /**
+     * Name of the master monitored by the sentinels
+     */
+    private String masterName;
     private String clientName;
     private String password;
+
+    @Data
+    public static class Commands {
+        /**
+         * Minimum number of idle command connections per master, opened at startup and by the warm-up
+         */
+        private int connectionMinimumIdleSize = 24;
+        /**
+         * Maximum number of command connections per master, shared by the acquire and release calls of the node
+         */
+        private int connectionPoolSize = 64;
+        /**
+         * Disable Nagle's algorithm, so small commands are sent without waiting for more data
+         */
+        private boolean tcpNoDelay = true;
+        /**
+         * Enable TCP keepalive on the connections
+         */
+        private boolean keepAlive;
+        /**
+         * Interval of the PING commands checking idle connections, zero disables them
+         */
+        private Duration pingInterval = Duration.ofSeconds(30);
+    }
+
+    public enum Mode {
+        SINGLE,
+        CLUSTER,
+        SENTINEL,
+        REPLICATED
+    }
+
+    public String[] getNodeAddressesOrDefault() {
+        return nodeAddresses.isEmpty() ? new String[]{nodeAddress} : nodeAddresses.toArray(String[]::new);
+    }
 }
@@ -6,6 +6,7 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -19,7 +20,10 @@ import java.util.stream.Collectors;
 public class SpringCloudGatewayProperties {
     private List<ClientTierDto> clients = Collections.emptyList();
     private Map<Integer, Integer> tiersCapacity = new HashMap<>();
+    private Map<Integer, RateLimit> tiersRateLimit = new HashMap<>();
     private Map<String, ClientTierDto> clientLimitsMap;
+    private ClientCache clientCache = new ClientCache();
+    private ClientInFlight clientInFlight = new ClientInFlight();
 
     private final ClientTierDto defaultLimitConfig = ClientTierDto.builder()
             .tier(3)  // Default to lowest tier
@@ -33,4 +37,74 @@ public class SpringCloudGatewayProperties {
     public int getTierForClient(String clientId) {
         return clientLimitsMap.getOrDefault(clientId, defaultLimitConfig).getTier();
     }
+
+    /**
+     * Returns the maximum number of in-flight requests of the client, 0 if the client is not capped.
+     * Clients which are not configured get the default cap.
+     */
+    public int getMaxInFlightForClient(String clientId) {
+        ClientTierDto client = clientLimitsMap.get(clientId);
+        Integer maxInFlight = client != null ? client.getMaxInFlight() : clientInFlight.getDefaultMax();
+        return maxInFlight != null ? maxInFlight : 0;
+    }
+
+    /**
+     * Returns the rate limit applied to each client of the tier, null if the tier is not rate limited
+     */
+    public RateLimit getRateLimitForTier(int tier) {
+        return tiersRateLimit.get(tier);
+    }
+
+    /**
+     * Returns true if any client has a cap of its in-flight requests
+     */
+    public boolean hasClientInFlightCaps() {
+        return clientInFlight.getDefaultMax() != null
+                || clientLimitsMap.values().stream().anyMatch(client -> client.getMaxInFlight() != null);
+    }
+
+    @Data
+    public static class ClientCache {
+        /**
+         * Cache clients resolved from the Authorization header, so repeat clients are not decoded again
+         */
+        private boolean enabled = true;
+        /**
+         * Maximum number of cached Authorization header values
+         */
+        private long maximumSize = 10_000;
+        /**
+         * How long a resolved client is cached, bounds how long client tier changes take to apply
+         */
+        private Duration expireAfterWrite = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class RateLimit {
+        /**
+         * Number of requests per second each client of the tier may send on average
+         */
+        private int replenishRate;
+        /**
+         * Maximum number of requests a client of the tier may send at once, defaults to the replenish rate
+         */
+        private Integer burstCapacity;
+
+        public int getBurstCapacity() {
+            return burstCapacity != null ? burstCapacity : replenishRate;
+        }
+    }
+
+    @Data
+    public static class ClientInFlight {
+        /**
+         * Maximum number of in-flight requests of clients which are not configured, unlimited if not set
+         */
+        private Integer defaultMax;
+        /**
+         * How long the in-flight counter of a client is kept after its last acquire,
+         * counters left by a gateway node which died are cleared once the client is idle for this long
+         */
+        private Duration ttl = Duration.ofMinutes(1);
+    }
 }
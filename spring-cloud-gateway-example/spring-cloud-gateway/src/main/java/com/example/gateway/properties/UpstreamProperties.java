@@ -0,0 +1,62 @@
+package com.example.gateway.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import reactor.netty.http.HttpProtocol;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "upstream")
+public class UpstreamProperties {
+    /**
+     * Connection pool of each route, overridden per route with the upstream-pool metadata
+     */
+    private Pool pool = new Pool();
+
+    @Data
+    public static class Pool {
+        /**
+         * Give every http route its own connection pool instead of the shared pool of the gateway HTTP client
+         */
+        private boolean enabled = true;
+        /**
+         * Maximum number of connections per upstream address, zero to size the pool from the tier capacities
+         * of the capacity pool of the route, as no more requests of the route are admitted at once
+         */
+        private int maxConnections;
+        /**
+         * Maximum number of requests waiting for a connection, zero for as many as the max connections
+         */
+        private int pendingAcquireMaxCount;
+        /**
+         * How long a request waits for a connection before it fails
+         */
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(10);
+        /**
+         * How long a connection may stay idle in the pool before it is closed
+         */
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        /**
+         * How long a connection may live before it is closed, null to keep connections as long as they are used
+         */
+        private Duration maxLifeTime;
+        /**
+         * Interval of the background eviction of idle and expired connections, zero to evict them only on acquire
+         */
+        private Duration evictionInterval = Duration.ofSeconds(15);
+        /**
+         * Protocols to the upstreams, e.g. H2C for HTTP/2 with prior knowledge, or HTTP11 and H2C to upgrade
+         */
+        private List<HttpProtocol> protocols = new ArrayList<>(List.of(HttpProtocol.HTTP11));
+        /**
+         * Concurrent streams expected per HTTP/2 connection, pools sized from the tier capacities open
+         * a connection per this many admitted requests when only HTTP/2 is used
+         */
+        private int http2StreamsPerConnection = 100;
+    }
+}
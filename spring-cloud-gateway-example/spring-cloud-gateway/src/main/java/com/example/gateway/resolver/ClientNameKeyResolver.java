@@ -1,7 +1,12 @@
 package com.example.gateway.resolver;
 
+import com.example.gateway.dto.ResolvedClient;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
 import com.example.gateway.utils.RequestUtils;
-import lombok.AllArgsConstructor;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cloud.gateway.filter.ratelimit.KeyResolver;
 import org.springframework.context.annotation.Primary;
@@ -13,15 +18,28 @@ import reactor.core.publisher.Mono;
 import java.util.List;
 
 import static com.example.gateway.utils.RequestUtils.CLIENT_NAME_ATTR;
+import static com.example.gateway.utils.RequestUtils.RESOLVED_CLIENT_ATTR;
 
 @Slf4j
 @Primary
 @Component
-@AllArgsConstructor
 public class ClientNameKeyResolver implements KeyResolver {
     private static final String UNKNOWN_CLIENT_NAME = "unknown";
 
-    private List<ClientNameExtractor> clientNameExtractors;
+    private final List<ClientNameExtractor> clientNameExtractors;
+    private final SpringCloudGatewayProperties limitProperties;
+    // Resolved clients by the raw Authorization header value, null if caching is disabled
+    private final Cache<String, ResolvedClient> clientCache;
+
+    public ClientNameKeyResolver(
+            List<ClientNameExtractor> clientNameExtractors,
+            SpringCloudGatewayProperties limitProperties,
+            MeterRegistry meterRegistry
+    ) {
+        this.clientNameExtractors = clientNameExtractors;
+        this.limitProperties = limitProperties;
+        this.clientCache = createClientCache(limitProperties.getClientCache(), meterRegistry);
+    }
 
     @Override
     public Mono<String> resolve(ServerWebExchange exchange) {
@@ -32,21 +50,58 @@ public class ClientNameKeyResolver implements KeyResolver {
         }
 
         // If not cached, resolve the client name
-        return resolveClientName(exchange);
+        return Mono.just(resolveAndStoreClient(exchange).name());
+    }
+
+    /**
+     * Resolves the client name together with the tier of the client
+     */
+    public Mono<ResolvedClient> resolveClient(ServerWebExchange exchange) {
+        ResolvedClient resolvedClient = exchange.getAttribute(RESOLVED_CLIENT_ATTR);
+        if (resolvedClient != null) {
+            return Mono.just(resolvedClient);
+        }
+
+        return Mono.just(resolveAndStoreClient(exchange));
+    }
+
+    private ResolvedClient resolveAndStoreClient(ServerWebExchange exchange) {
+        ResolvedClient resolvedClient = lookupClient(exchange);
+
+        // Cache the resolved client in exchange attributes
+        log.trace("Adding resolved client to request attributes: {}", resolvedClient);
+        exchange.getAttributes().put(CLIENT_NAME_ATTR, resolvedClient.name());
+        exchange.getAttributes().put(RESOLVED_CLIENT_ATTR, resolvedClient);
+
+        return resolvedClient;
     }
 
-    private Mono<String> resolveClientName(ServerWebExchange exchange) {
+    /**
+     * Repeat clients send the same Authorization header, so the client resolved from the header value
+     * is reused without decoding the header again
+     */
+    private ResolvedClient lookupClient(ServerWebExchange exchange) {
+        String authorization = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (clientCache == null || authorization == null) {
+            return resolveClientUncached(exchange);
+        }
+
+        ResolvedClient resolvedClient = clientCache.getIfPresent(authorization);
+        if (resolvedClient == null) {
+            resolvedClient = resolveClientUncached(exchange);
+            clientCache.put(authorization, resolvedClient);
+        }
+        return resolvedClient;
+    }
+
+    private ResolvedClient resolveClientUncached(ServerWebExchange exchange) {
         String clientName = getClientName(exchange);
 
         if (clientName == null) {
             clientName = returnDefaultName(exchange);
         }
 
-        // Cache the resolved name in exchange attributes
-        log.trace("Adding resolved client name to request attributes: {}", clientName);
-        exchange.getAttributes().put(CLIENT_NAME_ATTR, clientName);
-
-        return Mono.just(clientName);
+        return new ResolvedClient(clientName, limitProperties.getTierForClient(clientName));
     }
 
     private String getClientName(ServerWebExchange exchange) {
@@ -69,4 +124,20 @@ public class ClientNameKeyResolver implements KeyResolver {
         // All unresolved clients will be limited by the same rate limit in this case.
         return UNKNOWN_CLIENT_NAME;
     }
+
+    private static Cache<String, ResolvedClient> createClientCache(
+            SpringCloudGatewayProperties.ClientCache cacheProperties,
+            MeterRegistry meterRegistry
+    ) {
+        if (!cacheProperties.isEnabled()) {
+            return null;
+        }
+
+        Cache<String, ResolvedClient> cache = Caffeine.newBuilder()
+                .maximumSize(cacheProperties.getMaximumSize())
+                .expireAfterWrite(cacheProperties.getExpireAfterWrite())
+                .recordStats()
+                .build();
+        return CaffeineCacheMetrics.monitor(meterRegistry, cache, "resolved_clients");
+    }
 }
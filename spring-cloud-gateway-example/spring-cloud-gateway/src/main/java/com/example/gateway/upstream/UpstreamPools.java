@@ -0,0 +1,306 @@
+package com.example.gateway.upstream;
+
+import com.example.gateway.capacity.filter.CapacityFilter;
+import com.example.gateway.capacity.manager.CapacityPools;
+import com.example.gateway.capacity.manager.CapacityPools.CapacityPool;
+import com.example.gateway.properties.UpstreamProperties;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.cloud.gateway.config.HttpClientCustomizer;
+import org.springframework.cloud.gateway.config.HttpClientProperties;
+import org.springframework.cloud.gateway.event.RefreshRoutesResultEvent;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.route.RouteLocator;
+import org.springframework.cloud.gateway.support.RouteMetadataUtils;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Connection pools of the routes, so a route saturating its upstream does not take the connections of other routes.
+ * <p>
+ * Every http route gets an HTTP client with its own pool named after the route. Pools are sized from the tier
+ * capacities of the capacity pool of the route unless max-connections is set, and the upstream.pool settings
+ * are overridden per route with its metadata:
+ * <pre>
+ * metadata:
+ *   upstream-pool:
+ *     max-connections: 200
+ *     pending-acquire-timeout: 2s
+ *     protocols: H2C
+ * </pre>
+ * Pools expose the reactor.netty.connection.provider metrics, tagged with the pool name upstream-&lt;route id&gt;.
+ * Routes to other schemes and routes through a proxy keep the shared HTTP client of the gateway.
+ * Pools are kept while the route is built again with the same metadata and disposed once the route is removed.
+ */
+@Slf4j
+@Component
+public class UpstreamPools {
+    public static final String POOL_METADATA = "upstream-pool";
+    public static final String POOL_NAME_PREFIX = "upstream-";
+
+    private final UpstreamProperties.Pool poolProperties;
+    private final HttpClientProperties httpClientProperties;
+    private final ObjectProvider<HttpClientCustomizer> customizers;
+    private final CapacityFilter capacityFilter;
+    private final CapacityPools capacityPools;
+    private final RouteLocator routeLocator;
+    private final Map<String, RoutePool> poolsByRoute = new ConcurrentHashMap<>();
+
+    public UpstreamPools(
+            UpstreamProperties upstreamProperties,
+            HttpClientProperties httpClientProperties,
+            ObjectProvider<HttpClientCustomizer> customizers,
+            CapacityFilter capacityFilter,
+            CapacityPools capacityPools,
+            RouteLocator routeLocator
+    ) {
+        this.poolProperties = upstreamProperties.getPool();
+        this.httpClientProperties = httpClientProperties;
+        this.customizers = customizers;
+        this.capacityFilter = capacityFilter;
+        this.capacityPools = capacityPools;
+        this.routeLocator = routeLocator;
+    }
+
+    /**
+     * Returns the HTTP client of the route, or null if the route uses the shared HTTP client of the gateway.
+     * The pool is created on the first request of the route and created again once the route metadata changes,
+     * the metadata is only compared once per route instance.
+     */
+    public HttpClient httpClient(Route route) {
+        if (!poolProperties.isEnabled()
+                || !"http".equalsIgnoreCase(route.getUri().getScheme())
+                || httpClientProperties.getProxy().getHost() != null) {
+            return null;
+        }
+
+        RoutePool pool = poolsByRoute.get(route.getId());
+        if (pool != null && pool.route() == route) {
+            return pool.httpClient();
+        }
+
+        return poolsByRoute.compute(route.getId(), (routeId, previous) -> {
+            if (previous != null) {
+                if (previous.route() == route) {
+                    return previous;
+                }
+                // Routes are built again on refresh, the pool is kept unless the metadata of the route changed
+                if (previous.route().getMetadata().equals(route.getMetadata())) {
+                    return previous.withRoute(route);
+                }
+                previous.provider().disposeLater().subscribe();
+            }
+            return createPool(route);
+        }).httpClient();
+    }
+
+    /**
+     * Disposes the pools of the routes removed by a refresh of the routes
+     */
+    @EventListener
+    public void onRoutesRefreshed(RefreshRoutesResultEvent event) {
+        if (!event.isSuccess()) {
+            return;
+        }
+
+        routeLocator.getRoutes()
+                .map(Route::getId)
+                .collect(Collectors.toSet())
+                .subscribe(routeIds -> poolsByRoute.forEach((routeId, pool) -> {
+                    if (!routeIds.contains(routeId) && poolsByRoute.remove(routeId, pool)) {
+                        log.info("Disposing connection pool of removed route {}", routeId);
+                        pool.provider().disposeLater().subscribe();
+                    }
+                }));
+    }
+
+    /**
+     * Returns the pools created so far, per route id
+     */
+    public Collection<RoutePool> pools() {
+        return poolsByRoute.values();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        poolsByRoute.values().forEach(pool -> pool.provider().dispose());
+        poolsByRoute.clear();
+    }
+
+    private RoutePool createPool(Route route) {
+        Map<?, ?> overrides = route.getMetadata().get(POOL_METADATA) instanceof Map<?, ?> metadata
+                ? metadata
+                : Map.of();
+
+        HttpProtocol[] protocols = toProtocols(route, overrides.get("protocols"));
+        int maxConnections = toInt(route, "max-connections", overrides.get("max-connections"),
+                poolProperties.getMaxConnections());
+        if (maxConnections <= 0) {
+            maxConnections = sizeFromCapacity(route, protocols);
+        }
+        int pendingAcquireMaxCount = toInt(route, "pending-acquire-max-count",
+                overrides.get("pending-acquire-max-count"), poolProperties.getPendingAcquireMaxCount());
+        if (pendingAcquireMaxCount <= 0) {
+            pendingAcquireMaxCount = maxConnections;
+        }
+        Duration maxLifeTime = toDuration(route, "max-life-time", overrides.get("max-life-time"),
+                poolProperties.getMaxLifeTime());
+        Duration evictionInterval = toDuration(route, "eviction-interval", overrides.get("eviction-interval"),
+                poolProperties.getEvictionInterval());
+
+        ConnectionProvider.Builder builder = ConnectionProvider.builder(POOL_NAME_PREFIX + route.getId())
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(toDuration(route, "pending-acquire-timeout",
+                        overrides.get("pending-acquire-timeout"), poolProperties.getPendingAcquireTimeout()))
+                .maxIdleTime(toDuration(route, "max-idle-time", overrides.get("max-idle-time"),
+                        poolProperties.getMaxIdleTime()))
+                .metrics(true);
+        if (maxLifeTime != null) {
+            builder.maxLifeTime(maxLifeTime);
+        }
+        if (evictionInterval != null && !evictionInterval.isZero()) {
+            builder.evictInBackground(evictionInterval);
+        }
+        ConnectionProvider provider = builder.build();
+
+        log.info("Created connection pool of route {}: max connections {}, max pending {}, protocols {}",
+                route.getId(), maxConnections, pendingAcquireMaxCount, Arrays.toString(protocols));
+        return new RoutePool(route, maxConnections, provider, httpClient(route, provider, protocols));
+    }
+
+    /**
+     * Creates the HTTP client the same way as the shared HTTP client of the gateway, with the pool of the route
+     */
+    private HttpClient httpClient(Route route, ConnectionProvider provider, HttpProtocol[] protocols) {
+        HttpClient httpClient = HttpClient.create(provider)
+                .protocol(protocols)
+                .compress(httpClientProperties.isCompression())
+                .wiretap(httpClientProperties.isWiretap())
+                .httpResponseDecoder(spec -> {
+                    if (httpClientProperties.getMaxHeaderSize() != null) {
+                        spec.maxHeaderSize((int) httpClientProperties.getMaxHeaderSize().toBytes());
+                    }
+                    if (httpClientProperties.getMaxInitialLineLength() != null) {
+                        spec.maxInitialLineLength((int) httpClientProperties.getMaxInitialLineLength().toBytes());
+                    }
+                    return spec;
+                });
+
+        // Set once per pool instead of per request like the shared HTTP client does
+        Object connectTimeout = route.getMetadata().get(RouteMetadataUtils.CONNECT_TIMEOUT_ATTR);
+        if (connectTimeout == null) {
+            connectTimeout = httpClientProperties.getConnectTimeout();
+        }
+        if (connectTimeout != null) {
+            httpClient = httpClient.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                    toInt(route, RouteMetadataUtils.CONNECT_TIMEOUT_ATTR, connectTimeout, 0));
+        }
+
+        for (HttpClientCustomizer customizer : customizers.orderedStream().toList()) {
+            httpClient = customizer.customize(httpClient);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Every request admitted by the capacity pool of the route holds a connection with HTTP/1.1,
+     * HTTP/2 multiplexes the requests over fewer connections. Routes without a CapacityFilter are sized
+     * like the routes of the global pool.
+     */
+    private int sizeFromCapacity(Route route, HttpProtocol[] protocols) {
+        boolean http2Only = Arrays.stream(protocols).allMatch(protocol -> protocol == HttpProtocol.H2
+                || protocol == HttpProtocol.H2C);
+        CapacityPool capacityPool = capacityFilter.poolOf(route);
+        int capacity = Math.max(1, (capacityPool != null ? capacityPool : capacityPools.global()).totalCapacity());
+        return http2Only
+                ? Math.ceilDiv(capacity, Math.max(1, poolProperties.getHttp2StreamsPerConnection()))
+                : capacity;
+    }
+
+    private HttpProtocol[] toProtocols(Route route, Object value) {
+        List<?> protocols = value == null ? poolProperties.getProtocols()
+                : value instanceof Collection<?> values ? List.copyOf(values)
+                : Arrays.asList(String.valueOf(value).split(","));
+        try {
+            HttpProtocol[] parsed = protocols.stream()
+                    .map(protocol -> HttpProtocol.valueOf(String.valueOf(protocol).trim().toUpperCase(Locale.ROOT)))
+                    .toArray(HttpProtocol[]::new);
+            if (parsed.length > 0) {
+                return parsed;
+            }
+        } catch (IllegalArgumentException e) {
+            // Logged below
+        }
+
+        log.warn("Ignoring {}.protocols of route {}, invalid protocols: {}", POOL_METADATA, route.getId(), value);
+        return new HttpProtocol[]{HttpProtocol.HTTP11};
+    }
+
+    private static int toInt(Route route, String name, Object value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return value instanceof Number number ? number.intValue() : Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring {} of route {}, invalid number: {}", name, route.getId(), value);
+            return defaultValue;
+        }
+    }
+
+    private static Duration toDuration(Route route, String name, Object value, Duration defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            Duration duration = value instanceof Number millis
+                    ? Duration.ofMillis(millis.longValue())
+                    : DurationStyle.detectAndParse(String.valueOf(value));
+            if (!duration.isNegative()) {
+                return duration;
+            }
+        } catch (IllegalArgumentException e) {
+            // Logged below
+        }
+
+        log.warn("Ignoring {}.{} of route {}, invalid duration: {}", POOL_METADATA, name, route.getId(), value);
+        return defaultValue;
+    }
+
+    /**
+     * Connection pool of a route
+     *
+     * @param route instance of the route the pool was last used by
+     * @param maxConnections maximum number of connections per upstream address
+     * @param provider connection pool
+     * @param httpClient HTTP client using the pool
+     */
+    public record RoutePool(
+            Route route,
+            int maxConnections,
+            ConnectionProvider provider,
+            HttpClient httpClient
+    ) {
+        private RoutePool withRoute(Route route) {
+            return new RoutePool(route, maxConnections, provider, httpClient);
+        }
+    }
+}
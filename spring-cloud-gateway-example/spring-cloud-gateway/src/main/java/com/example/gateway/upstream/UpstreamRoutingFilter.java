@@ -0,0 +1,88 @@
+package com.example.gateway.upstream;
+
+import com.example.gateway.utils.RequestUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.gateway.config.HttpClientProperties;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.NettyRoutingFilter;
+import org.springframework.cloud.gateway.filter.headers.HttpHeadersFilter;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes the http and https requests in place of the default routing filter, through the connection pool
+ * of their route, see {@link UpstreamPools}.
+ * <p>
+ * Runs right before the default routing filter and marks every request it routes as already routed, so the default
+ * filter routes none of them. Requests of routes without a pool of their own are routed here as well, with the shared
+ * HTTP client of the gateway.
+ */
+@Component
+public class UpstreamRoutingFilter extends NettyRoutingFilter {
+    private static final Map<String, String> SATURATION_REASONS = Map.of(
+            // Pool exceptions are shaded into Reactor Netty, so they are matched by their simple name
+            "PoolAcquirePendingLimitException", "pending_limit",
+            "PoolAcquireTimeoutException", "acquire_timeout"
+    );
+
+    private final UpstreamPools upstreamPools;
+    private final MeterRegistry meterRegistry;
+    private final Map<SaturationKey, Counter> saturationCounters = new ConcurrentHashMap<>();
+
+    public UpstreamRoutingFilter(
+            HttpClient httpClient,
+            ObjectProvider<List<HttpHeadersFilter>> headersFiltersProvider,
+            HttpClientProperties properties,
+            UpstreamPools upstreamPools,
+            MeterRegistry meterRegistry
+    ) {
+        super(httpClient, headersFiltersProvider, properties);
+        this.upstreamPools = upstreamPools;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        return super.filter(exchange, chain)
+                .doOnError(e -> {
+                    String reason = SATURATION_REASONS.get(e.getClass().getSimpleName());
+                    if (reason != null) {
+                        saturationCounters.computeIfAbsent(
+                                new SaturationKey(RequestUtils.getRouteId(exchange), reason),
+                                this::saturationCounter
+                        ).increment();
+                    }
+                });
+    }
+
+    @Override
+    protected HttpClient getHttpClient(Route route, ServerWebExchange exchange) {
+        HttpClient httpClient = upstreamPools.httpClient(route);
+        return httpClient != null ? httpClient : super.getHttpClient(route, exchange);
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE - 1;
+    }
+
+    private Counter saturationCounter(SaturationKey key) {
+        return Counter.builder("upstream.pool.saturated")
+                .description("Requests failed for want of an upstream connection, by route and limit reached")
+                .tag("route", key.routeId())
+                .tag("reason", key.reason())
+                .register(meterRegistry);
+    }
+
+    private record SaturationKey(String routeId, String reason) {}
+}
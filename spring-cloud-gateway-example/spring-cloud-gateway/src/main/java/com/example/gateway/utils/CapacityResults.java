@@ -1,18 +1,76 @@
 package com.example.gateway.utils;
 
 import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.LeaseCapacityResult;
+import com.example.gateway.dto.ReleaseCapacityBatchResult;
+import com.example.gateway.dto.RejectedLimit;
 import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.dto.RenewLeaseResult;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
 public final class CapacityResults {
+    /**
+     * Error of acquire results when all tiers the request may use are exhausted, as returned by the Lua scripts too
+     */
+    public static final String NO_CAPACITY_AVAILABLE = "No capacity available";
+    /**
+     * Error of acquire results when the client already has its max number of requests in flight
+     */
+    public static final String CLIENT_LIMIT_REACHED = "Client reached its max in-flight requests";
+    /**
+     * Error of acquire results when the tier already holds its max burst of permits with weighted fair scheduling
+     */
+    public static final String MAX_BURST_REACHED = "Tier reached its max burst";
+    /**
+     * Error of acquire results when the client sent more requests than the rate limit of its tier allows
+     */
+    public static final String RATE_LIMIT_REACHED = "Client reached its rate limit";
+    /**
+     * Error of acquire results rejected by the fail-closed degraded mode while the capacity store is unavailable
+     */
+    public static final String CAPACITY_STORE_UNAVAILABLE = "Capacity store unavailable";
 
     public static AcquireCapacityResult successfulAcquire(int sourceTier, Integer requestedTier) {
-        return new AcquireCapacityResult(true, sourceTier, requestedTier, null);
+        return new AcquireCapacityResult(true, sourceTier, requestedTier, null, false, 0);
+    }
+
+    /**
+     * Result of a permit taken from the permits leased by the node during the given lease epoch
+     */
+    public static AcquireCapacityResult leasedAcquire(int sourceTier, Integer requestedTier, int leaseEpoch) {
+        return new AcquireCapacityResult(true, sourceTier, requestedTier, null, false, leaseEpoch);
+    }
+
+    /**
+     * Result of a permit granted by the degraded mode while the capacity store is unavailable
+     */
+    public static AcquireCapacityResult degradedAcquire(int sourceTier, Integer requestedTier) {
+        return new AcquireCapacityResult(true, sourceTier, requestedTier, null, true, 0);
     }
 
     public static AcquireCapacityResult failedAcquire(String error, Integer requestedTier) {
-        return new AcquireCapacityResult(false, null, requestedTier, error);
+        return new AcquireCapacityResult(false, null, requestedTier, error, false, 0);
+    }
+
+    /**
+     * Returns true if the acquire failed because no capacity was available, rather than because of an error
+     */
+    public static boolean isCapacityExhausted(AcquireCapacityResult result) {
+        return !result.acquired() && NO_CAPACITY_AVAILABLE.equals(result.error());
+    }
+
+    /**
+     * Returns the limit which rejected the failed acquire, errors are reported as the concurrency limit
+     */
+    public static RejectedLimit rejectedLimit(AcquireCapacityResult result) {
+        if (RATE_LIMIT_REACHED.equals(result.error())) {
+            return RejectedLimit.RATE;
+        }
+        if (CLIENT_LIMIT_REACHED.equals(result.error())) {
+            return RejectedLimit.CLIENT_CONCURRENCY;
+        }
+        return RejectedLimit.CONCURRENCY;
     }
 
     public static ReleaseCapacityResult successfulRelease(int tier, int previousCapacity, int newCapacity) {
@@ -22,4 +80,28 @@ public final class CapacityResults {
     public static ReleaseCapacityResult failedRelease(String error) {
         return new ReleaseCapacityResult(false, null, null, null, error);
     }
+
+    public static LeaseCapacityResult successfulLease(int sourceTier, Integer requestedTier, int permits) {
+        return new LeaseCapacityResult(true, sourceTier, requestedTier, permits, null);
+    }
+
+    public static LeaseCapacityResult failedLease(String error, Integer requestedTier) {
+        return new LeaseCapacityResult(false, null, requestedTier, 0, error);
+    }
+
+    public static RenewLeaseResult successfulRenew(int reclaimedPermits, int expiredNodes) {
+        return new RenewLeaseResult(true, reclaimedPermits, expiredNodes, null);
+    }
+
+    public static RenewLeaseResult failedRenew(String error) {
+        return new RenewLeaseResult(false, 0, 0, error);
+    }
+
+    public static ReleaseCapacityBatchResult successfulBatchRelease(int releasedPermits, int droppedPermits) {
+        return new ReleaseCapacityBatchResult(true, releasedPermits, droppedPermits, null);
+    }
+
+    public static ReleaseCapacityBatchResult failedBatchRelease(String error) {
+        return new ReleaseCapacityBatchResult(false, 0, 0, error);
+    }
 }
@@ -0,0 +1,80 @@
+package com.example.gateway.utils;
+
+import io.netty.channel.EventLoopGroup;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.config.TransportMode;
+import org.springframework.util.ClassUtils;
+
+import java.util.Map;
+
+/**
+ * Availability of the Netty native transports, shared by the Redis connections and the HTTP server and client.
+ * <p>
+ * Reactor Netty runs the HTTP server and client on any of the transports, io_uring included. Redisson 3.22 has
+ * no io_uring transport, the Redis connections use epoll instead.
+ */
+@Slf4j
+@UtilityClass
+public class NativeTransports {
+    // Availability checks of the native transports, their classes are only on the classpath with the native libraries
+    private static final Map<Transport, String> AVAILABILITY_CHECKS = Map.of(
+            Transport.EPOLL, "io.netty.channel.epoll.Epoll",
+            Transport.KQUEUE, "io.netty.channel.kqueue.KQueue",
+            Transport.IO_URING, "io.netty.incubator.channel.uring.IOUring"
+    );
+
+    public enum Transport {
+        NIO,
+        EPOLL,
+        KQUEUE,
+        IO_URING
+    }
+
+    /**
+     * Returns true if the transport is NIO or a native transport available on this platform
+     */
+    public static boolean isAvailable(Transport transport) {
+        String availabilityCheck = AVAILABILITY_CHECKS.get(transport);
+        if (availabilityCheck == null) {
+            return true;
+        }
+
+        try {
+            return (boolean) ClassUtils.forName(availabilityCheck, NativeTransports.class.getClassLoader())
+                    .getMethod("isAvailable")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("Failed to check the availability of {}", availabilityCheck, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the Redisson transport of the transport, io_uring maps to epoll, the other native transport of Linux
+     */
+    public static TransportMode toRedisson(Transport transport) {
+        return switch (transport) {
+            case NIO -> TransportMode.NIO;
+            case EPOLL, IO_URING -> TransportMode.EPOLL;
+            case KQUEUE -> TransportMode.KQUEUE;
+        };
+    }
+
+    /**
+     * Returns the transport of the event loops, so clients running on them create channels of the same transport
+     */
+    public static Transport transportOf(EventLoopGroup eventLoopGroup) {
+        String groupClass = eventLoopGroup.getClass().getSimpleName();
+        if (groupClass.startsWith("Epoll")) {
+            return Transport.EPOLL;
+        }
+        if (groupClass.startsWith("IOUring")) {
+            return Transport.IO_URING;
+        }
+        if (groupClass.startsWith("KQueue")) {
+            return Transport.KQUEUE;
+        }
+        return Transport.NIO;
+    }
+}
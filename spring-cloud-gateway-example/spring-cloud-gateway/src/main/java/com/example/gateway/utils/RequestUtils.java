@@ -1,17 +1,22 @@
 package com.example.gateway.utils;
 
+import io.netty.channel.EventLoop;
 import lombok.experimental.UtilityClass;
 import org.springframework.cloud.gateway.route.Route;
 import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.http.server.reactive.AbstractServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.server.ServerWebExchange;
+import reactor.netty.Connection;
 
 import java.util.Optional;
 
 @UtilityClass
 public class RequestUtils {
     public static final String CLIENT_NAME_ATTR = "resolvedClientName";
+    public static final String RESOLVED_CLIENT_ATTR = "resolvedClient";
 
     public static Optional<String> getHeaderValue(ServerHttpRequest request, String headerName) {
         return Optional.of(request.getHeaders())
@@ -28,4 +33,29 @@ public class RequestUtils {
     public static String getClientName(ServerWebExchange exchange) {
         return exchange.getAttribute(CLIENT_NAME_ATTR);
     }
+
+    /**
+     * Returns the Netty event loop handling the request, or null if the request is not served by Reactor Netty
+     */
+    public static EventLoop getEventLoop(ServerWebExchange exchange) {
+        ServerHttpRequest request = exchange.getRequest();
+        while (request instanceof ServerHttpRequestDecorator decorator) {
+            request = decorator.getDelegate();
+        }
+
+        if (request instanceof AbstractServerHttpRequest serverRequest
+                && nativeRequest(serverRequest) instanceof Connection connection) {
+            return connection.channel().eventLoop();
+        }
+        return null;
+    }
+
+    private static Object nativeRequest(AbstractServerHttpRequest request) {
+        try {
+            return request.getNativeRequest();
+        } catch (IllegalStateException e) {
+            // Mock requests, e.g. of WebTestClient bound to the application, have no native request
+            return null;
+        }
+    }
 }
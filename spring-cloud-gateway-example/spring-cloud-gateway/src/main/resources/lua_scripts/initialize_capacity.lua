@@ -2,12 +2,14 @@
 Initialize Dynamic Capacities
 KEYS[1]: the Redis hash key where capacities are stored
 KEYS[2]: the Redis hash key where default capacity values are stored
+KEYS[3]: the Redis sorted set key of tiers with free capacity, scored by the tier number
 ARGV: array of alternating tier and capacity values [tier1, cap1, tier2, cap2, ...]
 --]]
 
 -- Capacity keys
 local CAPACITY_KEY = KEYS[1]
 local DEFAULT_CAPACITY_KEY = KEYS[2]
+local FREE_TIERS_KEY = KEYS[3]
 
 -- Local functions:
 
@@ -92,6 +94,17 @@ local function get_capacities(capacity_hash_key)
     return result
 end
 
+-- Rebuilds the set of tiers with free capacity from the live capacities
+local function set_free_tiers(capacities_map)
+    redis.call('del', FREE_TIERS_KEY)
+
+    for tier, capacity in pairs(capacities_map) do
+        if capacity > 0 then
+            redis.call('zadd', FREE_TIERS_KEY, tier, tier)
+        end
+    end
+end
+
 -- Update the current "live" capacities with the adjusted values, accounting
 -- for the in-flight acquire and release operations
 -- in_flight_diff = current_capacity_value - old_default_capacity_value
@@ -124,6 +137,7 @@ local function update_current_capacities(input_map)
 
     -- Overwrite the live capacities with the new values
     set_capacities(CAPACITY_KEY, updated_map)
+    set_free_tiers(updated_map)
 
     -- Update the default capacities with the brand-new values
     set_capacities(DEFAULT_CAPACITY_KEY, input_map)
@@ -164,6 +178,7 @@ local function main()
         -- First run => no in-flight logic. We simply set to the new capacities.
         set_capacities(CAPACITY_KEY, input_map)
         set_capacities(DEFAULT_CAPACITY_KEY, input_map)
+        set_free_tiers(input_map)
     else
         -- Normal update with in-flight logic
         update_current_capacities(input_map)
@@ -0,0 +1,147 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis hash key where permits leased by nodes are stored as "node_id|tier" -> permits
+-- KEYS[3] - the Redis sorted set key where lease expiry time is stored as node_id -> expiry in milliseconds
+-- KEYS[4] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- ARGV[1] - the id of the node leasing the permits
+-- ARGV[2] - the tier number to lease capacity from
+-- ARGV[3] - the maximum number of permits to lease
+-- ARGV[4] - the lease time to live in milliseconds
+-- Returns: table with leased status, source tier number and number of leased permits
+-- Note: Tiers are stored in descending order (higher number = lower priority)
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- check if the node id is provided and if the tier number, permits and ttl are valid
+local function validate_inputs(node_id, tier, permits, ttl)
+    if not node_id or node_id == "" then
+        return false, "Missing the node id"
+    end
+
+    local tier_number = tonumber(tier)
+    if not tier_number or tier_number < 1 then
+        return false, "Invalid tier number: " .. tostring(tier)
+    end
+
+    if not tonumber(permits) or tonumber(permits) < 1 then
+        return false, "Invalid number of permits: " .. tostring(permits)
+    end
+
+    if not tonumber(ttl) or tonumber(ttl) < 1 then
+        return false, "Invalid lease ttl: " .. tostring(ttl)
+    end
+
+    return true, tier_number
+end
+
+-- Current Redis server time in milliseconds
+local function now_millis()
+    local time = redis.call('time')
+    return tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+
+-- Takes up to max_permits from the tier and records them as leased by the node
+-- The tier is removed from the free tiers set once its capacity is exhausted
+local function lease_from_tier(capacity_key, leases_key, free_tiers_key, node_id, tier, available, max_permits)
+    local permits = math.min(available, max_permits)
+    local remaining = redis.call('hincrby', capacity_key, tier, -permits)
+    if remaining <= 0 then
+        redis.call('zrem', free_tiers_key, tier)
+    end
+    redis.call('hincrby', leases_key, node_id .. "|" .. tier, permits)
+    return permits
+end
+
+-- Function to find and lease capacity from lower priority tiers
+-- The tier with the highest number (the lowest priority) is borrowed from first
+local function try_borrow_capacity(capacity_key, leases_key, free_tiers_key, node_id, requested_tier, max_permits)
+    while true do
+        local candidates = redis.call('zrevrangebyscore', free_tiers_key, '+inf', '(' .. requested_tier, 'LIMIT', 0, 1)
+        if #candidates == 0 then
+            return false, nil, 0
+        end
+
+        local current_tier = tonumber(candidates[1])
+        local current_tier_capacity = tonumber(redis.call('hget', capacity_key, current_tier)) or 0
+
+        if current_tier_capacity > 0 then
+            local permits = lease_from_tier(capacity_key, leases_key, free_tiers_key, node_id,
+                    current_tier, current_tier_capacity, max_permits)
+            return true, current_tier, permits
+        end
+
+        -- Stale entry, e.g. the tier was removed from the capacity store, drop it and look further
+        redis.call('zrem', free_tiers_key, candidates[1])
+    end
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    local is_valid, result = validate_inputs(ARGV[1], ARGV[2], ARGV[3], ARGV[4])
+    if not is_valid then
+        return {
+            "leased", "false",
+            "error", result,
+            "requested_tier", tostring(ARGV[2])
+        }
+    end
+
+    local capacity_key = KEYS[1]
+    local leases_key = KEYS[2]
+    local lease_expiry_key = KEYS[3]
+    local free_tiers_key = KEYS[4]
+    local node_id = ARGV[1]
+    local tier_number = result
+    local max_permits = tonumber(ARGV[3])
+
+    -- Heartbeat the node leases
+    redis.call('zadd', lease_expiry_key, now_millis() + tonumber(ARGV[4]), node_id)
+
+    -- Get the capacity of the requested tier only
+    local capacity = tonumber(redis.call('hget', capacity_key, tier_number))
+
+    -- Check if we have any data, only done when the requested tier is missing
+    if capacity == nil and redis.call('exists', capacity_key) == 0 then
+        return {
+            "leased", "false",
+            "error", "No capacity data found at key: " .. capacity_key,
+            "requested_tier", tostring(tier_number)
+        }
+    end
+
+    -- Try to lease capacity from the requested tier
+    if capacity ~= nil and capacity > 0 then
+        local permits = lease_from_tier(capacity_key, leases_key, free_tiers_key, node_id,
+                tier_number, capacity, max_permits)
+        return {
+            "leased", "true",
+            "source_tier", tostring(tier_number),
+            "requested_tier", tostring(tier_number),
+            "permits", tostring(permits)
+        }
+    end
+
+    -- If no capacity in requested tier, try to borrow from lower priority tiers
+    local borrowed, source_tier, permits = try_borrow_capacity(capacity_key, leases_key, free_tiers_key, node_id,
+            tier_number, max_permits)
+    if borrowed then
+        return {
+            "leased", "true",
+            "source_tier", tostring(source_tier),
+            "requested_tier", tostring(tier_number),
+            "permits", tostring(permits)
+        }
+    end
+
+    -- If we get here, no capacity was available
+    return {
+        "leased", "false",
+        "error", "No capacity available",
+        "requested_tier", tostring(tier_number)
+    }
+end
+
+-- Script entry point
+return main()
@@ -1,6 +1,19 @@
 -- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[3] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[4] - optional, the Redis key counting the in-flight requests of the client, the client is not capped if missing
 -- ARGV[1] - the tier number to release capacity back to
--- Returns: table with release status and new capacity value
+-- ARGV[2] - the id of the node releasing the permit, the permit is not tracked per node if empty
+-- ARGV[3] - the channel to publish the tier number to once the tier is no longer exhausted, nothing is published if empty
+-- Returns: {outcome, tier, previous_capacity, new_capacity}, the outcome is 1 if the permit was released,
+--          otherwise {outcome, tier} with the result code: -5 if the arguments are invalid, in which case the tier is 0,
+--          -6 if the tier does not exist and -7 if the permit is not held by the node
+
+-- Result codes, decoded by ScriptResults:
+local OK = 1
+local INVALID_ARGUMENTS = -5
+local TIER_NOT_FOUND = -6
+local PERMIT_NOT_HELD = -7
 
 -- Local functions:
 
@@ -19,41 +32,77 @@ local function validate_inputs(key, tier)
     return true, tier_number
 end
 
+-- Function to count released requests out of the in-flight requests of their client
+-- A counter which already expired is not recreated
+local function untrack_client(client_key, permits)
+    local in_flight = tonumber(redis.call('get', client_key))
+    if in_flight == nil then
+        return
+    end
+
+    if in_flight - permits > 0 then
+        redis.call('decrby', client_key, permits)
+    else
+        redis.call('del', client_key)
+    end
+end
+
 -- Main script execution:
 
 local function main()
     -- Input validation
     local is_valid, result = validate_inputs(KEYS[1], ARGV[1])
     if not is_valid then
-        return {
-            "released", "false",
-            "error", result,
-            "tier", ARGV[1]
-        }
+        return { INVALID_ARGUMENTS, 0 }
     end
 
     local capacity_key = KEYS[1]
+    local free_tiers_key = KEYS[2]
+    local leases_key = KEYS[3]
+    local node_id = ARGV[2]
+    local released_channel = ARGV[3]
     local tier_number = result
 
+    -- The request is done, whether or not its permit can still be returned
+    if KEYS[4] then
+        untrack_client(KEYS[4], 1)
+    end
+
     -- Get current capacity and verify tier exists
     local current_capacity = redis.call('hget', capacity_key, tier_number)
-    if current_capacity == nil then
-        return {
-            "released", "false",
-            "error", "Tier " .. tier_number .. " does not exist in capacity store",
-            "tier", tostring(tier_number)
-        }
+    if current_capacity == false then
+        return { TIER_NOT_FOUND, tier_number }
+    end
+
+    -- Never release a permit the node does not hold, it was already reclaimed after the node lease expired
+    if node_id and node_id ~= "" then
+        local lease_field = node_id .. "|" .. tier_number
+        local held = tonumber(redis.call('hget', leases_key, lease_field)) or 0
+        if held <= 0 then
+            return { PERMIT_NOT_HELD, tier_number }
+        end
+
+        if held > 1 then
+            redis.call('hincrby', leases_key, lease_field, -1)
+        else
+            redis.call('hdel', leases_key, lease_field)
+        end
     end
 
     -- Release one unit of capacity back to the tier
     local new_capacity = redis.call('hincrby', capacity_key, tier_number, 1)
 
-    return {
-        "released", "true",
-        "tier", tostring(tier_number),
-        "previous_capacity", tostring(current_capacity),
-        "new_capacity", tostring(new_capacity)
-    }
+    -- Make the tier available for acquiring and borrowing again
+    if new_capacity > 0 then
+        redis.call('zadd', free_tiers_key, tier_number, tier_number)
+    end
+
+    -- Wake up the requests waiting for capacity once the tier is no longer exhausted
+    if new_capacity == 1 and released_channel and released_channel ~= "" then
+        redis.call('publish', released_channel, tier_number)
+    end
+
+    return { OK, tier_number, tonumber(current_capacity), new_capacity }
 end
 
 -- Script entry point
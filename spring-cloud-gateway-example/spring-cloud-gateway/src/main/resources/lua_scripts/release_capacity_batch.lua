@@ -0,0 +1,142 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[3] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[4] - the Redis key marking the batch as applied
+-- KEYS[5..4+M] - the Redis keys counting the in-flight requests of the capped clients of the batch
+-- ARGV[1] - the id of the node releasing the permits, the permits are not tracked per node if empty
+-- ARGV[2] - the channel to publish tier numbers to once the tiers are no longer exhausted, nothing is published if empty
+-- ARGV[3] - how long the batch stays marked as applied in milliseconds, the batch is not marked if 0
+-- ARGV[4..3+M] - the number of released requests of each client in KEYS[5..4+M]
+-- ARGV[4+M..N] - alternating tier and permits values [tier1, permits1, tier2, permits2, ...]
+-- Returns: {outcome, released_permits, dropped_permits}, the outcome is 1 if the permits were released
+--          or if the batch was already applied, otherwise {outcome} with the result code -5 if the arguments are invalid
+
+-- Result codes, decoded by ScriptResults:
+local OK = 1
+local INVALID_ARGUMENTS = -5
+
+-- Local functions:
+
+-- Validates the number of (tier, permits) pairs.
+-- Checks if we have the node id, the channel, the marker TTL and the client permits followed by at least one
+-- tier-permits pair
+local function validate_argument_pairs(clients)
+    local pairs_count = #ARGV - 3 - clients
+    if pairs_count < 2 or pairs_count % 2 ~= 0 then
+        return false, "Invalid number of arguments. Must be pairs of (tier, permits)."
+    end
+    return true, nil
+end
+
+-- Marks the batch as applied, so a batch retried after a timeout is not applied twice
+-- Returns false if the batch was already applied, batches without a marker are always applied
+local function mark_applied(marker_key, marker_ttl)
+    if marker_ttl <= 0 then
+        return true
+    end
+    return redis.call('set', marker_key, 1, 'NX', 'PX', marker_ttl) ~= false
+end
+
+-- Stops tracking the permits as held by the node
+-- Returns the number of permits the node actually held, the rest was already reclaimed after its lease expired
+local function untrack_permits(leases_key, node_id, tier, permits)
+    if node_id == "" then
+        return permits
+    end
+
+    local lease_field = node_id .. "|" .. tier
+    local held = tonumber(redis.call('hget', leases_key, lease_field)) or 0
+    if held > permits then
+        redis.call('hincrby', leases_key, lease_field, -permits)
+        return permits
+    end
+
+    redis.call('hdel', leases_key, lease_field)
+    return held
+end
+
+-- Function to count released requests out of the in-flight requests of their client
+-- A counter which already expired is not recreated
+local function untrack_client(client_key, permits)
+    local in_flight = tonumber(redis.call('get', client_key))
+    if in_flight == nil then
+        return
+    end
+
+    if in_flight - permits > 0 then
+        redis.call('decrby', client_key, permits)
+    else
+        redis.call('del', client_key)
+    end
+end
+
+-- Releases the permits back to the tier with a single HINCRBY
+-- Returns false if the tier does not exist in the capacity store anymore
+local function release_permits(capacity_key, free_tiers_key, released_channel, tier, permits)
+    if redis.call('hexists', capacity_key, tier) == 0 then
+        return false
+    end
+    if permits == 0 then
+        return true
+    end
+
+    local new_capacity = redis.call('hincrby', capacity_key, tier, permits)
+
+    -- Make the tier available for acquiring and borrowing again
+    if new_capacity > 0 then
+        redis.call('zadd', free_tiers_key, tier, tier)
+    end
+
+    -- Wake up the requests waiting for capacity once the tier is no longer exhausted
+    if new_capacity > 0 and new_capacity - permits <= 0 and released_channel ~= "" then
+        redis.call('publish', released_channel, tier)
+    end
+    return true
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    local clients = #KEYS - 4
+    if not validate_argument_pairs(clients) then
+        return { INVALID_ARGUMENTS }
+    end
+    if not mark_applied(KEYS[4], tonumber(ARGV[3])) then
+        return { OK, 0, 0 }
+    end
+
+    local capacity_key = KEYS[1]
+    local free_tiers_key = KEYS[2]
+    local leases_key = KEYS[3]
+    local node_id = ARGV[1]
+    local released_channel = ARGV[2]
+    local released = 0
+    local dropped = 0
+
+    for i = 1, clients do
+        untrack_client(KEYS[4 + i], tonumber(ARGV[3 + i]))
+    end
+
+    for i = 4 + clients, #ARGV, 2 do
+        local tier = tonumber(ARGV[i])
+        local permits = tonumber(ARGV[i + 1])
+
+        if tier and tier >= 1 and permits and permits > 0 then
+            local held = untrack_permits(leases_key, node_id, tier, permits)
+            if release_permits(capacity_key, free_tiers_key, released_channel, tier, held) then
+                released = released + held
+                dropped = dropped + (permits - held)
+            else
+                dropped = dropped + permits
+            end
+        else
+            dropped = dropped + (permits or 0)
+        end
+    end
+
+    return { OK, released, dropped }
+end
+
+-- Script entry point
+return main()
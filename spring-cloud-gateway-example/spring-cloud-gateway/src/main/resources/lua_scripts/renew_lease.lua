@@ -0,0 +1,135 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis hash key where permits leased by nodes are stored as "node_id|tier" -> permits
+-- KEYS[3] - the Redis sorted set key where lease expiry time is stored as node_id -> expiry in milliseconds
+-- KEYS[4] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[5] - the Redis hash key of the fair share accounting, only present with weighted fair scheduling,
+--           see try_acquire_capacity_fair.lua
+-- ARGV[1] - the id of the node renewing its leases
+-- ARGV[2] - the lease time to live in milliseconds
+-- Returns: table with renewed status and number of permits reclaimed from nodes with expired leases
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- check if the node id is provided and if the ttl is valid
+local function validate_inputs(node_id, ttl)
+    if not node_id or node_id == "" then
+        return false, "Missing the node id"
+    end
+
+    local ttl_millis = tonumber(ttl)
+    if not ttl_millis or ttl_millis < 1 then
+        return false, "Invalid lease ttl: " .. tostring(ttl)
+    end
+
+    return true, ttl_millis
+end
+
+-- Current Redis server time in milliseconds
+local function now_millis()
+    local time = redis.call('time')
+    return tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+
+-- Returns the permits to a tier of the capacity store
+local function return_to_tier(capacity_key, free_tiers_key, tier, permits)
+    if permits > 0 and redis.call('hincrby', capacity_key, tier, permits) > 0 then
+        redis.call('zadd', free_tiers_key, tier, tier)
+    end
+end
+
+-- Decrements a fair share counter, removing it once it drops to zero
+-- Returns the number the counter was actually decremented by
+local function decrement(fair_share_key, field, permits)
+    local current = tonumber(redis.call('hget', fair_share_key, field)) or 0
+    local taken = math.min(current, permits)
+    if current - taken > 0 then
+        redis.call('hincrby', fair_share_key, field, -taken)
+    else
+        redis.call('hdel', fair_share_key, field)
+    end
+    return taken
+end
+
+-- Returns permits accounted to a tier by weighted fair scheduling, borrowed permits go back to their lenders first
+local function return_fair_share(capacity_key, free_tiers_key, fair_share_key, tiers, tier, permits)
+    local remaining = decrement(fair_share_key, "held:" .. tier, permits)
+
+    for _, lender in ipairs(tiers) do
+        local returned = decrement(fair_share_key, "borrowed:" .. tier .. ":" .. lender, remaining)
+        if returned > 0 then
+            decrement(fair_share_key, "lent:" .. lender, returned)
+            return_to_tier(capacity_key, free_tiers_key, lender, returned)
+            remaining = remaining - returned
+        end
+    end
+
+    return_to_tier(capacity_key, free_tiers_key, tier, remaining)
+end
+
+-- Returns all permits leased by an expired node back to their tiers
+local function reclaim_node_leases(capacity_key, leases_key, free_tiers_key, fair_share_key, node_id)
+    local reclaimed = 0
+    local tiers = redis.call('hkeys', capacity_key)
+    table.sort(tiers, function(a, b) return tonumber(a) < tonumber(b) end)
+
+    for _, tier in ipairs(tiers) do
+        local lease_field = node_id .. "|" .. tier
+        local leased = tonumber(redis.call('hget', leases_key, lease_field)) or 0
+
+        if leased > 0 then
+            if fair_share_key then
+                return_fair_share(capacity_key, free_tiers_key, fair_share_key, tiers, tier, leased)
+            else
+                return_to_tier(capacity_key, free_tiers_key, tier, leased)
+            end
+            reclaimed = reclaimed + leased
+        end
+        redis.call('hdel', leases_key, lease_field)
+    end
+
+    return reclaimed
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    local is_valid, result = validate_inputs(ARGV[1], ARGV[2])
+    if not is_valid then
+        return {
+            "renewed", "false",
+            "error", result
+        }
+    end
+
+    local capacity_key = KEYS[1]
+    local leases_key = KEYS[2]
+    local lease_expiry_key = KEYS[3]
+    local free_tiers_key = KEYS[4]
+    local fair_share_key = KEYS[5]
+    local node_id = ARGV[1]
+    local now = now_millis()
+
+    -- Heartbeat the node leases
+    redis.call('zadd', lease_expiry_key, now + result, node_id)
+
+    -- Reclaim permits of the nodes which stopped sending heartbeats
+    local reclaimed = 0
+    local expired_nodes = redis.call('zrangebyscore', lease_expiry_key, '-inf', now)
+
+    for _, expired_node in ipairs(expired_nodes) do
+        reclaimed = reclaimed + reclaim_node_leases(capacity_key, leases_key, free_tiers_key, fair_share_key,
+                expired_node)
+        redis.call('zrem', lease_expiry_key, expired_node)
+    end
+
+    return {
+        "renewed", "true",
+        "reclaimed", tostring(reclaimed),
+        "expired_nodes", tostring(#expired_nodes)
+    }
+end
+
+-- Script entry point
+return main()
@@ -0,0 +1,94 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis hash key where permits leased by nodes are stored as "node_id|tier" -> permits
+-- KEYS[3] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- ARGV[1] - the id of the node returning the permits
+-- ARGV[2] - the tier number to return capacity back to
+-- ARGV[3] - the number of permits to return
+-- ARGV[4] - the channel to publish the tier number to once the tier is no longer exhausted, nothing is published if empty
+-- Returns: table with release status and new capacity value
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- check if the node id is provided and if the tier number and permits are valid
+local function validate_inputs(node_id, tier, permits)
+    if not node_id or node_id == "" then
+        return false, "Missing the node id"
+    end
+
+    local tier_number = tonumber(tier)
+    if not tier_number or tier_number < 1 then
+        return false, "Invalid tier number: " .. tostring(tier)
+    end
+
+    if not tonumber(permits) or tonumber(permits) < 1 then
+        return false, "Invalid number of permits: " .. tostring(permits)
+    end
+
+    return true, tier_number
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    local is_valid, result = validate_inputs(ARGV[1], ARGV[2], ARGV[3])
+    if not is_valid then
+        return {
+            "released", "false",
+            "error", result,
+            "tier", tostring(ARGV[2])
+        }
+    end
+
+    local capacity_key = KEYS[1]
+    local leases_key = KEYS[2]
+    local free_tiers_key = KEYS[3]
+    local lease_field = ARGV[1] .. "|" .. result
+    local tier_number = result
+    local permits = tonumber(ARGV[3])
+    local released_channel = ARGV[4]
+
+    -- Never return more permits than the node holds, the rest was already reclaimed after lease expiry
+    local leased = tonumber(redis.call('hget', leases_key, lease_field)) or 0
+    permits = math.min(permits, leased)
+
+    if leased - permits > 0 then
+        redis.call('hincrby', leases_key, lease_field, -permits)
+    else
+        redis.call('hdel', leases_key, lease_field)
+    end
+
+    -- Get current capacity and verify tier exists
+    local current_capacity = redis.call('hget', capacity_key, tier_number)
+    if current_capacity == false then
+        return {
+            "released", "false",
+            "error", "Tier " .. tier_number .. " does not exist in capacity store",
+            "tier", tostring(tier_number)
+        }
+    end
+
+    -- Return the permits back to the tier
+    local new_capacity = redis.call('hincrby', capacity_key, tier_number, permits)
+
+    -- Make the tier available for acquiring and borrowing again
+    if new_capacity > 0 then
+        redis.call('zadd', free_tiers_key, tier_number, tier_number)
+    end
+
+    -- Wake up the requests waiting for capacity once the tier is no longer exhausted
+    if new_capacity > 0 and new_capacity - permits <= 0 and released_channel and released_channel ~= "" then
+        redis.call('publish', released_channel, tier_number)
+    end
+
+    return {
+        "released", "true",
+        "tier", tostring(tier_number),
+        "previous_capacity", tostring(current_capacity),
+        "new_capacity", tostring(new_capacity)
+    }
+end
+
+-- Script entry point
+return main()
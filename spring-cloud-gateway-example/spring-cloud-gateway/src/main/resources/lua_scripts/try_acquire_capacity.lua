@@ -1,8 +1,22 @@
 -- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[3] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[4] - optional, the Redis key counting the in-flight requests of the client, the client is not capped if missing
 -- ARGV[1] - the tier number to attempt to acquire capacity from
--- Returns: table with acquired status and source tier number
+-- ARGV[2] - the id of the node acquiring the permit, the permit is not tracked per node if empty
+-- ARGV[3] - the maximum number of in-flight requests of the client, used with KEYS[4]
+-- ARGV[4] - the time to live of the client in-flight counter in milliseconds, used with KEYS[4]
+-- Returns: {outcome, requested_tier}, the outcome is the source tier of the acquired permit or a result code:
+--          0 if no capacity is available, -2 if the client reached its max in-flight requests,
+--          -4 if there is no capacity data and -5 if the arguments are invalid, in which case the tier is 0
 -- Note: Tiers are stored in descending order (higher number = lower priority)
 
+-- Result codes, decoded by ScriptResults:
+local NO_CAPACITY = 0
+local CLIENT_LIMIT_REACHED = -2
+local NO_CAPACITY_DATA = -4
+local INVALID_ARGUMENTS = -5
+
 -- Local functions:
 
 -- Function to validate input parameters:
@@ -20,42 +34,55 @@ local function validate_inputs(key, tier)
     return true, tier_number
 end
 
--- Function to find capacity for a specific tier
---
--- The loop uses i = 1, #tiers_map, 2 because Redis HGETALL returns a flat array where:
--- Even indices (1,3,5...) contain keys (tier numbers)
--- Odd indices (2,4,6...) contain values (capacities)
--- The step of 2 helps us skip through keys and values correctly
--- #tiers_map returns the array length
-local function get_tier_capacity(tiers_map, target_tier)
-    for i = 1, #tiers_map, 2 do
-        if tonumber(tiers_map[i]) == target_tier then
-            return tonumber(tiers_map[i + 1]) or 0
-        end
+-- Function to take a single permit from a tier
+-- The tier is removed from the free tiers set once its capacity is exhausted
+local function take_permit(capacity_key, free_tiers_key, tier)
+    local remaining = redis.call('hincrby', capacity_key, tier, -1)
+    if remaining <= 0 then
+        redis.call('zrem', free_tiers_key, tier)
+    end
+end
+
+-- Function to record the permit as held by the node, so it is reclaimed if the node dies without releasing it
+local function track_permit(leases_key, node_id, tier)
+    if node_id and node_id ~= "" then
+        redis.call('hincrby', leases_key, node_id .. "|" .. tier, 1)
     end
-    return 0
+end
+
+-- Function to check if the client is below its max in-flight requests
+local function client_has_room(client_key, max_in_flight)
+    return (tonumber(redis.call('get', client_key)) or 0) < max_in_flight
+end
+
+-- Function to count the request as in flight for its client
+-- The counter expires once the client is idle for the ttl, so counts left by a dead node do not stay forever
+local function track_client(client_key, ttl)
+    redis.call('incr', client_key)
+    redis.call('pexpire', client_key, ttl)
 end
 
 -- Function to find and acquire capacity from lower priority tiers
--- Since tiers are stored in descending order, we look for higher numbers to borrow from the lowest tier first
-local function try_borrow_capacity(capacity_key, tiers_map, requested_tier)
-
-    -- The loop uses i = 1, #tiers_map, 2 because Redis HGETALL returns a flat array where:
-    -- Even indices (1,3,5...) contain keys (tier numbers)
-    -- Odd indices (2,4,6...) contain values (capacities)
-    -- The step of 2 helps us skip through keys and values correctly
-    -- #tiers_map returns the array length
-    for i = 1, #tiers_map, 2 do
-        local current_tier = tonumber(tiers_map[i])
-        local current_tier_capacity = tonumber(tiers_map[i + 1]) or 0
-
-        -- Only check tiers with lower priority (higher numbers)
-        if current_tier > requested_tier and current_tier_capacity > 0 then
-            redis.call('hincrby', capacity_key, current_tier, -1)
+-- The free tiers set is sorted by the tier number, so the tier with the highest number (the lowest priority)
+-- is borrowed from first in O(log(N)) without scanning all tiers
+local function try_borrow_capacity(capacity_key, free_tiers_key, requested_tier)
+    while true do
+        local candidates = redis.call('zrevrangebyscore', free_tiers_key, '+inf', '(' .. requested_tier, 'LIMIT', 0, 1)
+        if #candidates == 0 then
+            return false, nil
+        end
+
+        local current_tier = tonumber(candidates[1])
+        local current_tier_capacity = tonumber(redis.call('hget', capacity_key, current_tier)) or 0
+
+        if current_tier_capacity > 0 then
+            take_permit(capacity_key, free_tiers_key, current_tier)
             return true, current_tier
         end
+
+        -- Stale entry, e.g. the tier was removed from the capacity store, drop it and look further
+        redis.call('zrem', free_tiers_key, candidates[1])
     end
-    return false, nil
 end
 
 -- Main script execution:
@@ -64,57 +91,52 @@ local function main()
     -- Input validation
     local is_valid, result = validate_inputs(KEYS[1], ARGV[1])
     if not is_valid then
-        -- Return as a flat list for RedisUtils.toMap()
-        return {
-            "acquired", "false",
-            "error", result,
-            "requested_tier", ARGV[1]
-        }
+        return { INVALID_ARGUMENTS, 0 }
     end
 
     local capacity_key = KEYS[1]
+    local free_tiers_key = KEYS[2]
+    local leases_key = KEYS[3]
+    local node_id = ARGV[2]
+    local client_key = KEYS[4]
     local tier_number = result
 
-    -- Get all tiers and their capacities
-    local tiers_map = redis.call('hgetall', capacity_key)
+    -- Reject the request if its client already has too many requests in flight
+    if client_key and not client_has_room(client_key, tonumber(ARGV[3])) then
+        return { CLIENT_LIMIT_REACHED, tier_number }
+    end
+
+    -- Get the capacity of the requested tier only
+    local capacity = tonumber(redis.call('hget', capacity_key, tier_number))
 
-    -- Check if we have any data
-    if #tiers_map == 0 then
-        return {
-            "acquired", "false",
-            "error", "No capacity data found at key: " .. capacity_key,
-            "requested_tier", tostring(tier_number)
-        }
+    -- Check if we have any data, only done when the requested tier is missing
+    if capacity == nil and redis.call('exists', capacity_key) == 0 then
+        return { NO_CAPACITY_DATA, tier_number }
     end
 
     -- Try to acquire capacity from the requested tier
-    local capacity = get_tier_capacity(tiers_map, tier_number)
-    if capacity > 0 then
-        redis.call('hincrby', capacity_key, tier_number, -1)
-        return {
-            "acquired", "true",
-            "source_tier", tostring(tier_number),
-            "requested_tier", tostring(tier_number)
-        }
+    if capacity ~= nil and capacity > 0 then
+        take_permit(capacity_key, free_tiers_key, tier_number)
+        track_permit(leases_key, node_id, tier_number)
+        if client_key then
+            track_client(client_key, ARGV[4])
+        end
+        return { tier_number, tier_number }
     end
 
     -- If no capacity in requested tier, try to borrow from lower priority tiers
-    local borrowed, source_tier = try_borrow_capacity(capacity_key, tiers_map, tier_number)
+    local borrowed, source_tier = try_borrow_capacity(capacity_key, free_tiers_key, tier_number)
     if borrowed then
-        return {
-            "acquired", "true",
-            "source_tier", tostring(source_tier),
-            "requested_tier", tostring(tier_number)
-        }
+        track_permit(leases_key, node_id, source_tier)
+        if client_key then
+            track_client(client_key, ARGV[4])
+        end
+        return { source_tier, tier_number }
     end
 
     -- If we get here, no capacity was available
-    return {
-        "acquired", "false",
-        "error", "No capacity available",
-        "requested_tier", tostring(tier_number)
-    }
+    return { NO_CAPACITY, tier_number }
 end
 
 -- Script entry point
-return main()
\ No newline at end of file
+return main()
@@ -0,0 +1,148 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[3] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[4..N] - the Redis keys counting the in-flight requests of the capped clients of the batch
+-- ARGV[1] - the id of the node acquiring the permits, the permits are not tracked per node if empty
+-- ARGV[2] - the time to live of the client in-flight counters in milliseconds
+-- ARGV[3..N] - triples of requested tier, client key index and client max in-flight requests, a single permit is
+--              acquired for each triple; the index points to KEYS[3 + index], 0 if the client is not capped
+-- Returns: the source tiers of the acquired permits in the order of the requested tiers, 0 for the requests which
+--          could not acquire a permit and -2 for the requests whose client reached its max in-flight requests,
+--          or a single result code for the whole batch: -4 if there is no capacity data, -5 if the arguments are invalid
+-- Note: Tiers are stored in descending order (higher number = lower priority)
+
+-- Result codes of a single request of the batch, decoded by ScriptResults:
+local NO_CAPACITY = 0
+local CLIENT_LIMIT_REACHED = -2
+
+-- Result codes of the whole batch, decoded by ScriptResults:
+local NO_CAPACITY_DATA = -4
+local INVALID_ARGUMENTS = -5
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- checks if at least one tier is requested and if all tier numbers are valid
+local function validate_inputs()
+    if #ARGV < 5 or (#ARGV - 2) % 3 ~= 0 then
+        return false, "Invalid number of arguments. Must be triples of (tier, client key index, max in-flight)."
+    end
+
+    for i = 3, #ARGV, 3 do
+        local tier_number = tonumber(ARGV[i])
+        if not tier_number or tier_number < 1 then
+            return false, "Invalid tier number: " .. tostring(ARGV[i])
+        end
+    end
+
+    return true, nil
+end
+
+-- Function to take a single permit from a tier
+-- The tier is removed from the free tiers set once its capacity is exhausted
+local function take_permit(capacity_key, free_tiers_key, tier)
+    local remaining = redis.call('hincrby', capacity_key, tier, -1)
+    if remaining <= 0 then
+        redis.call('zrem', free_tiers_key, tier)
+    end
+end
+
+-- Function to check if the client is below its max in-flight requests
+local function client_has_room(client_key, max_in_flight)
+    return (tonumber(redis.call('get', client_key)) or 0) < max_in_flight
+end
+
+-- Function to count the request as in flight for its client
+-- The counter expires once the client is idle for the ttl, so counts left by a dead node do not stay forever
+local function track_client(client_key, ttl)
+    redis.call('incr', client_key)
+    redis.call('pexpire', client_key, ttl)
+end
+
+-- Function to find and acquire capacity from lower priority tiers
+-- The tier with the highest number (the lowest priority) is borrowed from first
+local function try_borrow_capacity(capacity_key, free_tiers_key, requested_tier)
+    while true do
+        local candidates = redis.call('zrevrangebyscore', free_tiers_key, '+inf', '(' .. requested_tier, 'LIMIT', 0, 1)
+        if #candidates == 0 then
+            return NO_CAPACITY
+        end
+
+        local current_tier = tonumber(candidates[1])
+        local current_tier_capacity = tonumber(redis.call('hget', capacity_key, current_tier)) or 0
+
+        if current_tier_capacity > 0 then
+            take_permit(capacity_key, free_tiers_key, current_tier)
+            return current_tier
+        end
+
+        -- Stale entry, e.g. the tier was removed from the capacity store, drop it and look further
+        redis.call('zrem', free_tiers_key, candidates[1])
+    end
+end
+
+-- Function to acquire a single permit for the requested tier
+-- Returns the source tier of the permit or 0 if no capacity is available
+local function try_acquire(capacity_key, free_tiers_key, tier_number)
+    local capacity = tonumber(redis.call('hget', capacity_key, tier_number))
+    if capacity ~= nil and capacity > 0 then
+        take_permit(capacity_key, free_tiers_key, tier_number)
+        return tier_number
+    end
+
+    return try_borrow_capacity(capacity_key, free_tiers_key, tier_number)
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    if not validate_inputs() then
+        return { INVALID_ARGUMENTS }
+    end
+
+    local capacity_key = KEYS[1]
+    local free_tiers_key = KEYS[2]
+    local leases_key = KEYS[3]
+    local node_id = ARGV[1]
+    local client_ttl = ARGV[2]
+
+    -- Check if we have any data at all once for the whole batch
+    if redis.call('exists', capacity_key) == 0 then
+        return { NO_CAPACITY_DATA }
+    end
+
+    local source_tiers = {}
+    local held = {}
+    for i = 3, #ARGV, 3 do
+        local client_index = tonumber(ARGV[i + 1])
+        local client_key = client_index > 0 and KEYS[3 + client_index] or nil
+        local source_tier
+
+        if client_key and not client_has_room(client_key, tonumber(ARGV[i + 2])) then
+            source_tier = CLIENT_LIMIT_REACHED
+        else
+            source_tier = try_acquire(capacity_key, free_tiers_key, tonumber(ARGV[i]))
+        end
+
+        source_tiers[#source_tiers + 1] = source_tier
+        if source_tier > 0 then
+            held[source_tier] = (held[source_tier] or 0) + 1
+            if client_key then
+                track_client(client_key, client_ttl)
+            end
+        end
+    end
+
+    -- Record the permits as held by the node, so they are reclaimed if the node dies without releasing them
+    if node_id ~= "" then
+        for tier, permits in pairs(held) do
+            redis.call('hincrby', leases_key, node_id .. "|" .. tier, permits)
+        end
+    end
+
+    return source_tiers
+end
+
+-- Script entry point
+return main()
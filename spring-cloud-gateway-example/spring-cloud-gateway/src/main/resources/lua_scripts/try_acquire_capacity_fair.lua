@@ -0,0 +1,225 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis hash key of the default capacities
+-- KEYS[3] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[4] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[5] - the Redis hash key of the fair share accounting:
+--           "held:tier" -> permits held by requests of the tier, own and borrowed
+--           "lent:tier" -> permits of the tier held by requests of other tiers
+--           "borrowed:tier:lender" -> permits of the lender tier held by requests of the tier
+-- KEYS[6] - the Redis hash key of the scheduling settings stored as tier -> "weight|min_guaranteed|max_burst"
+-- KEYS[7..N] - the Redis keys counting the in-flight requests of the capped clients of the batch
+-- ARGV[1] - the id of the node acquiring the permits, the permits are not tracked per node if empty
+-- ARGV[2] - the time to live of the client in-flight counters in milliseconds
+-- ARGV[3..N] - triples of requested tier, client key index and client max in-flight requests, a single permit is
+--              acquired for each triple; the index points to KEYS[6 + index], 0 if the client is not capped
+-- Returns: the tiers the permits are accounted to, in the order of the requested tiers: the requested tier
+--          if acquired, 0 if no capacity is available, -1 if the tier reached its max burst and -2 if the client
+--          reached its max in-flight requests, or a single result code for the whole batch: -4 if there is
+--          no capacity data, -5 if the arguments are invalid
+-- Note: Permits are always accounted to the requested tier, so releases return borrowed permits to their lenders first
+
+-- Result codes of a single request of the batch, decoded by ScriptResults:
+local NO_CAPACITY = 0
+local MAX_BURST_REACHED = -1
+local CLIENT_LIMIT_REACHED = -2
+
+-- Result codes of the whole batch, decoded by ScriptResults:
+local NO_CAPACITY_DATA = -4
+local INVALID_ARGUMENTS = -5
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- checks if at least one tier is requested and if all tier numbers are valid
+local function validate_inputs()
+    if #ARGV < 5 or (#ARGV - 2) % 3 ~= 0 then
+        return false, "Invalid number of arguments. Must be triples of (tier, client key index, max in-flight)."
+    end
+
+    for i = 3, #ARGV, 3 do
+        local tier_number = tonumber(ARGV[i])
+        if not tier_number or tier_number < 1 then
+            return false, "Invalid tier number: " .. tostring(ARGV[i])
+        end
+    end
+
+    return true, nil
+end
+
+-- Function to read the scheduling settings of all tiers
+-- Tiers without settings get weight 1, no min guarantee and no max burst
+local function read_settings(scheduling_key)
+    local settings = {}
+    local entries = redis.call('hgetall', scheduling_key)
+
+    for i = 1, #entries, 2 do
+        local weight, min_guaranteed, max_burst = string.match(entries[i + 1], "([^|]+)|([^|]+)|([^|]+)")
+        settings[tonumber(entries[i])] = {
+            weight = math.max(tonumber(weight) or 1, 0.001),
+            min_guaranteed = tonumber(min_guaranteed) or 0,
+            max_burst = tonumber(max_burst) or -1
+        }
+    end
+
+    return settings
+end
+
+local function settings_of(settings, tier)
+    return settings[tier] or { weight = 1, min_guaranteed = 0, max_burst = -1 }
+end
+
+-- Function to take a single permit from a tier
+-- The tier is removed from the free tiers set once its capacity is exhausted
+local function take_permit(capacity_key, free_tiers_key, tier)
+    local remaining = redis.call('hincrby', capacity_key, tier, -1)
+    if remaining <= 0 then
+        redis.call('zrem', free_tiers_key, tier)
+    end
+end
+
+local function counter(fair_share_key, field)
+    return tonumber(redis.call('hget', fair_share_key, field)) or 0
+end
+
+-- Function to check if the client is below its max in-flight requests
+local function client_has_room(client_key, max_in_flight)
+    return (tonumber(redis.call('get', client_key)) or 0) < max_in_flight
+end
+
+-- Function to count the request as in flight for its client
+-- The counter expires once the client is idle for the ttl, so counts left by a dead node do not stay forever
+local function track_client(client_key, ttl)
+    redis.call('incr', client_key)
+    redis.call('pexpire', client_key, ttl)
+end
+
+-- Function to find the tier to borrow a permit from
+-- A tier lends only the free permits above what it still needs to cover its min guarantee, and the tier with
+-- the most lendable permits relative to its weight lends first, the lower priority tier on a tie.
+-- Only the tiers of the free tiers set are candidates, and the counters of all candidates are read with a single
+-- HMGET per hash, so a borrow costs the same number of calls however many tiers there are
+local function find_lender(capacity_key, default_capacity_key, free_tiers_key, fair_share_key, settings, requested_tier)
+    local candidates = redis.call('zrange', free_tiers_key, 0, -1)
+    if #candidates == 0 then
+        return nil
+    end
+
+    local lent_fields = {}
+    for i, tier in ipairs(candidates) do
+        lent_fields[i] = "lent:" .. tier
+    end
+    local free_permits = redis.call('hmget', capacity_key, unpack(candidates))
+    local default_capacities = redis.call('hmget', default_capacity_key, unpack(candidates))
+    local lent_permits = redis.call('hmget', fair_share_key, unpack(lent_fields))
+
+    local lender, best_score = nil, 0
+    for i, tier in ipairs(candidates) do
+        local tier_number = tonumber(tier)
+        local free = tonumber(free_permits[i]) or 0
+
+        if tier_number ~= requested_tier and free > 0 then
+            local tier_settings = settings_of(settings, tier_number)
+            local default_capacity = tonumber(default_capacities[i]) or 0
+            local own_used = default_capacity - free - (tonumber(lent_permits[i]) or 0)
+            local reserved = math.max(0, tier_settings.min_guaranteed - own_used)
+            local lendable = free - reserved
+
+            if lendable > 0 then
+                local score = lendable / tier_settings.weight
+                if score > best_score or (score == best_score and lender ~= nil and tier_number > lender) then
+                    lender, best_score = tier_number, score
+                end
+            end
+        end
+    end
+
+    return lender
+end
+
+-- Function to acquire a single permit for the requested tier
+-- Returns the requested tier if acquired, 0 if no capacity is available and -1 if the tier reached its max burst
+local function try_acquire(capacity_key, default_capacity_key, free_tiers_key, fair_share_key, settings, tier_number)
+    local held_field = "held:" .. tier_number
+    local max_burst = settings_of(settings, tier_number).max_burst
+    if max_burst >= 0 and counter(fair_share_key, held_field) >= max_burst then
+        return MAX_BURST_REACHED
+    end
+
+    local capacity = tonumber(redis.call('hget', capacity_key, tier_number))
+    if capacity ~= nil and capacity > 0 then
+        take_permit(capacity_key, free_tiers_key, tier_number)
+        redis.call('hincrby', fair_share_key, held_field, 1)
+        return tier_number
+    end
+
+    local lender = find_lender(capacity_key, default_capacity_key, free_tiers_key, fair_share_key, settings,
+            tier_number)
+    if lender == nil then
+        return NO_CAPACITY
+    end
+
+    take_permit(capacity_key, free_tiers_key, lender)
+    redis.call('hincrby', fair_share_key, held_field, 1)
+    redis.call('hincrby', fair_share_key, "lent:" .. lender, 1)
+    redis.call('hincrby', fair_share_key, "borrowed:" .. tier_number .. ":" .. lender, 1)
+    return tier_number
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    if not validate_inputs() then
+        return { INVALID_ARGUMENTS }
+    end
+
+    local capacity_key = KEYS[1]
+    local default_capacity_key = KEYS[2]
+    local free_tiers_key = KEYS[3]
+    local leases_key = KEYS[4]
+    local fair_share_key = KEYS[5]
+    local scheduling_key = KEYS[6]
+    local node_id = ARGV[1]
+    local client_ttl = ARGV[2]
+
+    -- Check if we have any data at all once for the whole batch
+    if redis.call('exists', capacity_key) == 0 then
+        return { NO_CAPACITY_DATA }
+    end
+
+    local settings = read_settings(scheduling_key)
+    local accounted_tiers = {}
+    local held = {}
+    for i = 3, #ARGV, 3 do
+        local client_index = tonumber(ARGV[i + 1])
+        local client_key = client_index > 0 and KEYS[6 + client_index] or nil
+        local accounted_tier
+
+        if client_key and not client_has_room(client_key, tonumber(ARGV[i + 2])) then
+            accounted_tier = CLIENT_LIMIT_REACHED
+        else
+            accounted_tier = try_acquire(capacity_key, default_capacity_key, free_tiers_key, fair_share_key,
+                    settings, tonumber(ARGV[i]))
+        end
+
+        accounted_tiers[#accounted_tiers + 1] = accounted_tier
+        if accounted_tier > 0 then
+            held[accounted_tier] = (held[accounted_tier] or 0) + 1
+            if client_key then
+                track_client(client_key, client_ttl)
+            end
+        end
+    end
+
+    -- Record the permits as held by the node, so they are reclaimed if the node dies without releasing them
+    if node_id ~= "" then
+        for tier, permits in pairs(held) do
+            redis.call('hincrby', leases_key, node_id .. "|" .. tier, permits)
+        end
+    end
+
+    return accounted_tiers
+end
+
+-- Script entry point
+return main()
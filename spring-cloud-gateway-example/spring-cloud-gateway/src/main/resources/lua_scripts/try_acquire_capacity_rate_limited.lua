@@ -0,0 +1,177 @@
+-- KEYS[1] - the Redis hash key representing the capacity store
+-- KEYS[2] - the Redis sorted set key of tiers with free capacity, scored by the tier number
+-- KEYS[3] - the Redis hash key where permits held by nodes are stored as "node_id|tier" -> permits
+-- KEYS[4] - the Redis hash key of the token bucket of the client, stored as "tokens" and "timestamp" in microseconds
+-- KEYS[5] - optional, the Redis key counting the in-flight requests of the client, the client is not capped if missing
+-- ARGV[1] - the tier number to attempt to acquire capacity from
+-- ARGV[2] - the id of the node acquiring the permit, the permit is not tracked per node if empty
+-- ARGV[3] - the number of requests per second the token bucket of the client is refilled with
+-- ARGV[4] - the maximum number of tokens of the bucket, i.e. the largest burst of requests of the client
+-- ARGV[5] - the maximum number of in-flight requests of the client, used with KEYS[5]
+-- ARGV[6] - the time to live of the client in-flight counter in milliseconds, used with KEYS[5]
+-- Returns: {outcome, requested_tier}, the same as try_acquire_capacity.lua, with the result code -3 if the client
+--          reached its rate limit
+-- Note: The rate limit is checked first, a request within the rate consumes its token even if a concurrency limit
+--       rejects it afterwards, the same as with a rate limiter in front of the concurrency limits.
+--       The time is taken from the Redis server, so the clocks of the gateway nodes do not matter.
+
+-- Result codes, decoded by ScriptResults:
+local NO_CAPACITY = 0
+local CLIENT_LIMIT_REACHED = -2
+local RATE_LIMIT_REACHED = -3
+local NO_CAPACITY_DATA = -4
+local INVALID_ARGUMENTS = -5
+
+-- Local functions:
+
+-- Function to validate input parameters:
+-- check if the tier number and the token bucket parameters are valid
+local function validate_inputs()
+    local tier_number = tonumber(ARGV[1])
+    if not tier_number or tier_number < 1 then
+        return false, "Invalid tier number: " .. tostring(ARGV[1])
+    end
+
+    local rate = tonumber(ARGV[3])
+    local burst = tonumber(ARGV[4])
+    if not rate or rate <= 0 or not burst or burst < 1 then
+        return false, "Invalid rate limit: " .. tostring(ARGV[3]) .. " per second, burst " .. tostring(ARGV[4])
+    end
+
+    return true, tier_number
+end
+
+-- Function to take a token from the token bucket of the client
+-- The bucket is refilled for the time passed since its last update, and expires once it would be full again anyway
+-- Returns false if the bucket has no token left
+local function take_token(bucket_key, rate, burst)
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+
+    local bucket = redis.call('hmget', bucket_key, 'tokens', 'timestamp')
+    local tokens = tonumber(bucket[1]) or burst
+    local timestamp = tonumber(bucket[2]) or now
+
+    tokens = math.min(burst, tokens + math.max(0, now - timestamp) * rate / 1000000)
+    if tokens < 1 then
+        return false
+    end
+
+    redis.call('hset', bucket_key, 'tokens', tokens - 1, 'timestamp', now)
+    redis.call('expire', bucket_key, math.ceil(burst / rate) * 2)
+    return true
+end
+
+-- Function to take a single permit from a tier
+-- The tier is removed from the free tiers set once its capacity is exhausted
+local function take_permit(capacity_key, free_tiers_key, tier)
+    local remaining = redis.call('hincrby', capacity_key, tier, -1)
+    if remaining <= 0 then
+        redis.call('zrem', free_tiers_key, tier)
+    end
+end
+
+-- Function to record the permit as held by the node, so it is reclaimed if the node dies without releasing it
+local function track_permit(leases_key, node_id, tier)
+    if node_id and node_id ~= "" then
+        redis.call('hincrby', leases_key, node_id .. "|" .. tier, 1)
+    end
+end
+
+-- Function to check if the client is below its max in-flight requests
+local function client_has_room(client_key, max_in_flight)
+    return (tonumber(redis.call('get', client_key)) or 0) < max_in_flight
+end
+
+-- Function to count the request as in flight for its client
+-- The counter expires once the client is idle for the ttl, so counts left by a dead node do not stay forever
+local function track_client(client_key, ttl)
+    redis.call('incr', client_key)
+    redis.call('pexpire', client_key, ttl)
+end
+
+-- Function to find and acquire capacity from lower priority tiers
+-- The free tiers set is sorted by the tier number, so the tier with the highest number (the lowest priority)
+-- is borrowed from first in O(log(N)) without scanning all tiers
+local function try_borrow_capacity(capacity_key, free_tiers_key, requested_tier)
+    while true do
+        local candidates = redis.call('zrevrangebyscore', free_tiers_key, '+inf', '(' .. requested_tier, 'LIMIT', 0, 1)
+        if #candidates == 0 then
+            return false, nil
+        end
+
+        local current_tier = tonumber(candidates[1])
+        local current_tier_capacity = tonumber(redis.call('hget', capacity_key, current_tier)) or 0
+
+        if current_tier_capacity > 0 then
+            take_permit(capacity_key, free_tiers_key, current_tier)
+            return true, current_tier
+        end
+
+        -- Stale entry, e.g. the tier was removed from the capacity store, drop it and look further
+        redis.call('zrem', free_tiers_key, candidates[1])
+    end
+end
+
+-- Function to acquire a permit of the requested tier, borrowing from lower priority tiers if it is exhausted
+-- Returns the source tier of the permit, nil if no capacity is available
+local function try_acquire(capacity_key, free_tiers_key, tier_number)
+    local capacity = tonumber(redis.call('hget', capacity_key, tier_number))
+    if capacity ~= nil and capacity > 0 then
+        take_permit(capacity_key, free_tiers_key, tier_number)
+        return tier_number
+    end
+
+    local borrowed, source_tier = try_borrow_capacity(capacity_key, free_tiers_key, tier_number)
+    if borrowed then
+        return source_tier
+    end
+    return nil
+end
+
+-- Main script execution:
+
+local function main()
+    -- Input validation
+    local is_valid, result = validate_inputs()
+    if not is_valid then
+        return { INVALID_ARGUMENTS, 0 }
+    end
+
+    local capacity_key = KEYS[1]
+    local free_tiers_key = KEYS[2]
+    local leases_key = KEYS[3]
+    local bucket_key = KEYS[4]
+    local client_key = KEYS[5]
+    local node_id = ARGV[2]
+    local tier_number = result
+
+    -- Check if we have any data before any token is taken
+    if redis.call('exists', capacity_key) == 0 then
+        return { NO_CAPACITY_DATA, tier_number }
+    end
+
+    -- Requests per second first, then the in-flight requests of the client and the capacity of the tiers
+    if not take_token(bucket_key, tonumber(ARGV[3]), tonumber(ARGV[4])) then
+        return { RATE_LIMIT_REACHED, tier_number }
+    end
+
+    if client_key and not client_has_room(client_key, tonumber(ARGV[5])) then
+        return { CLIENT_LIMIT_REACHED, tier_number }
+    end
+
+    local source_tier = try_acquire(capacity_key, free_tiers_key, tier_number)
+    if source_tier == nil then
+        return { NO_CAPACITY, tier_number }
+    end
+
+    track_permit(leases_key, node_id, source_tier)
+    if client_key then
+        track_client(client_key, ARGV[6])
+    end
+
+    return { source_tier, tier_number }
+end
+
+-- Script entry point
+return main()
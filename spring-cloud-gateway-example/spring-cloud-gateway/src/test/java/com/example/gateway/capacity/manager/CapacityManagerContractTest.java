@@ -0,0 +1,157 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.dto.DynamicCapacityDto;
+import com.example.gateway.dto.ReleaseCapacityResult;
+import com.example.gateway.utils.CapacityResults;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Semantics every capacity engine shares with the Lua scripts of RedisCapacityManager.
+ * Every test runs against a capacity pool of its own, so no state is shared between the tests.
+ */
+abstract class CapacityManagerContractTest {
+    // Tier 1 has the highest priority and may borrow from tier 2, tier 2 may not borrow from tier 1
+    private static final Map<Integer, Integer> TIERS_CAPACITY = Map.of(1, 2, 2, 1);
+    private static final String CLIENT_ID = "contract_client";
+    // Client capped at a single in-flight request, its counter expires once it is idle for CLIENT_IN_FLIGHT_TTL
+    protected static final String CAPPED_CLIENT_ID = "contract_capped_client";
+    protected static final Duration CLIENT_IN_FLIGHT_TTL = Duration.ofMillis(300);
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private CapacityManager manager;
+
+    /**
+     * Returns the manager of the global capacity of the engine, the tests run against pools created from it
+     */
+    protected abstract CapacityManager globalManager();
+
+    @BeforeEach
+    void createPool() {
+        manager = globalManager().forPool("contract_" + POOLS.incrementAndGet(), TIERS_CAPACITY);
+        manager.warmUp(0).block(TIMEOUT);
+    }
+
+    @Test
+    void acquiresPermitsOfTheRequestedTierUntilExhausted() {
+        AcquireCapacityResult acquired = acquire(2);
+        AcquireCapacityResult rejected = acquire(2);
+
+        assertThat(acquired.acquired()).isTrue();
+        assertThat(acquired.sourceTier()).isEqualTo(2);
+        assertThat(rejected.acquired()).isFalse();
+        assertThat(CapacityResults.isCapacityExhausted(rejected)).isTrue();
+        assertThat(currentCapacities()).containsEntry(1, 2).containsEntry(2, 0);
+    }
+
+    @Test
+    void borrowsFromLowerPriorityTiersOnceTheRequestedTierIsExhausted() {
+        assertThat(acquire(1).sourceTier()).isEqualTo(1);
+        assertThat(acquire(1).sourceTier()).isEqualTo(1);
+
+        AcquireCapacityResult borrowed = acquire(1);
+
+        assertThat(borrowed.acquired()).isTrue();
+        assertThat(borrowed.sourceTier()).isEqualTo(2);
+        assertThat(borrowed.requestedTier()).isEqualTo(1);
+        assertThat(acquire(1).acquired()).isFalse();
+    }
+
+    @Test
+    void doesNotBorrowFromHigherPriorityTiers() {
+        assertThat(acquire(2).acquired()).isTrue();
+
+        assertThat(acquire(2).acquired()).isFalse();
+        assertThat(currentCapacities()).containsEntry(1, 2);
+    }
+
+    @Test
+    void releasedPermitsCanBeAcquiredAgain() {
+        AcquireCapacityResult acquired = acquire(2);
+        assertThat(acquire(2).acquired()).isFalse();
+
+        ReleaseCapacityResult released = manager.releaseCapacity(acquired.sourceTier(), CLIENT_ID).block(TIMEOUT);
+
+        assertThat(released).isNotNull();
+        assertThat(released.released()).isTrue();
+        assertThat(currentCapacities()).isEqualTo(TIERS_CAPACITY);
+        assertThat(acquire(2).acquired()).isTrue();
+    }
+
+    @Test
+    void releasingABorrowedPermitReturnsItToTheLendingTier() {
+        acquire(1);
+        acquire(1);
+        AcquireCapacityResult borrowed = acquire(1);
+
+        manager.releaseCapacity(borrowed.sourceTier(), CLIENT_ID).block(TIMEOUT);
+
+        assertThat(currentCapacities()).containsEntry(1, 0).containsEntry(2, 1);
+    }
+
+    @Test
+    void capacityUpdatesPreserveInFlightPermits() {
+        AcquireCapacityResult inFlight = acquire(1);
+
+        manager.updateCapacities(new DynamicCapacityDto(Map.of(1, 5, 2, 1))).block(TIMEOUT);
+
+        assertThat(defaultCapacities()).containsEntry(1, 5);
+        assertThat(currentCapacities()).containsEntry(1, 4).containsEntry(2, 1);
+
+        manager.releaseCapacity(inFlight.sourceTier(), CLIENT_ID).block(TIMEOUT);
+
+        assertThat(currentCapacities()).containsEntry(1, 5);
+    }
+
+    @Test
+    void capacityUpdatesBelowTheInFlightPermitsExhaustTheTier() {
+        acquire(1);
+        acquire(1);
+
+        manager.updateCapacities(new DynamicCapacityDto(Map.of(1, 1, 2, 1))).block(TIMEOUT);
+
+        assertThat(currentCapacities().get(1)).isLessThanOrEqualTo(0);
+        assertThat(acquire(1).sourceTier()).isEqualTo(2);
+    }
+
+    @Test
+    void inFlightCountersOfIdleClientsAreDropped() throws InterruptedException {
+        assertThat(acquire(1, CAPPED_CLIENT_ID).acquired()).isTrue();
+
+        AcquireCapacityResult capped = acquire(1, CAPPED_CLIENT_ID);
+
+        assertThat(capped.acquired()).isFalse();
+        assertThat(capped.error()).isEqualTo(CapacityResults.CLIENT_LIMIT_REACHED);
+
+        // The permit is never released, as by a node which died, the counter is dropped once the client is idle
+        Thread.sleep(CLIENT_IN_FLIGHT_TTL.multipliedBy(3).toMillis());
+
+        assertThat(acquire(1, CAPPED_CLIENT_ID).acquired()).isTrue();
+    }
+
+    private AcquireCapacityResult acquire(int tier) {
+        return acquire(tier, CLIENT_ID);
+    }
+
+    private AcquireCapacityResult acquire(int tier, String clientId) {
+        AcquireCapacityResult result = manager.tryAcquireCapacity(tier, clientId).block(TIMEOUT);
+        assertThat(result).isNotNull();
+        return result;
+    }
+
+    private Map<Integer, Integer> currentCapacities() {
+        return manager.getCurrentCapacities().block(TIMEOUT).getCapacities();
+    }
+
+    private Map<Integer, Integer> defaultCapacities() {
+        return manager.getDefaultCapacities().block(TIMEOUT).getCapacities();
+    }
+}
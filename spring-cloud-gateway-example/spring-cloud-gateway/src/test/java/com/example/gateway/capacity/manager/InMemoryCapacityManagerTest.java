@@ -0,0 +1,21 @@
+package com.example.gateway.capacity.manager;
+
+import com.example.gateway.dto.ClientTierDto;
+import com.example.gateway.properties.CapacityProperties;
+import com.example.gateway.properties.SpringCloudGatewayProperties;
+
+import java.util.List;
+import java.util.Map;
+
+class InMemoryCapacityManagerTest extends CapacityManagerContractTest {
+
+    @Override
+    protected CapacityManager globalManager() {
+        SpringCloudGatewayProperties limitProperties = new SpringCloudGatewayProperties();
+        limitProperties.setTiersCapacity(Map.of(1, 2, 2, 1));
+        limitProperties.setClients(List.of(ClientTierDto.builder().id(CAPPED_CLIENT_ID).tier(1).maxInFlight(1).build()));
+        limitProperties.getClientInFlight().setTtl(CLIENT_IN_FLIGHT_TTL);
+        limitProperties.init();
+        return new InMemoryCapacityManager(limitProperties, new CapacityProperties());
+    }
+}
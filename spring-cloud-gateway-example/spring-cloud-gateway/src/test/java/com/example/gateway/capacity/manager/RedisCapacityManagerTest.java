@@ -0,0 +1,43 @@
+package com.example.gateway.capacity.manager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * Runs the contract against Redis. Releases are not batched, so every release is applied once it completes.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@SpringBootTest(properties = {
+        "capacity.engine=redis",
+        "capacity.lease.enabled=false",
+        "capacity.release-batch.enabled=false",
+        "capacity.acquire-batch.enabled=false",
+        "spring-cloud-gateway.clients[0].id=" + CapacityManagerContractTest.CAPPED_CLIENT_ID,
+        "spring-cloud-gateway.clients[0].tier=1",
+        "spring-cloud-gateway.clients[0].max-in-flight=1",
+        "spring-cloud-gateway.client-in-flight.ttl=300ms"
+})
+class RedisCapacityManagerTest extends CapacityManagerContractTest {
+    @Container
+    private static final GenericContainer<?> REDIS = new GenericContainer<>(DockerImageName.parse("redis:7-alpine"))
+            .withExposedPorts(6379);
+
+    @Autowired
+    private RedisCapacityManager redisCapacityManager;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("redis.node-address", () -> "redis://" + REDIS.getHost() + ":" + REDIS.getMappedPort(6379));
+    }
+
+    @Override
+    protected CapacityManager globalManager() {
+        return redisCapacityManager;
+    }
+}
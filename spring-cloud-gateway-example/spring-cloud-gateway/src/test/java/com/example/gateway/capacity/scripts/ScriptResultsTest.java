@@ -0,0 +1,44 @@
+package com.example.gateway.capacity.scripts;
+
+import com.example.gateway.dto.AcquireCapacityResult;
+import com.example.gateway.utils.CapacityResults;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScriptResultsTest {
+
+    @Test
+    void decodesTheOutcomeOfEveryRequestOfABatch() {
+        List<AcquireCapacityResult> results = ScriptResults.acquireResults(
+                new int[]{2, ScriptResults.NO_CAPACITY, ScriptResults.CLIENT_LIMIT_REACHED}, List.of(1, 2, 3));
+
+        assertThat(results).extracting(AcquireCapacityResult::acquired).containsExactly(true, false, false);
+        assertThat(results.get(0).sourceTier()).isEqualTo(2);
+        assertThat(results.get(1).error()).isEqualTo(CapacityResults.NO_CAPACITY_AVAILABLE);
+        assertThat(results.get(2).error()).isEqualTo(CapacityResults.CLIENT_LIMIT_REACHED);
+    }
+
+    @Test
+    void batchErrorsFailEveryRequestOfTheBatch() {
+        List<AcquireCapacityResult> results = ScriptResults.acquireResults(
+                new int[]{ScriptResults.NO_CAPACITY_DATA}, List.of(1, 3));
+
+        assertThat(results).hasSize(2).noneMatch(AcquireCapacityResult::acquired);
+        assertThat(results).extracting(AcquireCapacityResult::requestedTier).containsExactly(1, 3);
+        assertThat(results).extracting(AcquireCapacityResult::error)
+                .containsOnly(ScriptResults.error(ScriptResults.NO_CAPACITY_DATA));
+    }
+
+    @Test
+    void rejectionsOfASingleRequestAreNotBatchErrors() {
+        List<AcquireCapacityResult> results = ScriptResults.acquireResults(
+                new int[]{ScriptResults.CLIENT_LIMIT_REACHED}, List.of(1));
+
+        assertThat(results).singleElement()
+                .extracting(AcquireCapacityResult::error)
+                .isEqualTo(CapacityResults.CLIENT_LIMIT_REACHED);
+    }
+}
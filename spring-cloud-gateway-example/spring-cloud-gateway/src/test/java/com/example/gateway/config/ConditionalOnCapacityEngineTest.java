@@ -0,0 +1,58 @@
+package com.example.gateway.config;
+
+import com.example.gateway.properties.CapacityProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConditionalOnCapacityEngineTest {
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withUserConfiguration(EngineBeans.class);
+
+    @Test
+    void redisIsTheDefaultEngine() {
+        contextRunner.run(context -> assertThat(context)
+                .hasBean("redisEngine")
+                .doesNotHaveBean("inMemoryEngine"));
+    }
+
+    @Test
+    void matchesTheEngineInKebabCase() {
+        contextRunner.withPropertyValues("capacity.engine=in-memory").run(context -> assertThat(context)
+                .hasBean("inMemoryEngine")
+                .doesNotHaveBean("redisEngine"));
+    }
+
+    @Test
+    void matchesTheEngineByItsEnumName() {
+        contextRunner.withPropertyValues("capacity.engine=IN_MEMORY").run(context -> assertThat(context)
+                .hasBean("inMemoryEngine")
+                .doesNotHaveBean("redisEngine"));
+    }
+
+    @Test
+    void matchesRedisInAnyCase() {
+        contextRunner.withPropertyValues("capacity.engine=REDIS").run(context -> assertThat(context)
+                .hasBean("redisEngine")
+                .doesNotHaveBean("inMemoryEngine"));
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    static class EngineBeans {
+
+        @Bean
+        @ConditionalOnRedisCapacityEngine
+        String redisEngine() {
+            return "redis";
+        }
+
+        @Bean
+        @ConditionalOnCapacityEngine(CapacityProperties.Engine.IN_MEMORY)
+        String inMemoryEngine() {
+            return "in-memory";
+        }
+    }
+}